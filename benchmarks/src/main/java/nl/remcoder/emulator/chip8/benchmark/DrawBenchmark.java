@@ -0,0 +1,73 @@
+package nl.remcoder.emulator.chip8.benchmark;
+
+import nl.remcoder.emulator.chip8.CPU;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of DXYN, which is where drawVXVY spends its time, for a full 8x15 sprite.
+ * <p>
+ * At position 0 the sprite lies within the screen, at position 60 it is drawn at (60, 30) and wraps around both the
+ * right and the bottom edge.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DrawBenchmark {
+    private static final int DRAWS = 1_000;
+    private static final int REPETITIONS = 256;
+
+    @Param({"0", "60"})
+    public int position;
+
+    private CPU cpu;
+
+    @Setup
+    public void setUp() {
+        int[] instructions = new int[3 + REPETITIONS + 1 + 8];
+        int sprite = 0x200 + (3 + REPETITIONS + 1) * 2;
+        instructions[0] = 0x6000 | position;
+        instructions[1] = 0x6100 | position / 2;
+        instructions[2] = 0xA000 | sprite;
+        for (int i = 0; i < REPETITIONS; i++) {
+            instructions[3 + i] = 0xD01F;
+        }
+        instructions[3 + REPETITIONS] = 0x1206;
+        for (int i = 0; i < 8; i++) {
+            // 16 bytes of 0xFF, of which the sprite uses 15
+            instructions[3 + REPETITIONS + 1 + i] = 0xFFFF;
+        }
+
+        cpu = new CPU();
+        cpu.reset();
+        cpu.loadRom(Programs.toBytes(instructions));
+        for (int i = 0; i < 3; i++) {
+            cpu.emulateCycle();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DRAWS)
+    public CPU drawSprite() {
+        // One in every 257 instructions is the jump back, which is noise next to drawing 120 pixels
+        for (int i = 0; i < DRAWS; i++) {
+            cpu.emulateCycle();
+        }
+        return cpu;
+    }
+}
@@ -0,0 +1,82 @@
+package nl.remcoder.emulator.chip8.benchmark;
+
+import nl.remcoder.emulator.chip8.CPU;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interpreter throughput per opcode family, in instructions per microsecond, which is MIPS.
+ * <p>
+ * Every family runs a program that repeats a few instructions of that family for 512 instructions and then jumps
+ * back, so the jump is less than one percent of what is measured. Skips are never taken and FX55 writes outside the program, so
+ * no family measures anything but its own instructions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpcodeBenchmark {
+    private static final int CYCLES = 10_000;
+    private static final int LOOP_LENGTH = 512;
+
+    @Param({"LOAD", "ARITHMETIC", "INDEX", "SKIP", "FLOW", "DRAW", "MEMORY", "TIMER", "RANDOM"})
+    public String family;
+
+    private CPU cpu;
+
+    @Setup
+    public void setUp() {
+        cpu = new CPU();
+        cpu.reset();
+        cpu.loadRom(program(family));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public CPU emulateCycle() {
+        for (int i = 0; i < CYCLES; i++) {
+            cpu.emulateCycle();
+        }
+        return cpu;
+    }
+
+    private static byte[] program(String family) {
+        return switch (family) {
+            case "LOAD" -> Programs.loop(LOOP_LENGTH, 0x6012, 0x7134, 0x6256, 0x7378);
+            case "ARITHMETIC" -> Programs.loop(LOOP_LENGTH, 0x8014, 0x8125, 0x8231, 0x8342,
+                                               0x8453, 0x8506, 0x860E, 0x8717);
+            case "INDEX" -> Programs.loop(LOOP_LENGTH, 0xA300, 0xF01E, 0xF129, 0xA400);
+            // V0 and V1 stay 0, so none of these skip
+            case "SKIP" -> Programs.loop(LOOP_LENGTH, 0x3001, 0x4000, 0x9010, 0x3101);
+            case "FLOW" -> {
+                // Every call goes to the 00EE placed directly after the jump back to the start
+                int subroutine = 0x200 + (LOOP_LENGTH + 1) * 2;
+                byte[] calls = Programs.loop(LOOP_LENGTH, 0x2000 | subroutine);
+                byte[] program = new byte[calls.length + 2];
+                System.arraycopy(calls, 0, program, 0, calls.length);
+                program[calls.length + 1] = (byte) 0xEE;
+                yield program;
+            }
+            // Drawing the same sprite twice leaves the screen as it was
+            case "DRAW" -> Programs.loop(LOOP_LENGTH, 0xA000, 0xD015, 0xD015);
+            case "MEMORY" -> Programs.loop(LOOP_LENGTH, 0xAE00, 0xF233, 0xF255, 0xF265);
+            case "TIMER" -> Programs.loop(LOOP_LENGTH, 0xF015, 0xF007, 0xF018);
+            case "RANDOM" -> Programs.loop(LOOP_LENGTH, 0xC0FF, 0xC10F);
+            default -> throw new IllegalArgumentException("Unknown opcode family " + family);
+        };
+    }
+}
@@ -0,0 +1,55 @@
+package nl.remcoder.emulator.chip8.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Builds the programs the benchmarks run.
+ */
+final class Programs {
+    private Programs() {
+    }
+
+    /**
+     * Build a program that repeats a pattern of instructions and then jumps back to the start.
+     *
+     * @param length the number of instructions before the jump back
+     * @param pattern the instructions to repeat
+     * @return the ROM image, to be loaded at 0x200
+     */
+    static byte[] loop(int length, int... pattern) {
+        int[] instructions = new int[length + 1];
+        for (int i = 0; i < length; i++) {
+            instructions[i] = pattern[i % pattern.length];
+        }
+        instructions[instructions.length - 1] = 0x1200;
+        return toBytes(instructions);
+    }
+
+    static byte[] toBytes(int... instructions) {
+        byte[] romdata = new byte[instructions.length * 2];
+        for (int i = 0; i < instructions.length; i++) {
+            romdata[i * 2] = (byte) (instructions[i] >> 8);
+            romdata[i * 2 + 1] = (byte) instructions[i];
+        }
+        return romdata;
+    }
+
+    /**
+     * Read one of the ROMs bundled with the emulator.
+     *
+     * @param name the file name of the ROM
+     * @return the ROM image
+     */
+    static byte[] bundledRom(String name) {
+        try (InputStream inputStream = Programs.class.getClassLoader().getResourceAsStream("roms/" + name)) {
+            if (inputStream == null) {
+                throw new IllegalArgumentException("No bundled ROM named " + name);
+            }
+            return inputStream.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package nl.remcoder.emulator.chip8.benchmark;
+
+import nl.remcoder.emulator.chip8.CPU;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of resetting the CPU and loading a ROM, as paid on every ROM switch and every run of the ROM farm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResetBenchmark {
+    private CPU cpu;
+    private byte[] romdata;
+
+    @Setup
+    public void setUp() {
+        cpu = new CPU();
+        cpu.reset();
+        romdata = Programs.bundledRom("BRIX");
+    }
+
+    @Benchmark
+    public CPU reset() {
+        cpu.reset();
+        return cpu;
+    }
+
+    @Benchmark
+    public CPU resetAndLoadRom() {
+        cpu.reset();
+        cpu.loadRom(romdata);
+        return cpu;
+    }
+}
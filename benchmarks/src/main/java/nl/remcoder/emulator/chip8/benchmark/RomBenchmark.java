@@ -0,0 +1,59 @@
+package nl.remcoder.emulator.chip8.benchmark;
+
+import nl.remcoder.emulator.chip8.Bitplanes;
+import nl.remcoder.emulator.chip8.Machine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless runs of the bundled ROMs for a fixed number of frames, from loading the ROM up to the last frame, in
+ * instructions per microsecond.
+ * <p>
+ * Without input most ROMs end up in a loop waiting for a key or for the delay timer, which is exactly what they spend
+ * most of their time on when played as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RomBenchmark {
+    private static final int FRAMES = 600;
+
+    @Param({"test_opcode.ch8", "BRIX", "INVADERS", "BLITZ", "BLINKY"})
+    public String rom;
+
+    @Param({"false", "true"})
+    public boolean jit;
+
+    private Machine machine;
+    private byte[] romdata;
+
+    @Setup
+    public void setUp() {
+        romdata = Programs.bundledRom(rom);
+        machine = new Machine();
+        machine.setJitEnabled(jit);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES * Machine.DEFAULT_CYCLES_PER_FRAME)
+    public Bitplanes runFrames() {
+        machine.loadRom(romdata);
+        machine.runFrames(FRAMES);
+        return machine.getDisplay();
+    }
+}
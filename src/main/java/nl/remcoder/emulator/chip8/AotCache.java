@@ -0,0 +1,131 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * On-disk cache of ROM images translated by the {@link AotCompiler}.
+ * <p>
+ * Every translation is stored in its own file, named after the SHA-256 hash of the ROM image and the quirk profile it
+ * was translated for, so a ROM that was seen before is loaded with all of its reachable code already compiled. The
+ * cache only speeds things up: a file that cannot be read is translated again, and a translation that cannot be
+ * written is still used for the current run.
+ */
+public class AotCache {
+    private static final int MAGIC = 0x43384154; // C8AT
+    private static final int FORMAT_VERSION = 4;
+
+    private final Path directory;
+
+    public AotCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get the translation of a ROM image, from disk if it was translated before.
+     *
+     * @param romdata the raw ROM image
+     * @param quirks the profile the ROM is run with
+     * @return the translated blocks
+     */
+    List<Jit.CompiledCode> translationOf(byte[] romdata, QuirkProfile quirks) {
+        Path file = directory.resolve(hash(romdata) + "-" + quirks + ".aot");
+        if (Files.isRegularFile(file)) {
+            try {
+                return read(Files.readAllBytes(file));
+            } catch (IOException e) {
+                // Unreadable or from an older version, translate it again below
+            }
+        }
+
+        List<Jit.CompiledCode> translation = AotCompiler.translate(romdata, quirks);
+        Path temporaryFile = null;
+        try {
+            Files.createDirectories(directory);
+            temporaryFile = Files.createTempFile(directory, "translation", ".tmp");
+            Files.write(temporaryFile, write(translation));
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Only a cache miss next time, the translation is still used
+            System.err.println("Could not cache the translation in " + file + ": " + e);
+            try {
+                if (temporaryFile != null) {
+                    Files.deleteIfExists(temporaryFile);
+                }
+            } catch (IOException deleteFailure) {
+                // Left for whoever cleans up the directory
+            }
+        }
+        return translation;
+    }
+
+    static String hash(byte[] romdata) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(romdata));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be available on every JVM", e);
+        }
+    }
+
+    private static byte[] write(List<Jit.CompiledCode> translation) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(translation.size());
+            for (Jit.CompiledCode code : translation) {
+                output.writeShort(code.start());
+                output.writeShort(code.end());
+                output.writeShort(code.length());
+                output.writeInt(code.exitInstruction());
+                output.writeInt(code.classFile().length);
+                output.write(code.classFile());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<Jit.CompiledCode> read(byte[] data) throws IOException {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a translation in the current format");
+            }
+            int count = input.readInt();
+            if (count < 0 || count > CPU.MEMORY_SIZE) {
+                throw new IOException("Corrupt translation, " + count + " blocks");
+            }
+            List<Jit.CompiledCode> translation = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int start = input.readUnsignedShort();
+                int end = input.readUnsignedShort();
+                int length = input.readUnsignedShort();
+                int exitInstruction = input.readInt();
+                // Installed without further checks, so a block has to lie within memory
+                if (length < 1 || length > Jit.MAX_BLOCK_LENGTH || end != start + 2 * length
+                    || end > CPU.MEMORY_SIZE) {
+                    throw new IOException("Corrupt translation, block of " + length + " instructions from " + start
+                                          + " to " + end);
+                }
+                int classFileLength = input.readInt();
+                if (classFileLength < 0 || classFileLength > input.available()) {
+                    throw new IOException("Corrupt translation, class file of " + classFileLength + " bytes");
+                }
+                byte[] classFile = new byte[classFileLength];
+                input.readFully(classFile);
+                translation.add(new Jit.CompiledCode(start, end, length, exitInstruction, classFile));
+            }
+            return translation;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package nl.remcoder.emulator.chip8;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+import static nl.remcoder.emulator.chip8.Instructions.*;
+
+/**
+ * Translates the code of a ROM image to JVM classes ahead of time.
+ * <p>
+ * Starting at 0x200 the control flow is followed through jumps, calls, returns and skips, and every basic block found
+ * on the way is translated the same way the {@link Jit} would translate it once it became hot. Whatever cannot be
+ * followed statically, like the target of BNNN or code outside the ROM image, is left to the interpreter and the JIT
+ * at runtime, as is FX0A itself. Blocks are only valid for the memory they were translated from, so self-modifying code
+ * throws them away exactly like it does with JIT-compiled blocks.
+ */
+final class AotCompiler {
+    private AotCompiler() {
+    }
+
+    /**
+     * Translate all code that can be statically reached from the entry point of a ROM image.
+     *
+     * @param romdata the raw ROM image
+     * @param quirks the profile the ROM is run with
+     * @return the translated blocks
+     */
+    static List<Jit.CompiledCode> translate(byte[] romdata, QuirkProfile quirks) {
+        CPU cpu = new CPU();
+        cpu.reset();
+        cpu.loadRom(romdata);
+        byte[] memory = cpu.memory;
+        int romEnd = 0x200 + romdata.length;
+
+        List<Jit.CompiledCode> translation = new ArrayList<>();
+        BitSet visited = new BitSet(memory.length);
+        Deque<Integer> worklist = new ArrayDeque<>();
+        worklist.push(0x200);
+        while (!worklist.isEmpty()) {
+            int start = worklist.pop();
+            if (start < 0x200 || start + 1 >= romEnd || visited.get(start)) {
+                continue;
+            }
+            visited.set(start);
+
+            Jit.CompiledCode code = Jit.translate(memory, start, quirks);
+            if (code == null) {
+                // FX0A, the interpreter waits for the key and continues with the next instruction
+                worklist.push(start + 2);
+                continue;
+            }
+            translation.add(code);
+
+            int instruction = code.exitInstruction();
+            int exit = code.end() - 2;
+            switch (instruction >>> 16) {
+                case NOT_DECODED -> worklist.push(code.end());
+                case OP_1NNN -> worklist.push(instruction & 0xFFF);
+                case OP_2NNN -> {
+                    worklist.push(exit + 2);
+                    worklist.push(instruction & 0xFFF);
+                }
+                case OP_3XNN, OP_4XNN, OP_5XY0, OP_9XY0, OP_EX9E, OP_EXA1 -> {
+                    worklist.push(exit + 4);
+                    worklist.push(exit + 2);
+                }
+                default -> {
+                    // 00EE returns to a call site that is already queued, BNNN and BXNN cannot be followed
+                    // statically
+                }
+            }
+        }
+        return translation;
+    }
+}
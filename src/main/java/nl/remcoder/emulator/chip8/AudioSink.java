@@ -0,0 +1,25 @@
+package nl.remcoder.emulator.chip8;
+
+/**
+ * Receives the state of the buzzer of a {@link Machine} at the end of every emulated frame.
+ */
+@FunctionalInterface
+public interface AudioSink {
+    AudioSink NONE = beeping -> {
+    };
+
+    /**
+     * Called once per frame.
+     *
+     * @param beeping true as long as the sound timer is running, false otherwise
+     */
+    void beep(boolean beeping);
+
+    /**
+     * @return true if the sink plays frames as they arrive, so frames must not be postponed and run in a burst while
+     *         the buzzer sounds, false if it only collects them
+     */
+    default boolean isRealTime() {
+        return false;
+    }
+}
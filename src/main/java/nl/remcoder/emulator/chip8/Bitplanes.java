@@ -0,0 +1,263 @@
+package nl.remcoder.emulator.chip8;
+
+import java.util.Arrays;
+
+/**
+ * A framebuffer of up to {@value #MAX_WIDTH}x{@value #MAX_HEIGHT} pixels in up to {@value #MAX_PLANES} bitplanes,
+ * packed into longs.
+ * <p>
+ * Every row of every plane takes two longs, whatever the resolution: the first holds pixels 0 to 63 with pixel 0 in
+ * the most significant bit, the second pixels 64 to 127. At a width of 64 only the first long is used. The color of a
+ * pixel is made up of one bit from every plane, plane 0 being the lowest bit.
+ * <p>
+ * Drawing a sprite row, scrolling and clearing work on whole words, so they cost the same at 128x64 as at 64x32 and
+ * never allocate.
+ */
+public final class Bitplanes {
+    public static final int MAX_WIDTH = 128;
+    public static final int MAX_HEIGHT = 64;
+    public static final int MAX_PLANES = 2;
+
+    private static final int WORDS_PER_ROW = 2;
+
+    private final long[] words = new long[MAX_PLANES * MAX_HEIGHT * WORDS_PER_ROW];
+    private int width = 64;
+    private int height = 32;
+    private int planes = 1;
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getPlanes() {
+        return planes;
+    }
+
+    /**
+     * @param x the column, from 0 to the width
+     * @param y the row, from 0 to the height
+     * @return the color of the pixel, one bit per plane
+     */
+    public int getPixel(int x, int y) {
+        int color = 0;
+        for (int plane = 0; plane < planes; plane++) {
+            long word = words[indexOf(plane, y) + (x >> 6)];
+            color |= (int) (word >>> (63 - (x & 63)) & 1) << plane;
+        }
+        return color;
+    }
+
+    /**
+     * @param plane the plane
+     * @param y the row
+     * @param word 0 for pixels 0 to 63, 1 for pixels 64 to 127
+     * @return the pixels, the leftmost in the most significant bit
+     */
+    public long getWord(int plane, int y, int word) {
+        return words[indexOf(plane, y) + word];
+    }
+
+    /**
+     * Make this framebuffer an exact copy of another one.
+     *
+     * @param other the framebuffer to copy
+     */
+    public void copyFrom(Bitplanes other) {
+        width = other.width;
+        height = other.height;
+        planes = other.planes;
+        System.arraycopy(other.words, 0, words, 0, words.length);
+    }
+
+    /**
+     * Switch to another resolution, which clears all planes.
+     */
+    void setResolution(int width, int height) {
+        this.width = width;
+        this.height = height;
+        clear((1 << MAX_PLANES) - 1);
+    }
+
+    void setPlanes(int planes) {
+        this.planes = planes;
+    }
+
+    /**
+     * @param planeMask the planes to clear, bit n for plane n
+     */
+    void clear(int planeMask) {
+        for (int plane = 0; plane < MAX_PLANES; plane++) {
+            if ((planeMask & 1 << plane) != 0) {
+                Arrays.fill(words, indexOf(plane, 0), indexOf(plane + 1, 0), 0);
+            }
+        }
+    }
+
+    /**
+     * Replace a row of plane 0 at a width of 64.
+     *
+     * @param y the row
+     * @param pixels the pixels, the leftmost in the most significant bit
+     */
+    void setRow(int y, long pixels) {
+        words[indexOf(0, y)] = pixels;
+    }
+
+    /**
+     * XOR pixels onto a row of plane 0 at a width of 64.
+     *
+     * @param y the row
+     * @param pixels the pixels, the leftmost in the most significant bit
+     * @return the pixels that were switched off
+     */
+    long xorRow(int y, long pixels) {
+        int index = indexOf(0, y);
+        long collision = words[index] & pixels;
+        words[index] ^= pixels;
+        return collision;
+    }
+
+    /**
+     * Replace one word of a row.
+     *
+     * @param plane the plane
+     * @param y the row
+     * @param word 0 for pixels 0 to 63, 1 for pixels 64 to 127
+     * @param pixels the pixels, the leftmost in the most significant bit
+     */
+    void setWord(int plane, int y, int word, long pixels) {
+        words[indexOf(plane, y) + word] = pixels;
+    }
+
+    /**
+     * XOR one row of a sprite onto a plane.
+     *
+     * @param plane the plane
+     * @param x the column of the leftmost pixel of the sprite, from 0 to the width
+     * @param y the row, from 0 to the height
+     * @param sprite the pixels of the sprite row in the lowest {@code spriteWidth} bits, the leftmost in the highest
+     * @param spriteWidth the number of pixels in a sprite row, at most 64
+     * @param wrap true to wrap pixels past the right edge around to the left, false to clip them
+     * @return true if a pixel was switched off
+     */
+    boolean xorRow(int plane, int x, int y, long sprite, int spriteWidth, boolean wrap) {
+        int index = indexOf(plane, y);
+        long left = sprite << (64 - spriteWidth);
+        long first;
+        long second;
+        if (width == 64) {
+            first = Long.rotateRight(left, x);
+            if (!wrap) {
+                first &= -1L >>> x;
+            }
+            second = 0;
+        } else {
+            // Rotate the 128 bit row right by x, in two steps of at most 63
+            first = left;
+            second = 0;
+            if (x >= 64) {
+                first = 0;
+                second = left;
+            }
+            int shift = x & 63;
+            if (shift != 0) {
+                long carry = first << (64 - shift);
+                first = first >>> shift | second << (64 - shift);
+                second = second >>> shift | carry;
+            }
+            if (!wrap) {
+                first &= x >= 64 ? 0 : -1L >>> x;
+                second &= x >= 64 ? -1L >>> (x - 64) : -1L;
+            }
+        }
+        boolean collision = (words[index] & first | words[index + 1] & second) != 0;
+        words[index] ^= first;
+        words[index + 1] ^= second;
+        return collision;
+    }
+
+    /**
+     * Scroll planes down, filling the rows at the top with blank pixels.
+     *
+     * @param planeMask the planes to scroll, bit n for plane n
+     * @param rows the number of rows to scroll by
+     */
+    void scrollDown(int planeMask, int rows) {
+        for (int plane = 0; plane < planes; plane++) {
+            if ((planeMask & 1 << plane) != 0) {
+                int start = indexOf(plane, 0);
+                int shift = Math.min(rows, height) * WORDS_PER_ROW;
+                System.arraycopy(words, start, words, start + shift, height * WORDS_PER_ROW - shift);
+                Arrays.fill(words, start, start + shift, 0);
+            }
+        }
+    }
+
+    /**
+     * Scroll planes up, filling the rows at the bottom with blank pixels.
+     *
+     * @param planeMask the planes to scroll, bit n for plane n
+     * @param rows the number of rows to scroll by
+     */
+    void scrollUp(int planeMask, int rows) {
+        for (int plane = 0; plane < planes; plane++) {
+            if ((planeMask & 1 << plane) != 0) {
+                int start = indexOf(plane, 0);
+                int end = indexOf(plane, height);
+                int shift = Math.min(rows, height) * WORDS_PER_ROW;
+                System.arraycopy(words, start + shift, words, start, height * WORDS_PER_ROW - shift);
+                Arrays.fill(words, end - shift, end, 0);
+            }
+        }
+    }
+
+    /**
+     * Scroll planes right, filling the columns on the left with blank pixels.
+     *
+     * @param planeMask the planes to scroll, bit n for plane n
+     * @param columns the number of columns to scroll by, from 1 to 63
+     */
+    void scrollRight(int planeMask, int columns) {
+        for (int plane = 0; plane < planes; plane++) {
+            if ((planeMask & 1 << plane) != 0) {
+                for (int index = indexOf(plane, 0); index < indexOf(plane, height); index += WORDS_PER_ROW) {
+                    if (width == 64) {
+                        words[index] >>>= columns;
+                    } else {
+                        words[index + 1] = words[index + 1] >>> columns | words[index] << (64 - columns);
+                        words[index] >>>= columns;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Scroll planes left, filling the columns on the right with blank pixels.
+     *
+     * @param planeMask the planes to scroll, bit n for plane n
+     * @param columns the number of columns to scroll by, from 1 to 63
+     */
+    void scrollLeft(int planeMask, int columns) {
+        for (int plane = 0; plane < planes; plane++) {
+            if ((planeMask & 1 << plane) != 0) {
+                for (int index = indexOf(plane, 0); index < indexOf(plane, height); index += WORDS_PER_ROW) {
+                    if (width == 64) {
+                        words[index] <<= columns;
+                    } else {
+                        words[index] = words[index] << columns | words[index + 1] >>> (64 - columns);
+                        words[index + 1] <<= columns;
+                    }
+                }
+            }
+        }
+    }
+
+    private static int indexOf(int plane, int y) {
+        return (plane * MAX_HEIGHT + y) * WORDS_PER_ROW;
+    }
+}
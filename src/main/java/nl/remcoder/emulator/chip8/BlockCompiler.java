@@ -0,0 +1,596 @@
+package nl.remcoder.emulator.chip8;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static nl.remcoder.emulator.chip8.Instructions.*;
+
+/**
+ * Translates a basic block of CHIP-8 instructions into the class file of a {@link Jit.CompiledBlock}.
+ * <p>
+ * The generated {@code execute} method loads the registers the block works on into local variables, runs the block on
+ * those locals and writes the changed ones back once at the end, so the JVM can keep them in machine registers.
+ * Instructions that are too involved to be worth inlining (drawing, random numbers, BCD and the memory copies) are
+ * handed back to {@link CPU#executeStraightLine(int)}, with the locals written back before and loaded again after.
+ * <p>
+ * The generated code never branches: flags are computed with shifts and skips are resolved by a call to
+ * {@link Jit#skipIfEqual(int, int, int)} and friends. That keeps the class file simple enough to be written by hand,
+ * without stack map frames or a bytecode library.
+ */
+final class BlockCompiler {
+    static final String CLASS_NAME = "nl/remcoder/emulator/chip8/CompiledBlock";
+
+    private static final String CPU_CLASS = "nl/remcoder/emulator/chip8/CPU";
+    private static final String JIT_CLASS = "nl/remcoder/emulator/chip8/Jit";
+    private static final String COMPILED_BLOCK_INTERFACE = "nl/remcoder/emulator/chip8/Jit$CompiledBlock";
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD_0 = 0x2A;
+    private static final int ALOAD_1 = 0x2B;
+    private static final int ALOAD_2 = 0x2C;
+    private static final int IALOAD = 0x2E;
+    private static final int ISTORE = 0x36;
+    private static final int ASTORE_2 = 0x4D;
+    private static final int IASTORE = 0x4F;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int ISHL = 0x78;
+    private static final int ISHR = 0x7A;
+    private static final int IAND = 0x7E;
+    private static final int IOR = 0x80;
+    private static final int IXOR = 0x82;
+    private static final int RETURN = 0xB1;
+    private static final int GETFIELD = 0xB4;
+    private static final int PUTFIELD = 0xB5;
+    private static final int INVOKEVIRTUAL = 0xB6;
+    private static final int INVOKESPECIAL = 0xB7;
+    private static final int INVOKESTATIC = 0xB8;
+
+    private static final int LOCAL_CPU = 1;
+    private static final int LOCAL_REGISTERS = 2;
+    private static final int LOCAL_V0 = 3;
+    private static final int LOCAL_TEMP = LOCAL_V0 + 16;
+    private static final int MAX_LOCALS = LOCAL_TEMP + 1;
+    private static final int MAX_STACK = 8;
+
+    private final ConstantPool constantPool = new ConstantPool();
+    private final ByteVector code = new ByteVector();
+    private int usedRegisters;
+    private int dirtyRegisters;
+
+    private BlockCompiler() {
+    }
+
+    /**
+     * Generate the class file for a block.
+     *
+     * @param instructions the decoded instructions of the block, starting at index 0
+     * @param length the number of instructions in the block
+     * @param terminated true if the last instruction is a jump, call, return or skip that decides the next address
+     * @param end the address directly after the last instruction
+     * @param flagNeeded for every instruction, whether the value it writes to VF may be read later on
+     * @return the class file
+     */
+    static byte[] compile(int[] instructions, int length, boolean terminated, int end, boolean[] flagNeeded) {
+        return new BlockCompiler().generate(instructions, length, terminated, end, flagNeeded);
+    }
+
+    private byte[] generate(int[] instructions, int length, boolean terminated, int end, boolean[] flagNeeded) {
+        int bodyLength = terminated ? length - 1 : length;
+        for (int i = 0; i < length; i++) {
+            usedRegisters |= registersInLocals(instructions[i]);
+        }
+
+        code.u1(ALOAD_1);
+        getField("registers", "[I");
+        code.u1(ASTORE_2);
+        loadRegisters();
+        for (int i = 0; i < bodyLength; i++) {
+            compileInstruction(instructions[i], flagNeeded[i]);
+        }
+        storeRegisters();
+        if (terminated) {
+            compileTerminator(instructions[length - 1], end - 2);
+        } else {
+            code.u1(ALOAD_1);
+            pushInt(end & CPU.ADDRESS_MASK);
+            putField("pc", "I");
+        }
+        code.u1(RETURN);
+
+        return classFile();
+    }
+
+    /**
+     * @return a bit mask of the registers an instruction works on directly in the generated code
+     */
+    private static int registersInLocals(int instruction) {
+        int x = 1 << ((instruction >> 8) & 0xF);
+        int y = 1 << ((instruction >> 4) & 0xF);
+        return switch (instruction >>> 16) {
+            case OP_6XNN, OP_7XNN, OP_3XNN, OP_4XNN, OP_EX9E, OP_EXA1,
+                    OP_FX07, OP_FX15, OP_FX18, OP_FX1E, OP_FX29 -> x;
+            case OP_8XY0, OP_8XY1, OP_8XY2, OP_8XY3, OP_5XY0, OP_9XY0 -> x | y;
+            case OP_8XY4, OP_8XY5, OP_8XY6, OP_8XY7, OP_8XYE -> x | y | 1 << 0xF;
+            case OP_8XY6_VX, OP_8XYE_VX -> x | 1 << 0xF;
+            case OP_BNNN -> 1;
+            case OP_BXNN -> x;
+            default -> 0;
+        };
+    }
+
+    private void compileInstruction(int instruction, boolean flagNeeded) {
+        int x = (instruction >> 8) & 0xF;
+        int y = (instruction >> 4) & 0xF;
+        int nn = instruction & 0xFF;
+        int nnn = instruction & 0xFFF;
+        int operation = instruction >>> 16;
+        if (operation >= OP_8XY4 && operation <= OP_8XYE && (x == 0xF || y == 0xF)
+            || (operation == OP_8XY6_VX || operation == OP_8XYE_VX) && x == 0xF) {
+            // With VF as operand the order in which the result and the flag are written matters, leave that to the
+            // interpreter
+            delegate(instruction);
+            return;
+        }
+
+        switch (operation) {
+            case OP_NOP -> {
+            }
+            case OP_6XNN -> {
+                pushInt(nn);
+                storeRegister(x);
+            }
+            case OP_7XNN -> {
+                loadRegister(x);
+                pushInt(nn);
+                code.u1(IADD);
+                pushInt(0xFF);
+                code.u1(IAND);
+                storeRegister(x);
+            }
+            case OP_8XY0 -> {
+                loadRegister(y);
+                storeRegister(x);
+            }
+            case OP_8XY1 -> logical(x, y, IOR);
+            case OP_8XY2 -> logical(x, y, IAND);
+            case OP_8XY3 -> logical(x, y, IXOR);
+            case OP_8XY4 -> {
+                loadRegister(x);
+                loadRegister(y);
+                code.u1(IADD);
+                code.u1(ISTORE).u1(LOCAL_TEMP);
+                if (flagNeeded) {
+                    // The sum is at most 510, so bit 8 is the carry
+                    code.u1(ILOAD).u1(LOCAL_TEMP);
+                    pushInt(8);
+                    code.u1(ISHR);
+                    storeRegister(0xF);
+                }
+                code.u1(ILOAD).u1(LOCAL_TEMP);
+                pushInt(0xFF);
+                code.u1(IAND);
+                storeRegister(x);
+            }
+            case OP_8XY5 -> subtract(x, y, x, flagNeeded);
+            case OP_8XY7 -> subtract(y, x, x, flagNeeded);
+            case OP_8XY6 -> shiftRight(y, x, flagNeeded);
+            case OP_8XY6_VX -> shiftRight(x, x, flagNeeded);
+            case OP_8XYE -> shiftLeft(y, x, flagNeeded);
+            case OP_8XYE_VX -> shiftLeft(x, x, flagNeeded);
+            case OP_ANNN -> {
+                code.u1(ALOAD_1);
+                pushInt(nnn);
+                putField("I", "I");
+            }
+            case OP_FX07 -> {
+                code.u1(ALOAD_1);
+                getField("delay_timer", "I");
+                storeRegister(x);
+            }
+            case OP_FX15 -> {
+                code.u1(ALOAD_1);
+                loadRegister(x);
+                putField("delay_timer", "I");
+            }
+            case OP_FX18 -> {
+                code.u1(ALOAD_1);
+                loadRegister(x);
+                putField("sound_timer", "I");
+            }
+            case OP_FX1E -> {
+                code.u1(ALOAD_1);
+                code.u1(ALOAD_1);
+                getField("I", "I");
+                loadRegister(x);
+                code.u1(IADD);
+                putField("I", "I");
+            }
+            case OP_FX29 -> {
+                code.u1(ALOAD_1);
+                loadRegister(x);
+                pushInt(5);
+                code.u1(IMUL);
+                putField("I", "I");
+            }
+            default -> delegate(instruction);
+        }
+    }
+
+    private void logical(int x, int y, int bytecode) {
+        loadRegister(x);
+        loadRegister(y);
+        code.u1(bytecode);
+        storeRegister(x);
+    }
+
+    private void subtract(int minuend, int subtrahend, int target, boolean flagNeeded) {
+        loadRegister(minuend);
+        loadRegister(subtrahend);
+        code.u1(ISUB);
+        code.u1(ISTORE).u1(LOCAL_TEMP);
+        if (flagNeeded) {
+            // The difference is negative when a borrow occurs, so its sign plus one is the flag
+            code.u1(ILOAD).u1(LOCAL_TEMP);
+            pushInt(31);
+            code.u1(ISHR);
+            pushInt(1);
+            code.u1(IADD);
+            storeRegister(0xF);
+        }
+        code.u1(ILOAD).u1(LOCAL_TEMP);
+        pushInt(0xFF);
+        code.u1(IAND);
+        storeRegister(target);
+    }
+
+    private void shiftRight(int source, int target, boolean flagNeeded) {
+        if (flagNeeded) {
+            loadRegister(source);
+            pushInt(1);
+            code.u1(IAND);
+            storeRegister(0xF);
+        }
+        loadRegister(source);
+        pushInt(1);
+        code.u1(ISHR);
+        storeRegister(target);
+    }
+
+    private void shiftLeft(int source, int target, boolean flagNeeded) {
+        if (flagNeeded) {
+            loadRegister(source);
+            pushInt(7);
+            code.u1(ISHR);
+            pushInt(1);
+            code.u1(IAND);
+            storeRegister(0xF);
+        }
+        loadRegister(source);
+        pushInt(1);
+        code.u1(ISHL);
+        pushInt(0xFF);
+        code.u1(IAND);
+        storeRegister(target);
+    }
+
+    private void delegate(int instruction) {
+        storeRegisters();
+        code.u1(ALOAD_1);
+        pushInt(instruction);
+        code.u1(INVOKEVIRTUAL).u2(constantPool.methodref(CPU_CLASS, "executeStraightLine", "(I)V"));
+        loadRegisters();
+    }
+
+    private void compileTerminator(int instruction, int address) {
+        int x = (instruction >> 8) & 0xF;
+        int y = (instruction >> 4) & 0xF;
+        int nn = instruction & 0xFF;
+        int nnn = instruction & 0xFFF;
+
+        switch (instruction >>> 16) {
+            case OP_00EE -> {
+                // pc = (stack[sp--] + 2) & 0xFFF
+                code.u1(ALOAD_1);
+                code.u1(ALOAD_1);
+                getField("stack", "[I");
+                code.u1(ALOAD_1);
+                getField("sp", "I");
+                code.u1(IALOAD);
+                pushInt(2);
+                code.u1(IADD);
+                pushInt(CPU.ADDRESS_MASK);
+                code.u1(IAND);
+                putField("pc", "I");
+                addToStackPointer(-1);
+            }
+            case OP_1NNN -> {
+                code.u1(ALOAD_1);
+                pushInt(nnn);
+                putField("pc", "I");
+            }
+            case OP_2NNN -> {
+                // stack[++sp] = address; pc = nnn
+                addToStackPointer(1);
+                code.u1(ALOAD_1);
+                getField("stack", "[I");
+                code.u1(ALOAD_1);
+                getField("sp", "I");
+                pushInt(address);
+                code.u1(IASTORE);
+                code.u1(ALOAD_1);
+                pushInt(nnn);
+                putField("pc", "I");
+            }
+            case OP_BNNN -> {
+                code.u1(ALOAD_1);
+                pushInt(nnn);
+                loadRegister(0);
+                code.u1(IADD);
+                pushInt(CPU.ADDRESS_MASK);
+                code.u1(IAND);
+                putField("pc", "I");
+            }
+            case OP_BXNN -> {
+                code.u1(ALOAD_1);
+                pushInt(nnn);
+                loadRegister(x);
+                code.u1(IADD);
+                pushInt(CPU.ADDRESS_MASK);
+                code.u1(IAND);
+                putField("pc", "I");
+            }
+            case OP_3XNN -> skip("skipIfEqual", () -> loadRegister(x), () -> pushInt(nn), address);
+            case OP_4XNN -> skip("skipIfNotEqual", () -> loadRegister(x), () -> pushInt(nn), address);
+            case OP_5XY0 -> skip("skipIfEqual", () -> loadRegister(x), () -> loadRegister(y), address);
+            case OP_9XY0 -> skip("skipIfNotEqual", () -> loadRegister(x), () -> loadRegister(y), address);
+            case OP_EX9E -> skip("skipIfEqual", () -> loadKey(x), () -> pushInt(1), address);
+            case OP_EXA1 -> skip("skipIfNotEqual", () -> loadKey(x), () -> pushInt(1), address);
+            default -> throw new IllegalArgumentException("Not a block terminator: " + Integer.toHexString(instruction));
+        }
+    }
+
+    private void skip(String helper, Runnable left, Runnable right, int address) {
+        code.u1(ALOAD_1);
+        left.run();
+        right.run();
+        pushInt(address);
+        code.u1(INVOKESTATIC).u2(constantPool.methodref(JIT_CLASS, helper, "(III)I"));
+        putField("pc", "I");
+    }
+
+    /**
+     * Push 1 if the key in the lowest nibble of the register is held down, 0 if it is not.
+     */
+    private void loadKey(int register) {
+        code.u1(ALOAD_1);
+        getField("keys", "I");
+        loadRegister(register);
+        pushInt(0xF);
+        code.u1(IAND);
+        code.u1(ISHR);
+        pushInt(1);
+        code.u1(IAND);
+    }
+
+    private void addToStackPointer(int delta) {
+        code.u1(ALOAD_1);
+        code.u1(ALOAD_1);
+        getField("sp", "I");
+        pushInt(delta);
+        code.u1(IADD);
+        putField("sp", "I");
+    }
+
+    private void loadRegisters() {
+        for (int register = 0; register < 16; register++) {
+            if ((usedRegisters & 1 << register) != 0) {
+                code.u1(ALOAD_2);
+                pushInt(register);
+                code.u1(IALOAD);
+                code.u1(ISTORE).u1(LOCAL_V0 + register);
+            }
+        }
+        dirtyRegisters = 0;
+    }
+
+    private void storeRegisters() {
+        for (int register = 0; register < 16; register++) {
+            if ((dirtyRegisters & 1 << register) != 0) {
+                code.u1(ALOAD_2);
+                pushInt(register);
+                code.u1(ILOAD).u1(LOCAL_V0 + register);
+                code.u1(IASTORE);
+            }
+        }
+        dirtyRegisters = 0;
+    }
+
+    private void loadRegister(int register) {
+        code.u1(ILOAD).u1(LOCAL_V0 + register);
+    }
+
+    private void storeRegister(int register) {
+        code.u1(ISTORE).u1(LOCAL_V0 + register);
+        dirtyRegisters |= 1 << register;
+    }
+
+    private void getField(String name, String descriptor) {
+        code.u1(GETFIELD).u2(constantPool.fieldref(CPU_CLASS, name, descriptor));
+    }
+
+    private void putField(String name, String descriptor) {
+        code.u1(PUTFIELD).u2(constantPool.fieldref(CPU_CLASS, name, descriptor));
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            code.u1(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.u1(BIPUSH).u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.u1(SIPUSH).u2(value);
+        } else {
+            code.u1(LDC_W).u2(constantPool.integer(value));
+        }
+    }
+
+    private byte[] classFile() {
+        int thisClass = constantPool.classref(CLASS_NAME);
+        int superClass = constantPool.classref("java/lang/Object");
+        int compiledBlockInterface = constantPool.classref(COMPILED_BLOCK_INTERFACE);
+        int objectConstructor = constantPool.methodref("java/lang/Object", "<init>", "()V");
+        int constructorName = constantPool.utf8("<init>");
+        int constructorDescriptor = constantPool.utf8("()V");
+        int executeName = constantPool.utf8("execute");
+        int executeDescriptor = constantPool.utf8("(L" + CPU_CLASS + ";)V");
+        int codeAttribute = constantPool.utf8("Code");
+
+        ByteVector constructorCode = new ByteVector();
+        constructorCode.u1(ALOAD_0).u1(INVOKESPECIAL).u2(objectConstructor).u1(RETURN);
+
+        ByteVector classFile = new ByteVector();
+        classFile.u4(0xCAFEBABE).u2(0).u2(52);
+        constantPool.writeTo(classFile);
+        classFile.u2(ACC_FINAL | ACC_SUPER).u2(thisClass).u2(superClass);
+        classFile.u2(1).u2(compiledBlockInterface);
+        classFile.u2(0);
+        classFile.u2(2);
+        writeMethod(classFile, ACC_PUBLIC, constructorName, constructorDescriptor, codeAttribute, 1, 1,
+                    constructorCode);
+        writeMethod(classFile, ACC_PUBLIC, executeName, executeDescriptor, codeAttribute, MAX_STACK, MAX_LOCALS, code);
+        classFile.u2(0);
+        return classFile.toByteArray();
+    }
+
+    private static void writeMethod(ByteVector classFile, int access, int name, int descriptor, int codeAttribute,
+                                    int maxStack, int maxLocals, ByteVector code) {
+        classFile.u2(access).u2(name).u2(descriptor);
+        classFile.u2(1);
+        classFile.u2(codeAttribute).u4(12 + code.length());
+        classFile.u2(maxStack).u2(maxLocals);
+        classFile.u4(code.length()).bytes(code);
+        classFile.u2(0);
+        classFile.u2(0);
+    }
+
+    private static final class ConstantPool {
+        private static final int CONSTANT_UTF8 = 1;
+        private static final int CONSTANT_INTEGER = 3;
+        private static final int CONSTANT_CLASS = 7;
+        private static final int CONSTANT_FIELDREF = 9;
+        private static final int CONSTANT_METHODREF = 10;
+        private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+        private final ByteVector entries = new ByteVector();
+        private final Map<String, Integer> indices = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            return indexOf("U" + value, () -> entries.u1(CONSTANT_UTF8).utf8(value));
+        }
+
+        int integer(int value) {
+            return indexOf("I" + value, () -> entries.u1(CONSTANT_INTEGER).u4(value));
+        }
+
+        int classref(String internalName) {
+            int name = utf8(internalName);
+            return indexOf("C" + internalName, () -> entries.u1(CONSTANT_CLASS).u2(name));
+        }
+
+        int fieldref(String owner, String name, String descriptor) {
+            return memberref(CONSTANT_FIELDREF, owner, name, descriptor);
+        }
+
+        int methodref(String owner, String name, String descriptor) {
+            return memberref(CONSTANT_METHODREF, owner, name, descriptor);
+        }
+
+        private int memberref(int tag, String owner, String name, String descriptor) {
+            int ownerClass = classref(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            int nameAndType = indexOf("N" + name + ":" + descriptor,
+                                      () -> entries.u1(CONSTANT_NAME_AND_TYPE).u2(nameIndex).u2(descriptorIndex));
+            return indexOf(tag + owner + "." + name + ":" + descriptor,
+                           () -> entries.u1(tag).u2(ownerClass).u2(nameAndType));
+        }
+
+        private int indexOf(String key, Runnable writer) {
+            Integer index = indices.get(key);
+            if (index == null) {
+                writer.run();
+                index = count++;
+                indices.put(key, index);
+            }
+            return index;
+        }
+
+        void writeTo(ByteVector classFile) {
+            classFile.u2(count).bytes(entries);
+        }
+    }
+
+    private static final class ByteVector {
+        private byte[] data = new byte[256];
+        private int length;
+
+        ByteVector u1(int value) {
+            ensureCapacity(1);
+            data[length++] = (byte) value;
+            return this;
+        }
+
+        ByteVector u2(int value) {
+            return u1(value >> 8).u1(value);
+        }
+
+        ByteVector u4(int value) {
+            return u2(value >> 16).u2(value);
+        }
+
+        ByteVector utf8(String value) {
+            // Only plain ASCII names and descriptors end up in these class files
+            u2(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                u1(value.charAt(i));
+            }
+            return this;
+        }
+
+        ByteVector bytes(ByteVector other) {
+            ensureCapacity(other.length);
+            System.arraycopy(other.data, 0, data, length, other.length);
+            length += other.length;
+            return this;
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[length];
+            System.arraycopy(data, 0, result, 0, length);
+            return result;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > data.length) {
+                byte[] grown = new byte[Math.max(data.length * 2, length + extra)];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+        }
+    }
+}
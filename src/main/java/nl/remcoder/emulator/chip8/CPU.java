@@ -1,23 +1,45 @@
 package nl.remcoder.emulator.chip8;
 
+import java.util.Arrays;
 import java.util.Random;
 
+import static nl.remcoder.emulator.chip8.Instructions.*;
+
 public class CPU {
+    static final int MEMORY_SIZE = 4096;
+    static final int ADDRESS_MASK = MEMORY_SIZE - 1;
+    static final int BIG_FONT_ADDRESS = 0x50;
+
+    private Mode mode = Mode.CHIP8;
+    private QuirkProfile quirks = Mode.CHIP8.quirks;
     private int opcode = 0;
-    private int[] memory = new int[4096];
-    private int[] registers = new int[16];
-    private int I = 0;
-    private int pc = 0;
-    private boolean[][] graphics = new boolean[32][64];
-    private int delay_timer = 0;
-    private int sound_timer = 0;
-    private int[] stack = new int[16];
-    private int sp = 0;
-    private int key = -1;
-
-    private final Random random = new Random();
-    
-    private final int[] chip8_fontset =
+    byte[] memory = new byte[MEMORY_SIZE];
+    private int[] decodedInstructions = new int[MEMORY_SIZE];
+    private int addressMask = ADDRESS_MASK;
+    final int[] registers = new int[16];
+    int I = 0;
+    int pc = 0;
+    private final Bitplanes display = new Bitplanes();
+    private long dirtyRows = LORES_ROWS;
+    private int planeMask = 1;
+    final int[] flags = new int[16];
+    final byte[] audioPattern = new byte[16];
+    int pitch = 64;
+    int delay_timer = 0;
+    int sound_timer = 0;
+    final int[] stack = new int[16];
+    int sp = 0;
+    int keys = 0;
+
+    private Jit jit;
+    int[] operationCounts;
+
+    private static final long LORES_ROWS = 0xFFFFFFFFL;
+    private static final long HIRES_ROWS = -1L;
+
+    private final Random random;
+
+    private static final int[] chip8_fontset =
             {
                     0xF0, 0x90, 0x90, 0x90, 0xF0, // 0
                     0x20, 0x60, 0x20, 0x20, 0x70, // 1
@@ -37,104 +59,299 @@ public class CPU {
                     0xF0, 0x80, 0xF0, 0x80, 0x80  // F
             };
 
+    private static final int[] schip_fontset =
+            {
+                    0x3C, 0x7E, 0xE7, 0xC3, 0xC3, 0xC3, 0xC3, 0xE7, 0x7E, 0x3C, // 0
+                    0x18, 0x38, 0x58, 0x18, 0x18, 0x18, 0x18, 0x18, 0x18, 0x3C, // 1
+                    0x3E, 0x7F, 0xC3, 0x06, 0x0C, 0x18, 0x30, 0x60, 0xFF, 0xFF, // 2
+                    0x3C, 0x7E, 0xC3, 0x03, 0x0E, 0x0E, 0x03, 0xC3, 0x7E, 0x3C, // 3
+                    0x06, 0x0E, 0x1E, 0x36, 0x66, 0xC6, 0xFF, 0xFF, 0x06, 0x06, // 4
+                    0xFF, 0xFF, 0xC0, 0xC0, 0xFC, 0xFE, 0x03, 0xC3, 0x7E, 0x3C, // 5
+                    0x3E, 0x7C, 0xE0, 0xC0, 0xFC, 0xFE, 0xC3, 0xC3, 0x7E, 0x3C, // 6
+                    0xFF, 0xFF, 0x03, 0x06, 0x0C, 0x18, 0x30, 0x60, 0x60, 0x60, // 7
+                    0x3C, 0x7E, 0xC3, 0xC3, 0x7E, 0x7E, 0xC3, 0xC3, 0x7E, 0x3C, // 8
+                    0x3C, 0x7E, 0xC3, 0xC3, 0x7F, 0x3F, 0x03, 0x03, 0x3E, 0x7C, // 9
+                    0x7E, 0xFF, 0xC3, 0xC3, 0xC3, 0xFF, 0xFF, 0xC3, 0xC3, 0xC3, // A
+                    0xFE, 0xFF, 0xC3, 0xFE, 0xFE, 0xC3, 0xC3, 0xC3, 0xFF, 0xFE, // B
+                    0x3C, 0xFF, 0xC3, 0xC0, 0xC0, 0xC0, 0xC0, 0xC3, 0xFF, 0x3C, // C
+                    0xFC, 0xFE, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xC3, 0xFE, 0xFC, // D
+                    0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, // E
+                    0xFF, 0xFF, 0xC0, 0xC0, 0xFF, 0xFF, 0xC0, 0xC0, 0xC0, 0xC0  // F
+            };
+
+    public CPU() {
+        this(new Random());
+    }
+
+    CPU(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Switch to another machine, with the quirks of that machine, and reset. Memory is only reallocated when its size
+     * changes.
+     *
+     * @param mode the machine to emulate
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+        this.quirks = mode.quirks;
+        if (memory.length != mode.memorySize) {
+            memory = new byte[mode.memorySize];
+            decodedInstructions = new int[mode.memorySize];
+            addressMask = mode.memorySize - 1;
+        }
+        reset();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the planes drawing works on, bit 0 for plane 0 and bit 1 for plane 1
+     */
+    int getPlaneMask() {
+        return planeMask;
+    }
+
+    /**
+     * Run the ambiguous instructions like the given interpreter did. Everything decoded so far is thrown away, so this
+     * takes effect at the next instruction.
+     *
+     * @param quirks the profile to run with
+     */
+    public void setQuirks(QuirkProfile quirks) {
+        this.quirks = quirks;
+        invalidateCode(0, memory.length);
+    }
+
+    public QuirkProfile getQuirks() {
+        return quirks;
+    }
+
+    /**
+     * Reset the CPU to its power-on state. Everything is cleared in place, so resetting does not allocate. The
+     * SUPER-CHIP flag registers survive a reset, like they survive a power cycle on an HP-48.
+     */
     public void reset() {
         pc = 0x200;
         opcode = 0;      // Reset current opcode
         I = 0;      // Reset index register
         sp = 0;      // Reset stack pointer
-        graphics = new boolean[32][64];
-        stack = new int[16];
-        registers = new int[16];
-        memory = new int[4096];
+        delay_timer = 0;
+        sound_timer = 0;
+        display.setPlanes(mode.planes);
+        display.setResolution(64, 32);
+        dirtyRows = LORES_ROWS;
+        planeMask = 1;
+        pitch = 64;
+        Arrays.fill(audioPattern, (byte) 0);
+        Arrays.fill(stack, 0);
+        Arrays.fill(registers, 0);
+        Arrays.fill(memory, (byte) 0);
 
-        System.arraycopy(chip8_fontset, 0, memory, 0, 80);
+        for (int i = 0; i < chip8_fontset.length; i++) {
+            memory[i] = (byte) chip8_fontset[i];
+        }
+        if (mode != Mode.CHIP8) {
+            for (int i = 0; i < schip_fontset.length; i++) {
+                memory[BIG_FONT_ADDRESS + i] = (byte) schip_fontset[i];
+            }
+        }
+        invalidateCode(0, memory.length);
     }
 
+    /**
+     * Copy a ROM image into memory at address 0x200.
+     *
+     * @param romdata the raw ROM image
+     * @throws IllegalArgumentException if the ROM does not fit in memory
+     */
     public void loadRom(byte[] romdata) {
-        for (int i = 0, j = 0x200; i < romdata.length; i++, j++) {
-            memory[j] = romdata[i] & 0xFF;
+        if (romdata.length > memory.length - 0x200) {
+            throw new IllegalArgumentException("ROM of " + romdata.length + " bytes does not fit in memory");
         }
+        System.arraycopy(romdata, 0, memory, 0x200, romdata.length);
+        invalidateCode(0x200, romdata.length);
     }
 
     public void emulateCycle() {
-        fetchOpcode();
+        int instruction = decodedInstructions[pc];
+        if (instruction == NOT_DECODED) {
+            instruction = decodeInstructionAt(pc);
+        }
+        opcode = instruction & 0xFFFF;
+        if (operationCounts != null) {
+            operationCounts[instruction >>> 16]++;
+        }
 
-        switch (opcode >> 12) {
-            case (0x0) -> {
-                handleCase0();
-                pc += 2;
-            }
-            case (0x1) -> jumpToAddress();
-            case (0x2) -> callSubRoutine();
-            case (0x3) -> {
-                skipNextInstructionIfVXEqualsNN();
-                pc += 2;
+        switch (instruction >>> 16) {
+            case OP_00E0 -> clearScreen();
+            case OP_00EE -> returnFromSubroutine();
+            case OP_1NNN -> {
+                jumpToAddress();
+                return;
             }
-            case (0x4) -> {
-                skipNextInstructionIfVXNotEqualsNN();
-                pc += 2;
+            case OP_2NNN -> {
+                callSubRoutine();
+                return;
             }
-            case (0x5) -> {
-                skipNextInstructionIfVXEqualsVY();
-                pc += 2;
-            }
-            case (0x6) -> {
-                setVXToNN();
-                pc += 2;
-            }
-            case (0x7) -> {
-                addNNToVX();
-                pc += 2;
-            }
-            case (0x8) -> {
-                handleCase8();
-                pc += 2;
-            }
-            case (0x9) -> {
-                skipNextInstructionIfVXNotEequalsVY();
-                pc += 2;
-            }
-            case (0xA) -> {
-                setIndexRegister();
-                pc += 2;
-            }
-            case (0xB) -> {
+            case OP_3XNN -> skipNextInstructionIfVXEqualsNN();
+            case OP_4XNN -> skipNextInstructionIfVXNotEqualsNN();
+            case OP_5XY0 -> skipNextInstructionIfVXEqualsVY();
+            case OP_6XNN -> setVXToNN();
+            case OP_7XNN -> addNNToVX();
+            case OP_8XY0 -> setVXtoVY();
+            case OP_8XY1 -> setVXtoVXorVY();
+            case OP_8XY2 -> setVXtoVXandVY();
+            case OP_8XY3 -> setVXtoVXxorVY();
+            case OP_8XY4 -> addVYtoVX();
+            case OP_8XY5 -> subtractVYfromVX();
+            case OP_8XY6 -> rightShiftVX();
+            case OP_8XY6_VX -> rightShiftVXInPlace();
+            case OP_8XY7 -> subtractVXfromVY();
+            case OP_8XYE -> leftShiftVX();
+            case OP_8XYE_VX -> leftShiftVXInPlace();
+            case OP_9XY0 -> skipNextInstructionIfVXNotEequalsVY();
+            case OP_ANNN -> setIndexRegister();
+            case OP_BNNN -> {
                 jumpToNNNPlusV0();
-                pc += 2;
+                return;
             }
-            case (0xC) -> {
-                setVXToRandAndNN();
-                pc += 2;
+            case OP_BXNN -> {
+                jumpToNNNPlusVX();
+                return;
             }
-            case (0xD) -> {
-                drawVXVY();
-                pc += 2;
-            }
-            case (0xE) -> {
-                handleCaseE();
-                pc += 2;
+            case OP_CXNN -> setVXToRandAndNN();
+            case OP_DXYN -> drawVXVY(true);
+            case OP_DXYN_CLIP -> drawVXVY(false);
+            case OP_EX9E -> skipNextInstructionIfKeyVXPressed();
+            case OP_EXA1 -> skipNextInstructionIfKeyVXNotPressed();
+            case OP_FX07 -> storeDelayTimerInVX();
+            case OP_FX0A -> waitForKeyPressAndStoreInVX();
+            case OP_FX15 -> setDelayTimerToVX();
+            case OP_FX18 -> setSoundTimerToVX();
+            case OP_FX1E -> addVXToI();
+            case OP_FX29 -> setIToLocationOfValueInVX();
+            case OP_FX33 -> storeBCDInVXToMemory();
+            case OP_FX55 -> storeV0ThroughVXInMemory();
+            case OP_FX65 -> readMemoryIntoV0ThroughVX();
+            case OP_FX55_KEEP_I -> storeV0ThroughVXInMemoryKeepingI();
+            case OP_FX65_KEEP_I -> readMemoryIntoV0ThroughVXKeepingI();
+            case OP_00CN -> scrollDownN();
+            case OP_00DN -> scrollUpN();
+            case OP_00FB -> scrollRight();
+            case OP_00FC -> scrollLeft();
+            case OP_00FD -> exit();
+            case OP_00FE -> setResolution(64, 32);
+            case OP_00FF -> setResolution(128, 64);
+            case OP_5XY2 -> storeVXThroughVYInMemory();
+            case OP_5XY3 -> readMemoryIntoVXThroughVY();
+            case OP_F000 -> setIndexRegisterToLongAddress();
+            case OP_FN01 -> selectPlanes();
+            case OP_F002 -> loadAudioPattern();
+            case OP_FX30 -> setIToLocationOfBigValueInVX();
+            case OP_FX3A -> setPitchToVX();
+            case OP_FX75 -> storeV0ThroughVXInFlags();
+            case OP_FX85 -> readFlagsIntoV0ThroughVX();
+            default -> {
             }
-            case (0xF) -> {
-                handleCaseF();
-                pc += 2;
+        }
+        // Running past the end of memory continues at the start, like every other address
+        pc = (pc + 2) & addressMask;
+    }
+
+    /**
+     * Decode the instruction at the given address and store it in the decoded instruction table, so the next time the
+     * program counter reaches this address the memory does not have to be fetched and decoded again.
+     *
+     * @param address the address of the instruction
+     * @return the decoded instruction
+     */
+    private int decodeInstructionAt(int address) {
+        int instruction = Instructions.decode((memory[address] & 0xFF) << 8
+                                                      | memory[(address + 1) & addressMask] & 0xFF, mode, quirks);
+        decodedInstructions[address] = instruction;
+        return instruction;
+    }
+
+    /**
+     * Execute a single instruction on behalf of a compiled block. Only instructions that leave the program counter
+     * alone are passed in here, the block takes care of the program counter itself.
+     *
+     * @param instruction the decoded instruction
+     */
+    void executeStraightLine(int instruction) {
+        opcode = instruction & 0xFFFF;
+
+        switch (instruction >>> 16) {
+            case OP_00E0 -> clearScreen();
+            case OP_6XNN -> setVXToNN();
+            case OP_7XNN -> addNNToVX();
+            case OP_8XY0 -> setVXtoVY();
+            case OP_8XY1 -> setVXtoVXorVY();
+            case OP_8XY2 -> setVXtoVXandVY();
+            case OP_8XY3 -> setVXtoVXxorVY();
+            case OP_8XY4 -> addVYtoVX();
+            case OP_8XY5 -> subtractVYfromVX();
+            case OP_8XY6 -> rightShiftVX();
+            case OP_8XY6_VX -> rightShiftVXInPlace();
+            case OP_8XY7 -> subtractVXfromVY();
+            case OP_8XYE -> leftShiftVX();
+            case OP_8XYE_VX -> leftShiftVXInPlace();
+            case OP_ANNN -> setIndexRegister();
+            case OP_CXNN -> setVXToRandAndNN();
+            case OP_DXYN -> drawVXVY(true);
+            case OP_DXYN_CLIP -> drawVXVY(false);
+            case OP_FX07 -> storeDelayTimerInVX();
+            case OP_FX15 -> setDelayTimerToVX();
+            case OP_FX18 -> setSoundTimerToVX();
+            case OP_FX1E -> addVXToI();
+            case OP_FX29 -> setIToLocationOfValueInVX();
+            case OP_FX33 -> storeBCDInVXToMemory();
+            case OP_FX55 -> storeV0ThroughVXInMemory();
+            case OP_FX65 -> readMemoryIntoV0ThroughVX();
+            case OP_FX55_KEEP_I -> storeV0ThroughVXInMemoryKeepingI();
+            case OP_FX65_KEEP_I -> readMemoryIntoV0ThroughVXKeepingI();
+            default -> {
             }
         }
     }
 
-    private void handleCaseF() {
-        switch (opcode & 0xFF) {
-            case 0x07 -> storeDelayTimerInVX();
-            case 0x0A -> waitForKeyPressAndStoreInVX();
-            case 0x15 -> setDelayTimerToVX();
-            case 0x18 -> setSoundTimerToVX();
-            case 0x1E -> addVXToI();
-            case 0x29 -> setIToLocationOfValueInVX();
-            case 0x33 -> storeBCDInVXToMemory();
-            case 0x55 -> storeV0ThroughVXInMemory();
-            case 0x65 -> readMemoryIntoV0ThroughVX();
+    /**
+     * Invalidate the decoded instructions and compiled blocks that overlap the given memory range, because the program
+     * has written to it. An instruction is two bytes long, so the instruction starting one byte before the range is
+     * invalidated as well. A range running past the end of memory continues at address 0.
+     *
+     * @param from the first address that was written
+     * @param length the number of bytes that were written
+     */
+    private void invalidateCode(int from, int length) {
+        from &= addressMask;
+        if (from + length > memory.length) {
+            invalidateCode(0, from + length - memory.length);
+            length = memory.length - from;
+        }
+        Arrays.fill(decodedInstructions, Math.max(from - 1, 0), from + length, NOT_DECODED);
+        if (jit != null) {
+            jit.invalidate(from, length);
         }
     }
 
+    /**
+     * Called after the state of the CPU was replaced as a whole, for instance by loading a savestate. Everything
+     * derived from memory is thrown away and the whole screen counts as changed.
+     */
+    void stateRestored() {
+        invalidateCode(0, memory.length);
+        dirtyRows = LORES_ROWS;
+    }
+
+    void setJit(Jit jit) {
+        this.jit = jit;
+    }
+
     /**
      * Opcode FX65
      * Fill registers V0 to VX inclusive with the values stored in memory starting at address I
@@ -148,11 +365,26 @@ public class CPU {
     private void readMemoryIntoV0ThroughVX() {
         int VX = (opcode >> 8) & 0xF;
 
-        System.arraycopy(memory, I, registers, 0, VX + 1);
+        for (int i = 0; i <= VX; i++) {
+            registers[i] = memory[(I + i) & addressMask] & 0xFF;
+        }
 
         I += VX + 1;
     }
 
+    /**
+     * Opcode FX65 with the SUPER-CHIP quirk
+     * Fill registers V0 to VX inclusive with the values stored in memory starting at address I
+     * I is unchanged
+     */
+    private void readMemoryIntoV0ThroughVXKeepingI() {
+        int VX = (opcode >> 8) & 0xF;
+
+        for (int i = 0; i <= VX; i++) {
+            registers[i] = memory[(I + i) & addressMask] & 0xFF;
+        }
+    }
+
     /**
      * Opcode FX55
      * Store the values of registers V0 to VX inclusive in memory starting at address I
@@ -166,11 +398,28 @@ public class CPU {
     private void storeV0ThroughVXInMemory() {
         int VX = (opcode >> 8) & 0xF;
 
-        System.arraycopy(registers, 0, memory, I, VX + 1);
+        for (int i = 0; i <= VX; i++) {
+            memory[(I + i) & addressMask] = (byte) registers[i];
+        }
+        invalidateCode(I, VX + 1);
 
         I += VX + 1;
     }
 
+    /**
+     * Opcode FX55 with the SUPER-CHIP quirk
+     * Store the values of registers V0 to VX inclusive in memory starting at address I
+     * I is unchanged
+     */
+    private void storeV0ThroughVXInMemoryKeepingI() {
+        int VX = (opcode >> 8) & 0xF;
+
+        for (int i = 0; i <= VX; i++) {
+            memory[(I + i) & addressMask] = (byte) registers[i];
+        }
+        invalidateCode(I, VX + 1);
+    }
+
     /**
      * Opcode FX33
      * Store the binary-coded decimal equivalent of the value stored in register VX at addresses I, I + 1, and I + 2
@@ -182,9 +431,10 @@ public class CPU {
         int VX = (opcode >> 8) & 0xF;
         int value = registers[VX];
 
-        memory[I] = value / 100; // 100 digit
-        memory[I + 1] = (value % 100) / 10; // 10 digit
-        memory[I + 2] = value % 10; // 1 digit
+        memory[I & addressMask] = (byte) (value / 100); // 100 digit
+        memory[(I + 1) & addressMask] = (byte) ((value % 100) / 10); // 10 digit
+        memory[(I + 2) & addressMask] = (byte) (value % 10); // 1 digit
+        invalidateCode(I, 3);
     }
 
     /**
@@ -237,12 +487,13 @@ public class CPU {
      * Wait for a keypress and store the result in register VX
      * <p>
      * Check if a key is pressed, if it is store the value of the key pressed in register VX, if it is not,
-     * wait until it is. We do this by decrementing the program counter so.
+     * wait until it is. We do this by decrementing the program counter so. When several keys are held, the lowest
+     * one is stored.
      */
     private void waitForKeyPressAndStoreInVX() {
         if (isAnyKeyPressed()) {
             int VX = (opcode >> 8) & 0xF;
-            registers[VX] = key;
+            registers[VX] = Integer.numberOfTrailingZeros(keys);
         } else {
             pc -= 2;
         }
@@ -253,7 +504,7 @@ public class CPU {
      * @return true if a key is pressed, false if not
      */
     private boolean isAnyKeyPressed() {
-        return key >= 0;
+        return keys != 0;
     }
 
     /**
@@ -267,13 +518,6 @@ public class CPU {
         registers[VX] = delay_timer;
     }
 
-    private void handleCaseE() {
-        switch (opcode & 0xFF) {
-            case 0x9E -> skipNextInstructionIfKeyVXPressed();
-            case 0xA1 -> skipNextInstructionIfKeyVXNotPressed();
-        }
-    }
-
     /**
      * Opcode EXA1
      * Skip the following instruction if the key corresponding to the hex value currently stored in register VX is pressed
@@ -282,7 +526,7 @@ public class CPU {
      */
     private void skipNextInstructionIfKeyVXNotPressed() {
         if (!isKeyVXPressed()) {
-            pc += 2;
+            skipNextInstruction();
         }
     }
 
@@ -294,17 +538,18 @@ public class CPU {
      */
     private void skipNextInstructionIfKeyVXPressed() {
         if (isKeyVXPressed()) {
-            pc += 2;
+            skipNextInstruction();
         }
     }
 
     /**
-     * Check if the key designated by the value in register VX is pressed.
+     * Check if the key designated by the value in register VX is pressed. Like on the COSMAC VIP, only the lowest
+     * nibble of VX is looked at.
      * @return true if the key is pressed, false if it is not
      */
     private boolean isKeyVXPressed() {
         int VX = (opcode >> 8) & 0xF;
-        return key == registers[VX];
+        return (keys >> (registers[VX] & 0xF) & 1) != 0;
     }
 
     /**
@@ -314,69 +559,82 @@ public class CPU {
      * <p>
      * Take the sprite data stored in the memory at the address at index I for a length of N bytes and draw this sprite
      * on screen at position VX, VY.
+     * <p>
+     * A row of the 64 pixel wide screen is a single word of plane 0, so every row of the sprite is moved into place with
+     * one shift, XORed onto the screen in one go, and a pixel that is switched off shows up in the AND of the sprite and
+     * the screen.
+     * <p>
+     * Sprites that run over the edge of the screen wrap around to the other side, or are cut off with the COSMAC VIP,
+     * CHIP-48 and SUPER-CHIP quirk. Only the position wraps then.
+     *
+     * @param wrap true to wrap sprites around the edges, false to clip them
      */
-    private void drawVXVY() {
-        int VX = (opcode >> 8) & 0xF;
-        int VY = (opcode >> 4) & 0xF;
+    private void drawVXVY(boolean wrap) {
+        if (mode != Mode.CHIP8) {
+            drawOnBitplanes(wrap);
+            return;
+        }
         int N = opcode & 0xF;
-        registers[0xF] = 0;
-        for(int i = I; i < I + N; i++) {
-            int x = registers[VX];
-            int y = registers[VY] + i - I;
-            int spritebyte = memory[i];
-            if ((spritebyte & 0b1) == 0b1) {
-                setPixel(x + 7, y);
-            }
-            if ((spritebyte & 0b10) == 0b10) {
-                setPixel(x + 6, y);
-            }
-            if ((spritebyte & 0b100) == 0b100) {
-                setPixel(x + 5, y);
-            }
-            if ((spritebyte & 0b1000) == 0b1000) {
-                setPixel(x + 4, y);
-            }
-            if ((spritebyte & 0b10000) == 0b10000) {
-                setPixel(x + 3, y);
-            }
-            if ((spritebyte & 0b100000) == 0b100000) {
-                setPixel(x + 2, y);
-            }
-            if ((spritebyte & 0b1000000) == 0b1000000) {
-                setPixel(x + 1, y);
-            }
-            if ((spritebyte & 0b10000000) == 0b10000000) {
-                setPixel(x, y);
-            }
+        int x = registers[(opcode >> 8) & 0xF] & 63;
+        int top = registers[(opcode >> 4) & 0xF] & 31;
+        if (!wrap) {
+            N = Math.min(N, 32 - top);
         }
+        long collision = 0;
+        for (int row = 0; row < N; row++) {
+            long sprite = (long) (memory[(I + row) & addressMask] & 0xFF) << 56;
+            // Rotating brings the columns that run off the right edge back in on the left, shifting drops them
+            long pixels = wrap ? Long.rotateRight(sprite, x) : sprite >>> x;
+            int y = (top + row) & 31;
+            collision |= display.xorRow(y, pixels);
+            dirtyRows |= 1L << y;
+        }
+        registers[0xF] = collision != 0 ? 1 : 0;
     }
 
     /**
-     * Turn the pixel at (x,y) on and set register VF to 1 if a pixel is switched from on to off
+     * Opcode DXYN on the SUPER-CHIP and XO-CHIP
+     * Draw a sprite at position VX, VY with N bytes of sprite data starting at the address stored in I, or a 16x16
+     * sprite of 32 bytes if N is 0
+     * Set VF to 01 if any set pixels are changed to unset, and 00 otherwise
      * <p>
-     * @param x the x coord of the pixel
-     * @param y the y coord of the pixel
+     * The position wraps around the screen, the sprite itself wraps around as well or is clipped at the edges, depending
+     * on the quirks. Every selected plane gets its own sprite, one after the other in memory.
+     *
+     * @param wrap true to wrap sprites around the edges, false to clip them
      */
-    private void setPixel(int x, int y) {
-        while (x >= 64) {
-            x -= 64;
-        }
-        while (x < 0) {
-            x += 64;
-        }
-        while (y >= 32) {
-            y -= 32;
-        }
-        while (y < 0) {
-            y += 32;
-        }
-        boolean pixel = graphics[y][x];
-        if (pixel) {
-            graphics[y][x] = false;
-            registers[0xF] = 1;
-        } else {
-            graphics[y][x] = true;
+    private void drawOnBitplanes(boolean wrap) {
+        int N = opcode & 0xF;
+        int width = display.getWidth();
+        int height = display.getHeight();
+        int x = registers[(opcode >> 8) & 0xF] & (width - 1);
+        int y = registers[(opcode >> 4) & 0xF] & (height - 1);
+        int rows = N == 0 ? 16 : N;
+        int bytesPerRow = N == 0 ? 2 : 1;
+        boolean collision = false;
+        int address = I;
+        for (int plane = 0; plane < Bitplanes.MAX_PLANES; plane++) {
+            if ((planeMask & 1 << plane) == 0) {
+                continue;
+            }
+            for (int row = 0; row < rows; row++) {
+                int sprite = memory[address++ & addressMask] & 0xFF;
+                if (bytesPerRow == 2) {
+                    sprite = sprite << 8 | memory[address++ & addressMask] & 0xFF;
+                }
+                int screenRow = y + row;
+                if (screenRow >= height) {
+                    if (!wrap) {
+                        address += (rows - row - 1) * bytesPerRow;
+                        break;
+                    }
+                    screenRow -= height;
+                }
+                collision |= display.xorRow(plane, x, screenRow, sprite, bytesPerRow * 8, wrap);
+                dirtyRows |= 1L << screenRow;
+            }
         }
+        registers[0xF] = collision ? 1 : 0;
     }
 
     /**
@@ -396,10 +654,21 @@ public class CPU {
      * Opcode BNNN
      * Jump to address NNN + V0
      * <p>
-     * Set the opcodecounter to the value NNN added with the value in register 0
+     * Set the opcodecounter to the value NNN added with the value in register 0, wrapped around to a valid address
      */
     private void jumpToNNNPlusV0() {
-        pc = (opcode & 0xFFF) + registers[0];
+        pc = ((opcode & 0xFFF) + registers[0]) & addressMask;
+    }
+
+    /**
+     * Opcode BXNN, BNNN with the CHIP-48 quirk
+     * Jump to address XNN + VX
+     * <p>
+     * The CHIP-48 takes the register to add from the highest nibble of the address, so the jump lands within the same
+     * 256 byte page as long as VX is small enough
+     */
+    private void jumpToNNNPlusVX() {
+        pc = ((opcode & 0xFFF) + registers[(opcode >> 8) & 0xF]) & addressMask;
     }
 
     /**
@@ -426,21 +695,7 @@ public class CPU {
         int VY = (opcode >> 4) & 0xF;
 
         if(registers[VX] != registers[VY]) {
-            pc += 2;
-        }
-    }
-
-    private void handleCase8() {
-        switch (opcode & 0xF) {
-            case 0x0 -> setVXtoVY();
-            case 0x1 -> setVXtoVXorVY();
-            case 0x2 -> setVXtoVXandVY();
-            case 0x3 -> setVXtoVXxorVY();
-            case 0x4 -> addVYtoVX();
-            case 0x5 -> subtractVYfromVX();
-            case 0x6 -> rightShiftVX();
-            case 0x7 -> subtractVXfromVY();
-            case 0xE -> leftShiftVX();
+            skipNextInstruction();
         }
     }
 
@@ -463,6 +718,18 @@ public class CPU {
         }
     }
 
+    /**
+     * Opcode 8XYE with the CHIP-48 quirk
+     * Shift the value of register VX left one bit, VY is ignored
+     * Set register VF to the most significant bit prior to the shift
+     */
+    private void leftShiftVXInPlace() {
+        int VX = (opcode >> 8) & 0xF;
+        int value = registers[VX];
+        registers[VX] = (value << 1) & 0xFF;
+        registers[0xF] = (value >> 7) & 0x1;
+    }
+
     /**
      * Opcode 8XY7
      * Set register VX to the value of VY minus VX
@@ -502,6 +769,18 @@ public class CPU {
         registers[VX] = registers[VY] >> 1;
     }
 
+    /**
+     * Opcode 8XY6 with the CHIP-48 quirk
+     * Shift the value of register VX right one bit, VY is ignored
+     * Set register VF to the least significant bit prior to the shift
+     */
+    private void rightShiftVXInPlace() {
+        int VX = (opcode >> 8) & 0xF;
+        int value = registers[VX];
+        registers[VX] = value >> 1;
+        registers[0xF] = value & 0x1;
+    }
+
     /**
      * Opcode 8XY5
      * Subtract the value of register VY from register VX
@@ -637,7 +916,7 @@ public class CPU {
      */
     private void skipNextInstructionIfVXEqualsVY() {
         if(registers[opcode >> 8 & 0xF] == registers[opcode >> 4 & 0xF]) {
-            pc += 2;
+            skipNextInstruction();
         }
     }
 
@@ -654,7 +933,7 @@ public class CPU {
         int VX = (opcode >> 8) & 0xF;
         int NN = opcode & 0xFF;
         if(registers[VX] != NN) {
-            pc += 2;
+            skipNextInstruction();
         }
     }
 
@@ -670,6 +949,19 @@ public class CPU {
         int VX = (opcode >> 8) & 0xF;
         int NN = opcode & 0xFF;
         if(registers[VX] == NN) {
+            skipNextInstruction();
+        }
+    }
+
+    /**
+     * Skip the instruction after the current one. On the XO-CHIP, F000 NNNN takes four bytes, so it is skipped as a
+     * whole.
+     */
+    private void skipNextInstruction() {
+        if (mode == Mode.XOCHIP && memory[(pc + 2) & addressMask] == (byte) 0xF0
+            && memory[(pc + 3) & addressMask] == 0) {
+            pc += 4;
+        } else {
             pc += 2;
         }
     }
@@ -696,15 +988,6 @@ public class CPU {
         pc = opcode & 0xFFF;
     }
 
-    private void handleCase0() {
-        switch (opcode) {
-            case (0X00E0) -> clearScreen();
-            case (0x00EE) -> returnFromSubroutine();
-            default -> {
-            }
-        }
-    }
-
     /**
      * Opcode 00EE
      * Return from subroutine
@@ -720,22 +1003,224 @@ public class CPU {
      * Opcode 00E0
      * Clear the screen
      * <p>
-     * As it says, clear the screen. Easiest done by just creating a new boolean grid :)
+     * As it says, clear the screen. The grid is cleared in place, so whoever holds on to it keeps seeing the actual
+     * screen.
      */
     private void clearScreen() {
-        graphics = new boolean[32][64];
+        display.clear(planeMask);
+        dirtyRows = allRows();
+    }
+
+    /**
+     * Opcode 00CN
+     * Scroll the screen down N rows
+     * <p>
+     * The selected planes move down, blank rows come in at the top. On the XO-CHIP this is the only form of 00CN.
+     */
+    private void scrollDownN() {
+        display.scrollDown(planeMask, opcode & 0xF);
+        dirtyRows = allRows();
+    }
+
+    /**
+     * Opcode 00DN
+     * Scroll the screen up N rows
+     * <p>
+     * XO-CHIP only, the opposite of 00CN
+     */
+    private void scrollUpN() {
+        display.scrollUp(planeMask, opcode & 0xF);
+        dirtyRows = allRows();
+    }
+
+    /**
+     * Opcode 00FB
+     * Scroll the screen right 4 pixels
+     */
+    private void scrollRight() {
+        display.scrollRight(planeMask, 4);
+        dirtyRows = allRows();
+    }
+
+    /**
+     * Opcode 00FC
+     * Scroll the screen left 4 pixels
+     */
+    private void scrollLeft() {
+        display.scrollLeft(planeMask, 4);
+        dirtyRows = allRows();
+    }
+
+    /**
+     * Opcode 00FD
+     * Exit the interpreter
+     * <p>
+     * There is nothing to return to, so the program counter stays on this instruction forever.
+     */
+    private void exit() {
+        pc -= 2;
+    }
+
+    /**
+     * Opcode 00FE and 00FF
+     * Switch to the low resolution of 64x32 or the high resolution of 128x64 pixels
+     * <p>
+     * Switching clears the screen, as it does on the XO-CHIP and most SUPER-CHIP interpreters.
+     */
+    private void setResolution(int width, int height) {
+        display.setResolution(width, height);
+        dirtyRows = allRows();
+    }
+
+    /**
+     * Opcode 5XY2
+     * Store the values of registers VX to VY inclusive in memory starting at address I
+     * <p>
+     * Like FX55, but for any range of registers, which may run backwards. I is left alone.
+     */
+    private void storeVXThroughVYInMemory() {
+        int VX = (opcode >> 8) & 0xF;
+        int VY = (opcode >> 4) & 0xF;
+        int step = VX <= VY ? 1 : -1;
+        int count = Math.abs(VY - VX) + 1;
+
+        for (int i = 0; i < count; i++) {
+            memory[(I + i) & addressMask] = (byte) registers[VX + i * step];
+        }
+        invalidateCode(I, count);
+    }
+
+    /**
+     * Opcode 5XY3
+     * Fill registers VX to VY inclusive with the values stored in memory starting at address I
+     * <p>
+     * The opposite of 5XY2
+     */
+    private void readMemoryIntoVXThroughVY() {
+        int VX = (opcode >> 8) & 0xF;
+        int VY = (opcode >> 4) & 0xF;
+        int step = VX <= VY ? 1 : -1;
+        int count = Math.abs(VY - VX) + 1;
+
+        for (int i = 0; i < count; i++) {
+            registers[VX + i * step] = memory[(I + i) & addressMask] & 0xFF;
+        }
+    }
+
+    /**
+     * Opcode F000 NNNN
+     * Store the 16 bit memory address NNNN in register I
+     * <p>
+     * The address is the word following this instruction, so the program counter moves past it as well.
+     */
+    private void setIndexRegisterToLongAddress() {
+        I = (memory[(pc + 2) & addressMask] & 0xFF) << 8 | memory[(pc + 3) & addressMask] & 0xFF;
+        pc += 2;
+    }
+
+    /**
+     * Opcode FN01
+     * Select the planes that drawing, clearing and scrolling work on
+     * <p>
+     * Bit 0 of N selects plane 0, bit 1 selects plane 1.
+     */
+    private void selectPlanes() {
+        planeMask = (opcode >> 8) & 0x3;
     }
 
-    private void fetchOpcode() {
-        opcode = memory[pc] << 8 | memory[pc + 1];
+    /**
+     * Opcode F002
+     * Load the 16 byte audio pattern starting at address I
+     */
+    private void loadAudioPattern() {
+        for (int i = 0; i < audioPattern.length; i++) {
+            audioPattern[i] = memory[(I + i) & addressMask];
+        }
     }
 
-    public boolean[][] getGraphics() {
-        return graphics;
+    /**
+     * Opcode FX30
+     * Set I to the memory address of the big sprite for the hexadecimal digit stored in register VX
+     * <p>
+     * Like FX29, but for the 8x10 font of the SUPER-CHIP
+     */
+    private void setIToLocationOfBigValueInVX() {
+        int VX = (opcode >> 8) & 0xF;
+        I = BIG_FONT_ADDRESS + (registers[VX] & 0xF) * 10;
     }
 
-    public void setKey(int key) {
-        this.key = key;
+    /**
+     * Opcode FX3A
+     * Set the pitch of the audio pattern to the value of register VX
+     */
+    private void setPitchToVX() {
+        int VX = (opcode >> 8) & 0xF;
+        pitch = registers[VX];
+    }
+
+    /**
+     * Opcode FX75
+     * Store the values of registers V0 to VX inclusive in the flag registers
+     * <p>
+     * The HP-48 kept these in its RPL user flags, so they survive a reset.
+     */
+    private void storeV0ThroughVXInFlags() {
+        int VX = (opcode >> 8) & 0xF;
+        System.arraycopy(registers, 0, flags, 0, VX + 1);
+    }
+
+    /**
+     * Opcode FX85
+     * Fill registers V0 to VX inclusive with the values of the flag registers
+     * <p>
+     * The opposite of FX75
+     */
+    private void readFlagsIntoV0ThroughVX() {
+        int VX = (opcode >> 8) & 0xF;
+        System.arraycopy(flags, 0, registers, 0, VX + 1);
+    }
+
+    private long allRows() {
+        return display.getHeight() == 64 ? HIRES_ROWS : LORES_ROWS;
+    }
+
+    /**
+     * Get the screen as packed bitplanes. On a plain CHIP-8 every row of 64 pixels is the first word of plane 0.
+     *
+     * @return the screen, updated in place
+     */
+    public Bitplanes getDisplay() {
+        return display;
+    }
+
+    /**
+     * Get the rows of the screen that were changed since the last call, and start tracking changes anew.
+     * <p>
+     * Bit n of the result is set if row n was drawn on or cleared. A sprite that is drawn twice in the same place
+     * leaves the screen as it was, but its rows still count as changed.
+     *
+     * @return a bit mask of the changed rows
+     */
+    public long takeDirtyRows() {
+        long rows = dirtyRows;
+        dirtyRows = 0;
+        return rows;
+    }
+
+    /**
+     * @param keys a bit mask of the keys that are held down, bit 0 for key 0x0 up to bit 15 for key 0xF
+     */
+    public void setKeys(int keys) {
+        this.keys = keys;
+    }
+
+    /**
+     * Reseed the random number generator used by CXNN, so a run can be repeated exactly.
+     *
+     * @param seed the new seed
+     */
+    void setSeed(long seed) {
+        random.setSeed(seed);
     }
 
     public void decrementDelayTimer() {
@@ -744,6 +1229,16 @@ public class CPU {
         }
     }
 
+    public void decrementSoundTimer() {
+        if (sound_timer > 0) {
+            sound_timer--;
+        }
+    }
+
+    public int getDelay_timer() {
+        return delay_timer;
+    }
+
     public int getSound_timer() {
         return sound_timer;
     }
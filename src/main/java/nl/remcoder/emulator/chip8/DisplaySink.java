@@ -0,0 +1,21 @@
+package nl.remcoder.emulator.chip8;
+
+/**
+ * Receives the framebuffer of a {@link Machine} at the end of every emulated frame.
+ */
+@FunctionalInterface
+public interface DisplaySink {
+    DisplaySink NONE = (display, dirtyRows) -> {
+    };
+
+    /**
+     * Called once per frame with the current framebuffer.
+     * <p>
+     * The framebuffer is owned by the CPU and will be changed by the next frame, so implementations that need to keep
+     * the contents around have to copy it, see {@link Bitplanes#copyFrom(Bitplanes)}.
+     *
+     * @param display the framebuffer
+     * @param dirtyRows a bit mask of the rows that changed since the previous frame, bit n for row n
+     */
+    void frame(Bitplanes display, long dirtyRows);
+}
@@ -1,55 +1,43 @@
 package nl.remcoder.emulator.chip8;
 
 import javafx.animation.AnimationTimer;
-import javafx.scene.canvas.GraphicsContext;
-import javafx.scene.media.AudioClip;
-import javafx.scene.paint.Color;
+import javafx.scene.image.ImageView;
 
 public class DisplayTimer extends AnimationTimer {
 
-    private final CPU cpu;
-    private final GraphicsContext graphicsContext;
-    private final AudioClip beepAudio;
+    private final Machine machine;
+    private final ImageView imageView;
+    private final ScreenRenderer screenRenderer = new ScreenRenderer();
 
-    public DisplayTimer(GraphicsContext graphicsContext, CPU cpu) {
-        this.graphicsContext = graphicsContext;
-        this.cpu = cpu;
-        beepAudio = new AudioClip(ClassLoader.getSystemResource("Beep.wav").toString());
-        beepAudio.setCycleCount(AudioClip.INDEFINITE);
+    public DisplayTimer(ImageView imageView, Machine machine) {
+        this.imageView = imageView;
+        this.machine = machine;
     }
 
     @Override
-    public void handle(long now) {
-        paintScreen(cpu.getGraphics(), graphicsContext);
-        if (!beepAudio.isPlaying() && cpu.getSound_timer() > 0) {
-            beepAudio.play();
-        }
-        if (beepAudio.isPlaying() && cpu.getSound_timer() == 0) {
-            beepAudio.stop();
-        }
-        if (cpu.getSound_timer() > 0) {
-            cpu.setSound_timer(cpu.getSound_timer() - 1);
-        }
-        cpu.decrementDelayTimer();
+    public void start() {
+        imageView.setImage(screenRenderer.getImage());
+        super.start();
     }
 
-    private void paintScreen(boolean[][] graphics, GraphicsContext graphicsContext) {
-        graphicsContext.clearRect(0, 0, 640, 320);
-        for (int y = 0; y < 32; y++) {
-            for (int x = 0; x < 64; x++) {
-                boolean value = graphics[y][x];
-                paintPixel(value, x, y, graphicsContext);
+    @Override
+    public void handle(long now) {
+        FrameExchange frameExchange = machine.getFrameExchange();
+        Events.FramePaint event = new Events.FramePaint();
+        event.begin();
+        long start = System.nanoTime();
+        Bitplanes frame = frameExchange.acquire();
+        long dirtyRows = frameExchange.getDirtyRows();
+        screenRenderer.render(frame, dirtyRows);
+        if (dirtyRows != 0) {
+            MachineMetrics metrics = machine.getMetrics();
+            if (metrics != null) {
+                metrics.framePainted(System.nanoTime() - start);
+            }
+            if (event.shouldCommit()) {
+                event.dirtyRows = dirtyRows;
+                event.commit();
             }
         }
     }
-
-    private void paintPixel(boolean white, int x, int y, GraphicsContext graphicsContext) {
-        if (white) {
-            graphicsContext.setFill(Color.LIMEGREEN);
-        } else {
-            graphicsContext.setFill(Color.BLACK);
-        }
-
-        graphicsContext.fillRect(x * 10, y * 10, 10, 10);
-    }
 }
@@ -0,0 +1,167 @@
+package nl.remcoder.emulator.chip8;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a {@link Machine} in real time on a dedicated thread.
+ * <p>
+ * Every 1/60th of a second the thread emulates one frame: the configured number of instructions in one batch, followed
+ * by a tick of the delay and sound timers, so the timers run at exactly 60 Hz no matter how the display is driven.
+ * Each frame stands for the 1/60th of a second before it was due, key events from that stretch take effect at the
+ * matching instruction of the frame.
+ * Frames are paced against {@link System#nanoTime()}: the thread parks until shortly before the next frame is due and
+ * spins for the last stretch. When it falls behind, it runs frames back to back until it has caught up, unless it is
+ * so far behind that catching up is pointless, in that case those frames are skipped and the pacing starts over.
+ * <p>
+ * While the ROM sits in an idle loop, the thread does not wake up for frames in which nothing can be seen to change
+ * (see {@link Machine#getIdleFrames()}). It parks without spinning until the last of those frames is due, or until a
+ * key is pressed, and then runs the postponed frames back to back, so timers and key changes land in the same frames
+ * as they would have otherwise.
+ */
+public class EmulationScheduler {
+    public static final int FRAMES_PER_SECOND = 60;
+
+    private static final long NANOS_PER_FRAME = 1_000_000_000L / FRAMES_PER_SECOND;
+    private static final int MAX_CATCH_UP_FRAMES = 5;
+    private static final long SPIN_NANOS = 1_000_000L;
+    private static final int MAX_IDLE_FRAMES = FRAMES_PER_SECOND;
+
+    private final Machine machine;
+    private volatile int instructionsPerSecond;
+    private volatile boolean running;
+    private volatile long skippedFrames;
+    private Thread thread;
+
+    public EmulationScheduler(Machine machine) {
+        this.machine = machine;
+        this.instructionsPerSecond = machine.getCyclesPerFrame() * FRAMES_PER_SECOND;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        Thread thread = new Thread(this::run, "chip8-emulation");
+        thread.setDaemon(true);
+        this.thread = thread;
+        machine.setKeyListener(() -> LockSupport.unpark(thread));
+        thread.start();
+    }
+
+    /**
+     * Stop the emulation thread and wait for it to finish the frame it is working on, so the machine can safely be
+     * touched from the calling thread afterwards.
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        machine.setKeyListener(null);
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    private void run() {
+        long frame = 0;
+        long nextFrame = System.nanoTime();
+        // Frames postponed because they were idle are due when the thread woke up, not when they were scheduled
+        long wokenUp = nextFrame;
+        while (running) {
+            long due = nextFrame - wokenUp < 0 ? wokenUp : nextFrame;
+            MachineMetrics metrics = machine.getMetrics();
+            if (metrics != null) {
+                metrics.timerTicked(System.nanoTime() - due);
+            }
+            machine.runFrame(cyclesForFrame(frame++), nextFrame - NANOS_PER_FRAME, nextFrame);
+            nextFrame += NANOS_PER_FRAME;
+
+            long now = System.nanoTime();
+            if (now - nextFrame > MAX_CATCH_UP_FRAMES * NANOS_PER_FRAME && now - wokenUp > NANOS_PER_FRAME) {
+                long skipped = (now - nextFrame) / NANOS_PER_FRAME;
+                skippedFrames += skipped;
+                if (metrics != null) {
+                    metrics.framesSkipped(skipped);
+                }
+                nextFrame = now;
+            }
+
+            int idleFrames = machine.getIdleFrames();
+            if (idleFrames > 1) {
+                long lastIdleFrame = nextFrame + (Math.min(idleFrames, MAX_IDLE_FRAMES) - 1) * NANOS_PER_FRAME;
+                if (lastIdleFrame - now > 0) {
+                    sleepUntil(lastIdleFrame);
+                    wokenUp = System.nanoTime();
+                }
+            } else {
+                waitUntil(nextFrame);
+            }
+        }
+
+        // Catch up on the idle frames that were postponed and are due by now, so the machine is up to date when stopped
+        while (nextFrame - System.nanoTime() <= 0) {
+            machine.runFrame(cyclesForFrame(frame++), nextFrame - NANOS_PER_FRAME, nextFrame);
+            nextFrame += NANOS_PER_FRAME;
+        }
+    }
+
+    /**
+     * Spread the instructions of a second evenly over its frames, so instruction rates that are not a multiple of 60
+     * still come out exactly right over a whole second.
+     *
+     * @param frame the number of the frame, counting from 0
+     * @return the number of instructions to execute in that frame
+     */
+    int cyclesForFrame(long frame) {
+        long instructionsPerSecond = this.instructionsPerSecond;
+        long frameInSecond = frame % FRAMES_PER_SECOND;
+        return (int) ((frameInSecond + 1) * instructionsPerSecond / FRAMES_PER_SECOND
+                - frameInSecond * instructionsPerSecond / FRAMES_PER_SECOND);
+    }
+
+    private void waitUntil(long deadline) {
+        long remaining;
+        while (running && (remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Park until the deadline without spinning at the end, returning early when unparked for a key press.
+     */
+    private void sleepUntil(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (running && remaining > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    public int getInstructionsPerSecond() {
+        return instructionsPerSecond;
+    }
+
+    public void setInstructionsPerSecond(int instructionsPerSecond) {
+        if (instructionsPerSecond < FRAMES_PER_SECOND) {
+            throw new IllegalArgumentException("instructionsPerSecond must be at least " + FRAMES_PER_SECOND
+                                                       + ", was " + instructionsPerSecond);
+        }
+        this.instructionsPerSecond = instructionsPerSecond;
+    }
+
+    /**
+     * @return the number of frames that were skipped because the emulation fell too far behind
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+}
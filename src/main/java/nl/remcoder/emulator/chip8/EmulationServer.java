@@ -0,0 +1,830 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Serves many machines at the same time to remote players and spectators over WebSocket.
+ * <p>
+ * Every session runs its own headless {@link Machine}. A player opens a session with {@code /play/<rom>}, naming a ROM
+ * in the {@link RomCatalog} the server was started with, and the machine runs it on the platform and with the quirks
+ * the catalog suggests. Spectators join a running session with {@code /watch/<session>}. A session ends when its
+ * player disconnects. {@code /} serves a page that plays or watches in a browser, {@code /roms} lists the ROMs.
+ * <p>
+ * The messages of a session are:
+ * <ul>
+ *     <li>to every client, first a text message with the number of the session</li>
+ *     <li>to every client, a binary message for every frame in which the screen changed: the width, height and number
+ *     of planes as a byte each, followed for every plane by a bit mask of the rows that changed as a long, and the
+ *     packed pixels of each of those rows as one long per 64 pixels, like a frame of the {@link PackedFrameWriter}.
+ *     The first frame a client gets holds every row</li>
+ *     <li>from the player, a binary message of two bytes with the keys that are held down, bit 0 for key 0x0 up to
+ *     bit 15 for key 0xF. Messages from spectators are ignored</li>
+ * </ul>
+ * Clients that offer the permessage-deflate extension get their frames compressed. Every frame is compressed on its
+ * own, so it is compressed once for all clients of a session and a session keeps no compression state. Fragmented
+ * messages are not supported, the keys never need more than a single frame.
+ * <p>
+ * All sockets are served by a single thread that never blocks. A clock thread emulates a frame of every session 60
+ * times a second on a fixed pool of threads, one task per session like the {@link RomFarm}, and hands the changed rows
+ * to the socket thread. Key events from the player are queued on the socket thread, which makes it the single
+ * producer of every machine, and take effect at the matching instruction of the next frame, as they do on the
+ * {@link EmulationScheduler}. A client that cannot keep up gets frames dropped rather than queued, see
+ * {@link #getDroppedFrames()}, and the whole screen once it has caught up.
+ * <p>
+ * Usage: {@code EmulationServer <directory> [--port N] [--parallelism N]}
+ */
+public final class EmulationServer implements Closeable {
+    public static final int DEFAULT_PORT = 8080;
+
+    private static final long NANOS_PER_FRAME = 1_000_000_000L / EmulationScheduler.FRAMES_PER_SECOND;
+    private static final int MAX_CATCH_UP_FRAMES = 5;
+    private static final int MAX_REQUEST_BYTES = 4096;
+    private static final int MAX_MESSAGE_BYTES = 125;
+    private static final long MAX_QUEUED_BYTES = 64 * 1024;
+    // The largest frame: three bytes, and for both planes a row mask and two longs for each of the 64 rows
+    private static final int MAX_FRAME_BYTES = 3 + Bitplanes.MAX_PLANES * 8 * (1 + 2 * Bitplanes.MAX_HEIGHT);
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final byte[] DEFLATE_TAIL = {0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private static final int CLOSE_GOING_AWAY = 1001;
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+    private static final int CLOSE_UNSUPPORTED = 1003;
+    private static final int CLOSE_TOO_BIG = 1009;
+    private static final int CLOSE_INTERNAL_ERROR = 1011;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(
+            Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<byte[]> FRAME_BUFFERS = ThreadLocal.withInitial(() -> new byte[MAX_FRAME_BYTES]);
+
+    private final RomCatalog catalog;
+    private final byte[] page;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ForkJoinPool pool;
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextSessionId = new AtomicLong(1);
+    // Connections with frames waiting to be written, and work for the socket thread from other threads
+    private final Queue<Connection> flushes = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Inflater inflater = new Inflater(true);
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final Thread socketThread;
+    private final Thread clockThread;
+    private volatile boolean running = true;
+    private volatile long skippedFrames = 0;
+
+    /**
+     * Bind the server and start serving.
+     *
+     * @param catalog the ROMs that can be played, loaded from the catalog every time a session is opened
+     * @param address the address to listen on, port 0 for any free port
+     * @param parallelism the number of threads that emulate the sessions
+     * @throws IOException if the address could not be bound
+     */
+    public EmulationServer(RomCatalog catalog, InetSocketAddress address, int parallelism) throws IOException {
+        this.catalog = catalog;
+        try (InputStream inputStream = ClassLoader.getSystemResourceAsStream("server/index.html")) {
+            page = inputStream != null ? inputStream.readAllBytes() : new byte[0];
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("chip8-session-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+
+        // Not a daemon, the server keeps the JVM running until it is closed
+        socketThread = new Thread(this::serve, "chip8-server");
+        socketThread.start();
+        clockThread = new Thread(this::tick, "chip8-server-clock");
+        clockThread.setDaemon(true);
+        clockThread.start();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the number of sessions that are running
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return the number of frames not sent to a client because it had not yet received the ones before
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * @return the number of frames skipped because the sessions could not all be emulated in time
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * Stop emulating, close every connection and wait for the threads to finish.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(clockThread);
+        selector.wakeup();
+        try {
+            clockThread.join();
+            socketThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pool.shutdown();
+    }
+
+    private void tick() {
+        try {
+            runFrames();
+        } catch (Throwable e) {
+            // Without a clock every session would freeze, so the server goes down and tells its clients why
+            System.err.println("The emulation clock stopped, closing the server");
+            e.printStackTrace();
+            tasks.add(() -> {
+                for (Session session : sessions.values()) {
+                    end(session, CLOSE_INTERNAL_ERROR);
+                }
+                running = false;
+            });
+            selector.wakeup();
+        }
+    }
+
+    private void runFrames() throws ExecutionException {
+        long nextFrame = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            if (nextFrame - now > 0) {
+                LockSupport.parkNanos(this, nextFrame - now);
+                continue;
+            }
+            // Every frame stands for the 1/60th of a second before it was due, like on the EmulationScheduler
+            long windowStart = nextFrame - NANOS_PER_FRAME;
+            long windowEnd = nextFrame;
+            try {
+                pool.submit(() -> sessions.values().parallelStream()
+                                          .forEach(session -> session.runFrame(windowStart, windowEnd))).get();
+            } catch (InterruptedException e) {
+                return;
+            }
+            selector.wakeup();
+
+            nextFrame += NANOS_PER_FRAME;
+            long behind = System.nanoTime() - nextFrame;
+            if (behind > MAX_CATCH_UP_FRAMES * NANOS_PER_FRAME) {
+                skippedFrames += behind / NANOS_PER_FRAME;
+                nextFrame = System.nanoTime();
+            }
+        }
+    }
+
+    private void serve() {
+        try {
+            while (running) {
+                selector.select();
+                for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+                    task.run();
+                }
+                for (Connection connection = flushes.poll(); connection != null; connection = flushes.poll()) {
+                    connection.flushScheduled.set(false);
+                    flush(connection);
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    } else if (key.attachment() instanceof Connection connection) {
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+            sessions.clear();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        for (SocketChannel channel = serverChannel.accept(); channel != null; channel = serverChannel.accept()) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private void read(Connection connection) {
+        try {
+            if (connection.channel.read(connection.input) < 0) {
+                disconnect(connection);
+                return;
+            }
+            connection.input.flip();
+            if (connection.session == null && !connection.closing) {
+                readRequest(connection);
+            }
+            if (connection.session != null) {
+                readMessages(connection);
+            }
+            if (connection.closing) {
+                connection.input.clear();
+            } else if (!connection.input.hasRemaining() || connection.input.limit() < connection.input.capacity()) {
+                connection.input.compact();
+            } else {
+                respond(connection, "431 Request Header Fields Too Large", "text/plain", new byte[0]);
+            }
+        } catch (IOException e) {
+            disconnect(connection);
+        }
+    }
+
+    private void readRequest(Connection connection) {
+        ByteBuffer input = connection.input;
+        int end = -1;
+        for (int i = input.position(); i + 3 < input.limit() && end < 0; i++) {
+            if (input.get(i) == '\r' && input.get(i + 1) == '\n' && input.get(i + 2) == '\r'
+                && input.get(i + 3) == '\n') {
+                end = i;
+            }
+        }
+        if (end < 0) {
+            return;
+        }
+        byte[] head = new byte[end - input.position()];
+        input.get(head);
+        input.position(end + 4);
+
+        String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        if (requestLine.length != 3 || !requestLine[0].equals("GET")) {
+            respond(connection, "405 Method Not Allowed", "text/plain", new byte[0]);
+            return;
+        }
+        String path = URLDecoder.decode(requestLine[1].split("\\?", 2)[0], StandardCharsets.UTF_8);
+        boolean upgrade = headers.getOrDefault("upgrade", "").equalsIgnoreCase("websocket")
+                          && headers.containsKey("sec-websocket-key");
+
+        if (path.equals("/")) {
+            respond(connection, "200 OK", "text/html; charset=utf-8", page);
+        } else if (path.equals("/roms")) {
+            StringBuilder names = new StringBuilder();
+            for (RomCatalog.Entry entry : catalog.getEntries()) {
+                names.append(entry.path().getFileName()).append('\n');
+            }
+            respond(connection, "200 OK", "text/plain; charset=utf-8",
+                    names.toString().getBytes(StandardCharsets.UTF_8));
+        } else if (upgrade && path.startsWith("/play/")) {
+            RomCatalog.Entry entry = findRom(path.substring("/play/".length()));
+            if (entry == null) {
+                respond(connection, "404 Not Found", "text/plain", new byte[0]);
+                return;
+            }
+            Machine machine = new Machine();
+            machine.setMode(entry.platform());
+            machine.setQuirks(entry.suggestedQuirks());
+            try {
+                machine.loadRom(catalog.romdata(entry));
+            } catch (UncheckedIOException | IllegalArgumentException e) {
+                respond(connection, "500 Internal Server Error", "text/plain", new byte[0]);
+                return;
+            }
+            Session session = new Session(nextSessionId.getAndIncrement(), machine, connection);
+            upgrade(connection, headers, session);
+            sessions.put(session.id, session);
+        } else if (upgrade && path.startsWith("/watch/")) {
+            Session session = null;
+            try {
+                session = sessions.get(Long.parseLong(path.substring("/watch/".length())));
+            } catch (NumberFormatException e) {
+                // Not a session
+            }
+            if (session == null) {
+                respond(connection, "404 Not Found", "text/plain", new byte[0]);
+                return;
+            }
+            upgrade(connection, headers, session);
+        } else if (path.startsWith("/play/") || path.startsWith("/watch/")) {
+            respond(connection, "400 Bad Request", "text/plain", new byte[0]);
+        } else {
+            respond(connection, "404 Not Found", "text/plain", new byte[0]);
+        }
+    }
+
+    private RomCatalog.Entry findRom(String name) {
+        for (RomCatalog.Entry entry : catalog.getEntries()) {
+            if (entry.path().getFileName().toString().equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void respond(Connection connection, String status, String contentType, byte[] body) {
+        String head = "HTTP/1.1 " + status + "\r\n"
+                      + "Content-Type: " + contentType + "\r\n"
+                      + "Content-Length: " + body.length + "\r\n"
+                      + "Connection: close\r\n\r\n";
+        connection.enqueue(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)));
+        connection.enqueue(ByteBuffer.wrap(body));
+        connection.closing = true;
+        flush(connection);
+    }
+
+    private void upgrade(Connection connection, Map<String, String> headers, Session session) {
+        String accept;
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((headers.get("sec-websocket-key") + WEBSOCKET_GUID)
+                                                .getBytes(StandardCharsets.ISO_8859_1));
+            accept = Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is required to be available on every JVM", e);
+        }
+        connection.compress = offersDeflate(headers.getOrDefault("sec-websocket-extensions", ""));
+        String head = "HTTP/1.1 101 Switching Protocols\r\n"
+                      + "Upgrade: websocket\r\n"
+                      + "Connection: Upgrade\r\n"
+                      + "Sec-WebSocket-Accept: " + accept + "\r\n"
+                      + (connection.compress ? "Sec-WebSocket-Extensions: permessage-deflate; "
+                                               + "server_no_context_takeover; client_no_context_takeover\r\n" : "")
+                      + "\r\n";
+        connection.enqueue(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)));
+        connection.enqueue(frame(OP_TEXT, false, Long.toString(session.id).getBytes(StandardCharsets.US_ASCII)));
+        connection.session = session;
+        session.viewers.add(connection);
+        flush(connection);
+    }
+
+    /**
+     * Every message is compressed with a fresh window, so an offer is only turned down if it limits the window the
+     * server compresses with, which the {@link Deflater} cannot do.
+     */
+    private static boolean offersDeflate(String extensions) {
+        for (String offer : extensions.split(",")) {
+            String[] parameters = offer.split(";");
+            if (parameters[0].trim().equals("permessage-deflate")) {
+                boolean limitsWindow = false;
+                for (int i = 1; i < parameters.length; i++) {
+                    limitsWindow |= parameters[i].trim().startsWith("server_max_window_bits");
+                }
+                if (!limitsWindow) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void readMessages(Connection connection) {
+        ByteBuffer input = connection.input;
+        while (!connection.closing && input.remaining() >= 2) {
+            int start = input.position();
+            int first = input.get(start) & 0xFF;
+            int second = input.get(start + 1) & 0xFF;
+            long length = second & 0x7F;
+            int headerLength = 2;
+            if (length == 126) {
+                headerLength = 4;
+                length = input.remaining() >= headerLength ? input.getShort(start + 2) & 0xFFFF : -1;
+            } else if (length == 127) {
+                headerLength = 10;
+                length = input.remaining() >= headerLength ? input.getLong(start + 2) : -1;
+            }
+            if ((second & 0x80) == 0) {
+                // Clients have to mask every frame
+                close(connection, CLOSE_PROTOCOL_ERROR);
+                return;
+            } else if (length > MAX_MESSAGE_BYTES || length < -1) {
+                close(connection, CLOSE_TOO_BIG);
+                return;
+            } else if (length < 0 || input.remaining() < headerLength + 4 + length) {
+                return;
+            }
+            byte[] payload = new byte[(int) length];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) (input.get(start + headerLength + 4 + i) ^ input.get(start + headerLength + i % 4));
+            }
+            input.position(start + headerLength + 4 + payload.length);
+
+            int opcode = first & 0x0F;
+            boolean fin = (first & 0x80) != 0;
+            boolean compressed = (first & 0x40) != 0;
+            if (!fin || opcode == OP_CONTINUATION) {
+                close(connection, CLOSE_UNSUPPORTED);
+            } else if (compressed && (!connection.compress || opcode >= OP_CLOSE) || (first & 0x30) != 0) {
+                close(connection, CLOSE_PROTOCOL_ERROR);
+            } else if (compressed) {
+                byte[] inflated = inflate(payload);
+                if (inflated == null) {
+                    close(connection, CLOSE_TOO_BIG);
+                } else {
+                    receive(connection, opcode, inflated);
+                }
+            } else {
+                receive(connection, opcode, payload);
+            }
+        }
+    }
+
+    private byte[] inflate(byte[] payload) {
+        byte[] input = Arrays.copyOf(payload, payload.length + DEFLATE_TAIL.length);
+        System.arraycopy(DEFLATE_TAIL, 0, input, payload.length, DEFLATE_TAIL.length);
+        byte[] inflated = new byte[MAX_MESSAGE_BYTES + 1];
+        inflater.reset();
+        inflater.setInput(input);
+        try {
+            int length = inflater.inflate(inflated);
+            return length > MAX_MESSAGE_BYTES ? null : Arrays.copyOf(inflated, length);
+        } catch (DataFormatException e) {
+            return null;
+        }
+    }
+
+    private void receive(Connection connection, int opcode, byte[] payload) {
+        switch (opcode) {
+            case OP_BINARY -> {
+                if (connection == connection.session.player && payload.length == 2) {
+                    connection.session.machine.setKeys((payload[0] & 0xFF) << 8 | payload[1] & 0xFF);
+                }
+            }
+            case OP_CLOSE -> close(connection, payload.length >= 2 ? (payload[0] & 0xFF) << 8 | payload[1] & 0xFF
+                                                                    : 1000);
+            case OP_PING -> {
+                connection.enqueue(frame(OP_PONG, false, payload));
+                flush(connection);
+            }
+            case OP_TEXT, OP_PONG -> {
+            }
+            default -> close(connection, CLOSE_PROTOCOL_ERROR);
+        }
+    }
+
+    /**
+     * Send a close frame, leave the session and close the connection once everything queued is written.
+     */
+    private void close(Connection connection, int code) {
+        if (connection.closing) {
+            return;
+        }
+        connection.enqueue(frame(OP_CLOSE, false, new byte[]{(byte) (code >> 8), (byte) code}));
+        connection.closing = true;
+        leave(connection);
+        flush(connection);
+    }
+
+    private void disconnect(Connection connection) {
+        connection.closing = true;
+        leave(connection);
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Gone already
+        }
+    }
+
+    private void leave(Connection connection) {
+        Session session = connection.session;
+        if (session == null) {
+            return;
+        }
+        session.viewers.remove(connection);
+        if (connection == session.player) {
+            end(session, CLOSE_GOING_AWAY);
+        }
+    }
+
+    private void end(Session session, int code) {
+        if (sessions.remove(session.id) != null) {
+            for (Connection viewer : session.viewers) {
+                close(viewer, code);
+            }
+        }
+    }
+
+    private void flush(Connection connection) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        try {
+            for (ByteBuffer buffer = connection.output.peek(); buffer != null; buffer = connection.output.peek()) {
+                connection.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                connection.output.poll();
+                connection.queuedBytes.addAndGet(-buffer.capacity());
+            }
+            if (connection.closing) {
+                disconnect(connection);
+            } else {
+                connection.key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            disconnect(connection);
+        }
+    }
+
+    private static ByteBuffer frame(int opcode, boolean compressed, byte[] payload) {
+        int headerLength = payload.length < 126 ? 2 : payload.length < 65536 ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(headerLength + payload.length);
+        frame.put((byte) (0x80 | (compressed ? 0x40 : 0) | opcode));
+        if (headerLength == 2) {
+            frame.put((byte) payload.length);
+        } else if (headerLength == 4) {
+            frame.put((byte) 126);
+            frame.putShort((short) payload.length);
+        } else {
+            frame.put((byte) 127);
+            frame.putLong(payload.length);
+        }
+        return frame.put(payload).flip();
+    }
+
+    /**
+     * Compress a message for the permessage-deflate extension: a raw deflate stream, flushed and without the empty
+     * block the flush ends with.
+     */
+    private static byte[] deflate(byte[] message) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(message);
+        // Even incompressible frames grow by only a few bytes
+        byte[] deflated = new byte[message.length + 64];
+        int length = deflater.deflate(deflated, 0, deflated.length, Deflater.SYNC_FLUSH);
+        return Arrays.copyOf(deflated, length - DEFLATE_TAIL.length);
+    }
+
+    /**
+     * A connection, owned by the socket thread apart from the frames queued for it.
+     */
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer input = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private SelectionKey key;
+        private Session session;
+        private boolean compress;
+        private boolean closing;
+        // Only touched by the thread emulating the session
+        private boolean needsWholeScreen = true;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void enqueue(ByteBuffer buffer) {
+            queuedBytes.addAndGet(buffer.capacity());
+            output.add(buffer);
+        }
+    }
+
+    private final class Session {
+        private final long id;
+        private final Machine machine;
+        private final Connection player;
+        private final List<Connection> viewers = new CopyOnWriteArrayList<>();
+        private final Bitplanes previous = new Bitplanes();
+        // Only touched by the threads emulating the session, one frame at a time
+        private boolean failed;
+
+        private Session(long id, Machine machine, Connection player) {
+            this.id = id;
+            this.machine = machine;
+            this.player = player;
+        }
+
+        /**
+         * Emulate a frame and queue the rows that changed for every viewer. A session that fails is ended, the other
+         * sessions keep running.
+         */
+        private void runFrame(long windowStart, long windowEnd) {
+            if (failed) {
+                return;
+            }
+            try {
+                emulateFrame(windowStart, windowEnd);
+            } catch (Throwable e) {
+                System.err.println("Session " + id + " failed: " + e);
+                failed = true;
+                tasks.add(() -> end(this, CLOSE_INTERNAL_ERROR));
+            }
+        }
+
+        private void emulateFrame(long windowStart, long windowEnd) {
+            machine.runFrame(machine.getCyclesPerFrame(), windowStart, windowEnd);
+            Bitplanes display = machine.getDisplay();
+            Message changes = null;
+            Message wholeScreen = null;
+            for (Connection viewer : viewers) {
+                Message message;
+                if (viewer.needsWholeScreen) {
+                    wholeScreen = wholeScreen != null ? wholeScreen : new Message(encode(display, true));
+                    message = wholeScreen;
+                } else {
+                    changes = changes != null ? changes : new Message(encode(display, false));
+                    message = changes;
+                }
+                if (message.isEmpty()) {
+                    continue;
+                }
+                if (viewer.queuedBytes.get() > MAX_QUEUED_BYTES) {
+                    viewer.needsWholeScreen = true;
+                    droppedFrames.incrementAndGet();
+                    continue;
+                }
+                viewer.needsWholeScreen = false;
+                viewer.enqueue(message.frame(viewer.compress).duplicate());
+                if (viewer.flushScheduled.compareAndSet(false, true)) {
+                    flushes.add(viewer);
+                }
+            }
+            previous.copyFrom(display);
+        }
+
+        /**
+         * @return the rows that differ from the previous frame, or every row, or null if no row changed
+         */
+        private byte[] encode(Bitplanes display, boolean wholeScreen) {
+            boolean resized = wholeScreen || display.getWidth() != previous.getWidth()
+                              || display.getHeight() != previous.getHeight()
+                              || display.getPlanes() != previous.getPlanes();
+            int wordsPerRow = display.getWidth() / 64;
+            ByteBuffer message = ByteBuffer.wrap(FRAME_BUFFERS.get());
+            message.put((byte) display.getWidth());
+            message.put((byte) display.getHeight());
+            message.put((byte) display.getPlanes());
+            boolean changed = resized;
+            for (int plane = 0; plane < display.getPlanes(); plane++) {
+                long changedRows = 0;
+                for (int y = 0; y < display.getHeight(); y++) {
+                    for (int word = 0; word < wordsPerRow; word++) {
+                        if (resized || display.getWord(plane, y, word) != previous.getWord(plane, y, word)) {
+                            changedRows |= 1L << y;
+                        }
+                    }
+                }
+                changed |= changedRows != 0;
+                message.putLong(changedRows);
+                for (long rows = changedRows; rows != 0; rows &= rows - 1) {
+                    int y = Long.numberOfTrailingZeros(rows);
+                    for (int word = 0; word < wordsPerRow; word++) {
+                        message.putLong(display.getWord(plane, y, word));
+                    }
+                }
+            }
+            return changed ? Arrays.copyOf(message.array(), message.position()) : null;
+        }
+    }
+
+    /**
+     * A frame for all viewers of a session, framed for the clients that asked for compression and for those that did
+     * not as they need it.
+     */
+    private static final class Message {
+        private final byte[] payload;
+        private ByteBuffer plain;
+        private ByteBuffer compressed;
+
+        private Message(byte[] payload) {
+            this.payload = payload;
+        }
+
+        private boolean isEmpty() {
+            return payload == null;
+        }
+
+        private ByteBuffer frame(boolean compress) {
+            if (compress) {
+                compressed = compressed != null ? compressed : EmulationServer.frame(OP_BINARY, true, deflate(payload));
+                return compressed;
+            }
+            plain = plain != null ? plain : EmulationServer.frame(OP_BINARY, false, payload);
+            return plain;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path directory = null;
+        int port = DEFAULT_PORT;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        boolean valid = true;
+        for (int i = 0; i < args.length && valid; i++) {
+            switch (args[i]) {
+                case "--port" -> {
+                    valid = i + 1 < args.length;
+                    port = valid ? Integer.parseInt(args[++i]) : 0;
+                }
+                case "--parallelism" -> {
+                    valid = i + 1 < args.length;
+                    parallelism = valid ? Integer.parseInt(args[++i]) : 0;
+                }
+                default -> {
+                    valid = directory == null;
+                    directory = Path.of(args[i]);
+                }
+            }
+        }
+        if (!valid || directory == null) {
+            System.err.println("Usage: EmulationServer <directory> [--port N] [--parallelism N]");
+            System.exit(2);
+            return;
+        }
+
+        RomCatalog catalog = new RomCatalog(directory.resolve(RomCatalog.DEFAULT_INDEX_NAME),
+                                            RomCatalog.DEFAULT_THUMBNAIL_FRAMES);
+        List<RomCatalog.Entry> entries = catalog.scan(directory, parallelism);
+        catalog.preload(parallelism);
+        EmulationServer server = new EmulationServer(catalog, new InetSocketAddress(port), parallelism);
+        System.out.printf("Serving %d ROMs on http://localhost:%d/%n", entries.size(), server.getPort());
+    }
+}
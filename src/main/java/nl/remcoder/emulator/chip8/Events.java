@@ -0,0 +1,68 @@
+package nl.remcoder.emulator.chip8;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JDK Flight Recorder events of the emulator. All of them are cheap enough to leave in the code, when they are not
+ * enabled in the recording settings creating and committing them costs next to nothing.
+ */
+final class Events {
+    private static final String CATEGORY = "CHIP-8";
+
+    private Events() {
+    }
+
+    @Name("nl.remcoder.chip8.CycleBatch")
+    @Label("Cycle Batch")
+    @Description("A batch of instructions executed in one go, usually the instructions of one frame")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class CycleBatch extends Event {
+        @Label("Instructions")
+        long instructions;
+
+        @Label("Compiled")
+        @Description("Whether the compiling tier was switched on")
+        boolean jit;
+    }
+
+    @Name("nl.remcoder.chip8.FramePaint")
+    @Label("Frame Paint")
+    @Description("A frame drawn to the screen")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class FramePaint extends Event {
+        @Label("Dirty Rows")
+        @Description("Bit mask of the rows that were redrawn")
+        long dirtyRows;
+    }
+
+    @Name("nl.remcoder.chip8.RomLoad")
+    @Label("ROM Load")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class RomLoad extends Event {
+        @Label("ROM Size")
+        @DataAmount
+        int romSize;
+    }
+
+    @Name("nl.remcoder.chip8.TimerTick")
+    @Label("Timer Tick")
+    @Description("The 60 Hz decrement of the delay and sound timers")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class TimerTick extends Event {
+        @Label("Delay Timer")
+        int delayTimer;
+
+        @Label("Sound Timer")
+        int soundTimer;
+    }
+}
@@ -0,0 +1,35 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Turns the frames recorded by a {@link FrameRecorder} into a file. Only ever called from the encoder thread of the
+ * recorder, so implementations need not be thread-safe.
+ */
+public interface FrameEncoder extends Closeable {
+    /**
+     * Encode the next frame. Every frame stands for 1/60th of a second.
+     *
+     * @param frame the frame, only valid during this call
+     * @throws IOException if the frame could not be written
+     */
+    void encode(Bitplanes frame) throws IOException;
+
+    /**
+     * Open an encoder that writes to a file: an animated GIF if the name ends in {@code .gif}, a stream of packed
+     * frames otherwise.
+     *
+     * @param file the file to write to, replaced if it exists
+     * @return the encoder
+     * @throws IOException if the file could not be created
+     */
+    static FrameEncoder forFile(Path file) throws IOException {
+        if (file.getFileName().toString().toLowerCase().endsWith(".gif")) {
+            return new GifEncoder(Files.newOutputStream(file));
+        }
+        return new PackedFrameWriter(Files.newOutputStream(file));
+    }
+}
@@ -0,0 +1,93 @@
+package nl.remcoder.emulator.chip8;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands complete frames from the emulation thread to a renderer on another thread.
+ * <p>
+ * This is a triple buffer: the emulation thread copies a finished frame into its back buffer and swaps it with the
+ * middle buffer, the renderer swaps its front buffer with the middle buffer whenever a newer frame is waiting there.
+ * Both swaps are a single atomic operation, so neither side ever blocks or waits for the other, the renderer always
+ * sees a whole frame, and nothing is allocated after construction.
+ * <p>
+ * There must be at most one thread publishing and one thread acquiring frames.
+ */
+public class FrameExchange {
+    private static final int INDEX_MASK = 0b11;
+    private static final int FRESH = 0b100;
+
+    private final Bitplanes[] buffers = {new Bitplanes(), new Bitplanes(), new Bitplanes()};
+    private final long[] dirtyRows = new long[3];
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 0;
+    private long pendingDirtyRows = 0;
+    private int front = 2;
+    private long frontDirtyRows = 0;
+    private volatile long droppedFrames = 0;
+
+    /**
+     * Publish a complete frame. Only to be called from the emulation thread.
+     * <p>
+     * Rows changed in frames the renderer never got to see are carried over to the next frame, so the dirty rows of
+     * an acquired frame always cover everything that changed since the frame acquired before it.
+     *
+     * @param display the frame, which is copied so the caller is free to change it afterwards
+     * @param changedRows a bit mask of the rows that changed since the previously published frame
+     */
+    public void publish(Bitplanes display, long changedRows) {
+        if ((middle.get() & FRESH) == 0) {
+            // The renderer has taken the previous frame, so it only has to know about the rows changed since then
+            pendingDirtyRows = 0;
+        }
+        pendingDirtyRows |= changedRows;
+
+        buffers[back].copyFrom(display);
+        dirtyRows[back] = pendingDirtyRows;
+        int previous = middle.getAndSet(back | FRESH);
+        if ((previous & FRESH) != 0) {
+            droppedFrames++;
+        }
+        back = previous & INDEX_MASK;
+    }
+
+    /**
+     * Get the most recently published frame. Only to be called from the rendering thread.
+     * <p>
+     * The returned framebuffer stays untouched until the next call to this method.
+     *
+     * @return the latest complete frame
+     */
+    public Bitplanes acquire() {
+        if ((middle.get() & FRESH) != 0) {
+            front = middle.getAndSet(front) & INDEX_MASK;
+            frontDirtyRows = dirtyRows[front];
+        } else {
+            frontDirtyRows = 0;
+        }
+        return buffers[front];
+    }
+
+    /**
+     * Get the rows that changed between the frame returned by the last call to {@link #acquire()} and the frame
+     * acquired before it. Only to be called from the rendering thread.
+     *
+     * @return a bit mask of the changed rows, 0 if the frame did not change at all
+     */
+    public long getDirtyRows() {
+        return frontDirtyRows;
+    }
+
+    /**
+     * @return true if a frame was published that has not been acquired yet
+     */
+    public boolean hasNewFrame() {
+        return (middle.get() & FRESH) != 0;
+    }
+
+    /**
+     * @return the number of published frames that were replaced by a newer frame before they were acquired
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+}
@@ -0,0 +1,162 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the frames of a {@link Machine} to a {@link FrameEncoder} on a background thread, so encoding and writing
+ * never hold up emulation.
+ * <p>
+ * Set as the display sink of a machine, every frame is copied into a bounded ring of framebuffers that are allocated
+ * up front. Like the {@link KeyEventQueue} this ring has a single producer and a single consumer that each own one
+ * counter, so handing over a frame takes no lock and allocates nothing. When the encoder falls behind and the ring is
+ * full, the emulation thread either drops the frame or waits for the encoder, depending on how the recorder was
+ * created. Both are counted, see {@link #getDroppedFrames()} and {@link #getBlockedNanos()}.
+ */
+public final class FrameRecorder implements DisplaySink, Closeable {
+    private static final long WAIT_NANOS = 100_000L;
+
+    private final FrameEncoder encoder;
+    private final Bitplanes[] frames;
+    private final int mask;
+    private final boolean dropWhenFull;
+    // The next frame to encode, only written by the encoder thread
+    private final AtomicLong head = new AtomicLong();
+    // The next frame to record, only written by the emulation thread
+    private final AtomicLong tail = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean closing = false;
+    private volatile IOException failure;
+    private volatile long droppedFrames = 0;
+    private volatile long blockedNanos = 0;
+    private volatile long encodedFrames = 0;
+
+    /**
+     * Start the encoder thread.
+     *
+     * @param encoder the encoder, closed when the recorder is closed
+     * @param capacity the number of frames that can wait for the encoder, a power of two
+     * @param dropWhenFull true to drop frames while the encoder is behind, false to make the emulation thread wait
+     */
+    public FrameRecorder(FrameEncoder encoder, int capacity, boolean dropWhenFull) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two, was " + capacity);
+        }
+        this.encoder = encoder;
+        this.dropWhenFull = dropWhenFull;
+        frames = new Bitplanes[capacity];
+        for (int i = 0; i < capacity; i++) {
+            frames[i] = new Bitplanes();
+        }
+        mask = capacity - 1;
+        thread = new Thread(this::encodeFrames, "chip8-frame-encoder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a frame for the encoder. Only to be called from the emulation thread.
+     *
+     * @throws UncheckedIOException if the encoder failed on an earlier frame
+     */
+    @Override
+    public void frame(Bitplanes display, long dirtyRows) {
+        IOException failure = this.failure;
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+        long position = tail.get();
+        if (position - head.get() > mask) {
+            if (dropWhenFull) {
+                droppedFrames++;
+                return;
+            }
+            long start = System.nanoTime();
+            while (position - head.get() > mask) {
+                LockSupport.parkNanos(this, WAIT_NANOS);
+            }
+            blockedNanos += System.nanoTime() - start;
+        }
+        frames[(int) position & mask].copyFrom(display);
+        tail.lazySet(position + 1);
+        LockSupport.unpark(thread);
+    }
+
+    private void encodeFrames() {
+        while (true) {
+            // Read the flag before the tail, so no frame queued before closing is missed
+            boolean done = closing;
+            long position = head.get();
+            if (position == tail.get()) {
+                if (done) {
+                    return;
+                }
+                LockSupport.park(this);
+                continue;
+            }
+            if (failure == null) {
+                try {
+                    encoder.encode(frames[(int) position & mask]);
+                    encodedFrames++;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            head.lazySet(position + 1);
+        }
+    }
+
+    /**
+     * Wait for the encoder to finish the frames that are queued, then close it. Only to be called from the emulation
+     * thread, after the last frame.
+     *
+     * @throws UncheckedIOException if the encoder failed
+     */
+    @Override
+    public void close() {
+        closing = true;
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        try (encoder) {
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the number of frames dropped because the encoder was behind
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return the total time the emulation thread spent waiting for the encoder, in nanoseconds
+     */
+    public long getBlockedNanos() {
+        return blockedNanos;
+    }
+
+    /**
+     * @return the number of frames encoded so far
+     */
+    public long getEncodedFrames() {
+        return encodedFrames;
+    }
+}
@@ -0,0 +1,265 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes frames as an endlessly looping animated GIF of 128x64 pixels, in the colors of the {@link ScreenRenderer}.
+ * At 64x32 every pixel becomes a block of 2x2.
+ * <p>
+ * Only changes are written. A frame that looks the same as the one before it adds to the delay of that frame, and a
+ * frame that differs is written as the band from the first to the last changed row, on top of what was already
+ * there. GIF delays are in hundredths of a second, so they are rounded in a way that never lets the animation drift
+ * from the 60 Hz it was recorded at. Browsers and most viewers show a frame with a delay of less than
+ * {@value #MIN_DELAY} hundredths for a tenth of a second, so a frame that would get such a delay is merged into the
+ * next one instead.
+ * <p>
+ * The pixels are compressed with the LZW variant GIF requires, using tables that are allocated once, so encoding a
+ * frame does not allocate.
+ */
+public class GifEncoder implements FrameEncoder {
+    private static final int WIDTH = Bitplanes.MAX_WIDTH;
+    private static final int HEIGHT = Bitplanes.MAX_HEIGHT;
+    // Indexed by the color of a pixel, one bit per plane
+    private static final int[] PALETTE = {
+            0x000000, // Color.BLACK
+            0x32CD32, // Color.LIMEGREEN
+            0x1E90FF, // Color.DODGERBLUE
+            0xFFFFFF  // Color.WHITE
+    };
+    private static final int MIN_DELAY = 2;
+    private static final int MIN_CODE_SIZE = 2;
+    private static final int CLEAR_CODE = 1 << MIN_CODE_SIZE;
+    private static final int END_CODE = CLEAR_CODE + 1;
+    private static final int MAX_CODE_SIZE = 12;
+    private static final int MAX_CODES = 1 << MAX_CODE_SIZE;
+    // A prime comfortably larger than the number of codes, so probing stays short
+    private static final int HASH_SIZE = 5003;
+
+    private final OutputStream output;
+    private final byte[] current = new byte[WIDTH * HEIGHT];
+    private final byte[] written = new byte[WIDTH * HEIGHT];
+    private long frames = 0;
+    private long pendingStart = -1;
+    private int pendingTop;
+    private int pendingBottom;
+
+    private final int[] hashKeys = new int[HASH_SIZE];
+    private final int[] hashCodes = new int[HASH_SIZE];
+    private final byte[] block = new byte[255];
+    private int blockSize;
+    private int bitBuffer;
+    private int bitCount;
+    private int codeSize;
+    private int nextCode;
+
+    /**
+     * @param output the stream to write to, closed when this encoder is closed
+     * @throws IOException if the header could not be written
+     */
+    public GifEncoder(OutputStream output) throws IOException {
+        this.output = new BufferedOutputStream(output);
+        writeAscii("GIF89a");
+        writeShort(WIDTH);
+        writeShort(HEIGHT);
+        // A global color table of 4 entries, 8 bits per primary color
+        this.output.write(0xF1);
+        this.output.write(0);
+        this.output.write(0);
+        for (int color : PALETTE) {
+            this.output.write(color >> 16);
+            this.output.write(color >> 8);
+            this.output.write(color);
+        }
+        // Loop forever
+        this.output.write(0x21);
+        this.output.write(0xFF);
+        this.output.write(11);
+        writeAscii("NETSCAPE2.0");
+        this.output.write(3);
+        this.output.write(1);
+        writeShort(0);
+        this.output.write(0);
+    }
+
+    @Override
+    public void encode(Bitplanes frame) throws IOException {
+        int scale = WIDTH / frame.getWidth();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                current[y * WIDTH + x] = (byte) frame.getPixel(x / scale, y / scale);
+            }
+        }
+        int top = 0;
+        int bottom = HEIGHT - 1;
+        if (pendingStart >= 0) {
+            while (top < HEIGHT && rowUnchanged(top)) {
+                top++;
+            }
+            if (top == HEIGHT) {
+                // Nothing changed, the pending frame is shown a little longer
+                frames++;
+                return;
+            }
+            while (rowUnchanged(bottom)) {
+                bottom--;
+            }
+            if (centiseconds(frames) - centiseconds(pendingStart) < MIN_DELAY) {
+                // Too short to be shown as written, the pending frame takes on the changes and keeps its start
+                System.arraycopy(current, 0, written, 0, current.length);
+                pendingTop = Math.min(pendingTop, top);
+                pendingBottom = Math.max(pendingBottom, bottom);
+                frames++;
+                return;
+            }
+        }
+        writePendingFrame();
+        System.arraycopy(current, 0, written, 0, current.length);
+        pendingStart = frames;
+        pendingTop = top;
+        pendingBottom = bottom;
+        frames++;
+    }
+
+    private boolean rowUnchanged(int y) {
+        return Arrays.equals(current, y * WIDTH, (y + 1) * WIDTH, written, y * WIDTH, (y + 1) * WIDTH);
+    }
+
+    /**
+     * Write the frame that is waiting for its delay to be known, which is now.
+     */
+    private void writePendingFrame() throws IOException {
+        if (pendingStart < 0) {
+            return;
+        }
+        // Only the last frame can be this short
+        int delay = (int) Math.max(centiseconds(frames) - centiseconds(pendingStart), MIN_DELAY);
+
+        // Graphic control extension: leave the frame in place, draw the next one over it
+        output.write(0x21);
+        output.write(0xF9);
+        output.write(4);
+        output.write(0x04);
+        writeShort(delay);
+        output.write(0);
+        output.write(0);
+
+        // Image descriptor, without a local color table
+        int height = pendingBottom - pendingTop + 1;
+        output.write(0x2C);
+        writeShort(0);
+        writeShort(pendingTop);
+        writeShort(WIDTH);
+        writeShort(height);
+        output.write(0);
+
+        output.write(MIN_CODE_SIZE);
+        compress(written, pendingTop * WIDTH, (pendingBottom + 1) * WIDTH);
+        output.write(0);
+    }
+
+    private static long centiseconds(long frames) {
+        return (frames * 100 + EmulationScheduler.FRAMES_PER_SECOND / 2) / EmulationScheduler.FRAMES_PER_SECOND;
+    }
+
+    /**
+     * Compress pixels with variable length LZW codes, written in data sub-blocks.
+     */
+    private void compress(byte[] pixels, int from, int to) throws IOException {
+        blockSize = 0;
+        bitBuffer = 0;
+        bitCount = 0;
+        resetTable();
+        writeCode(CLEAR_CODE);
+        int prefix = pixels[from];
+        for (int i = from + 1; i < to; i++) {
+            int pixel = pixels[i];
+            int key = pixel << MAX_CODE_SIZE | prefix;
+            int slot = key % HASH_SIZE;
+            while (hashKeys[slot] != -1 && hashKeys[slot] != key) {
+                slot = slot + 1 == HASH_SIZE ? 0 : slot + 1;
+            }
+            if (hashKeys[slot] == key) {
+                prefix = hashCodes[slot];
+                continue;
+            }
+            writeCode(prefix);
+            prefix = pixel;
+            if (nextCode < MAX_CODES) {
+                hashKeys[slot] = key;
+                hashCodes[slot] = nextCode++;
+            } else {
+                // The table is full, start over
+                writeCode(CLEAR_CODE);
+                resetTable();
+            }
+        }
+        writeCode(prefix);
+        writeCode(END_CODE);
+        if (bitCount > 0) {
+            writeBlockByte(bitBuffer);
+        }
+        if (blockSize > 0) {
+            flushBlock();
+        }
+    }
+
+    private void resetTable() {
+        Arrays.fill(hashKeys, -1);
+        codeSize = MIN_CODE_SIZE + 1;
+        nextCode = END_CODE + 1;
+    }
+
+    /**
+     * Write a code at the current code size, and widen the codes once the decoder will have run out of them.
+     */
+    private void writeCode(int code) throws IOException {
+        bitBuffer |= code << bitCount;
+        bitCount += codeSize;
+        while (bitCount >= 8) {
+            writeBlockByte(bitBuffer);
+            bitBuffer >>>= 8;
+            bitCount -= 8;
+        }
+        if (nextCode > (1 << codeSize) - 1 && codeSize < MAX_CODE_SIZE) {
+            codeSize++;
+        }
+    }
+
+    private void writeBlockByte(int value) throws IOException {
+        block[blockSize++] = (byte) value;
+        if (blockSize == block.length) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        output.write(blockSize);
+        output.write(block, 0, blockSize);
+        blockSize = 0;
+    }
+
+    private void writeShort(int value) throws IOException {
+        output.write(value);
+        output.write(value >> 8);
+    }
+
+    private void writeAscii(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            output.write(text.charAt(i));
+        }
+    }
+
+    /**
+     * Write the last frame and the trailer.
+     */
+    @Override
+    public void close() throws IOException {
+        try (output) {
+            writePendingFrame();
+            output.write(0x3B);
+        }
+    }
+}
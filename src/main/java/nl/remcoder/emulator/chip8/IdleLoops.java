@@ -0,0 +1,139 @@
+package nl.remcoder.emulator.chip8;
+
+import static nl.remcoder.emulator.chip8.Instructions.*;
+
+/**
+ * Recognizes the loops ROMs spin in while they have nothing to do, so the machine can skip them instead of executing
+ * them instruction by instruction.
+ * <p>
+ * Three kinds of loop are recognized, all of which can only end at a frame boundary, because keys only change and
+ * timers only tick between frames:
+ * <ul>
+ *     <li>FX0A while no key is pressed</li>
+ *     <li>a jump to itself</li>
+ *     <li>polling the delay timer: FX07 at address A, 3XNN or 4XNN on the same register at A + 2 and a jump back to
+ *     A at A + 4, as long as the value read from the delay timer keeps the loop going</li>
+ * </ul>
+ * Skipping leaves the CPU in exactly the state executing the loop would have.
+ */
+final class IdleLoops {
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private IdleLoops() {
+    }
+
+    /**
+     * Skip the rest of a batch of instructions if the CPU is in an idle loop. When the CPU is in the middle of a delay
+     * timer polling loop, up to two instructions are executed first to get to its start.
+     *
+     * @param cpu the CPU
+     * @param budget the number of instructions left in the batch, all in the same frame
+     * @return the number of instructions executed or skipped, either the whole budget, or a few if the CPU turned out
+     *         not to be idle
+     */
+    static int skip(CPU cpu, int budget) {
+        int consumed = 0;
+        while (true) {
+            int pc = cpu.pc;
+            int opcode = opcodeAt(cpu.memory, pc);
+            int operation = Instructions.operationOf(opcode);
+            if (operation == OP_FX0A && cpu.keys == 0 || operation == OP_1NNN && (opcode & 0xFFF) == pc) {
+                return budget;
+            }
+
+            int start = pollLoopStart(cpu.memory, pc);
+            if (start < 0 || !keepsPolling(cpu, start)) {
+                return consumed;
+            }
+            if (start == pc) {
+                // Each round is FX07, the skip that is not taken and the jump back
+                int remaining = budget - consumed;
+                if (remaining > 0) {
+                    cpu.registers[(opcode >> 8) & 0xF] = cpu.delay_timer;
+                    cpu.pc = start + 2 * (remaining % 3);
+                }
+                return budget;
+            }
+            if (consumed == budget) {
+                return consumed;
+            }
+            cpu.emulateCycle();
+            consumed++;
+        }
+    }
+
+    /**
+     * Work out how many of the coming frames the CPU will spend idling without anything changing that can be seen
+     * from outside, so whoever drives the machine could sleep through them.
+     *
+     * @param cpu the CPU, between two frames
+     * @param keysPolled true if the key can change at the start of every frame without notice
+     * @return the number of coming frames that are certainly idle, {@link #UNLIMITED} if the CPU idles until a key is
+     *         pressed or forever
+     */
+    static int idleFrames(CPU cpu, boolean keysPolled) {
+        int pc = cpu.pc;
+        int opcode = opcodeAt(cpu.memory, pc);
+        int operation = Instructions.operationOf(opcode);
+        int frames;
+        if (operation == OP_FX0A && cpu.keys == 0) {
+            frames = keysPolled ? 0 : UNLIMITED;
+        } else if (operation == OP_1NNN && (opcode & 0xFFF) == pc) {
+            frames = UNLIMITED;
+        } else {
+            int start = pollLoopStart(cpu.memory, pc);
+            if (start < 0) {
+                return 0;
+            }
+            int skip = opcodeAt(cpu.memory, start + 2);
+            int delay = cpu.delay_timer;
+            int NN = skip & 0xFF;
+            if (skip >> 12 == 0x3) {
+                // Polls until the delay timer reaches NN, one tick per frame
+                frames = NN > delay ? UNLIMITED : delay - NN;
+            } else {
+                // Polls while the delay timer is NN, which lasts a single frame unless it is 0
+                frames = delay != NN ? 0 : delay == 0 ? UNLIMITED : 1;
+            }
+        }
+        if (cpu.sound_timer > 0) {
+            // The frame the beep stops in has to be on time
+            frames = Math.min(frames, cpu.sound_timer - 1);
+        }
+        return frames;
+    }
+
+    /**
+     * @return the start of the delay timer polling loop the address is part of, or -1 if it is not part of one
+     */
+    private static int pollLoopStart(byte[] memory, int pc) {
+        for (int start = pc; start >= pc - 4 && start >= 0; start -= 2) {
+            if (isPollLoop(memory, start)) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isPollLoop(byte[] memory, int start) {
+        int read = opcodeAt(memory, start);
+        int skip = opcodeAt(memory, start + 2);
+        int jump = opcodeAt(memory, start + 4);
+        int operation = Instructions.operationOf(skip);
+        return Instructions.operationOf(read) == OP_FX07
+                && (operation == OP_3XNN || operation == OP_4XNN)
+                && (skip & 0x0F00) == (read & 0x0F00)
+                && jump == (0x1000 | start);
+    }
+
+    private static boolean keepsPolling(CPU cpu, int start) {
+        int skip = opcodeAt(cpu.memory, start + 2);
+        boolean equal = cpu.delay_timer == (skip & 0xFF);
+        return skip >> 12 == 0x3 ? !equal : equal;
+    }
+
+    private static int opcodeAt(byte[] memory, int address) {
+        int mask = memory.length - 1;
+        return (memory[address & mask] & 0xFF) << 8 | memory[(address + 1) & mask] & 0xFF;
+    }
+}
@@ -0,0 +1,82 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.HexFormat;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the recording of a run that {@link Replay} plays back.
+ * <p>
+ * A recording is gzip compressed and starts with a magic number, a format version, the random seed, the
+ * {@link Mode} and the {@link QuirkProfile} as their ordinals in a byte each and the SHA-256 hash of the ROM. It is
+ * followed by events, each a tag byte and its operands:
+ * <ul>
+ *     <li>{@link #KEY_CHANGED}: the number of instructions since the previous key change as a varint, followed by
+ *     the bit mask of the keys held down after it as two bytes</li>
+ *     <li>{@link #FRAME}: the number of instructions executed in the frame as a varint</li>
+ *     <li>{@link #END}: the end of the recording</li>
+ * </ul>
+ * Almost every frame has the same length, so compressed a frame costs well under a byte.
+ */
+public class InputRecorder implements Closeable {
+    static final int MAGIC = 0x43385250;
+    static final int VERSION = 4;
+    static final int KEY_CHANGED = 1;
+    static final int FRAME = 2;
+    static final int END = 3;
+
+    private final DataOutputStream output;
+    private long lastKeyChange = 0;
+
+    InputRecorder(OutputStream output, long seed, Mode mode, QuirkProfile quirks, byte[] romdata) throws IOException {
+        this.output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(output)));
+        this.output.writeInt(MAGIC);
+        this.output.writeShort(VERSION);
+        this.output.writeLong(seed);
+        this.output.write(mode.ordinal());
+        this.output.write(quirks.ordinal());
+        this.output.write(HexFormat.of().parseHex(AotCache.hash(romdata)));
+    }
+
+    void keyChanged(long cycle, int keys) {
+        try {
+            output.write(KEY_CHANGED);
+            writeVarint(cycle - lastKeyChange);
+            output.writeShort(keys);
+            lastKeyChange = cycle;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void frameEnded(int cycles) {
+        try {
+            output.write(FRAME);
+            writeVarint(cycles);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try (output) {
+            output.write(END);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while (value >= 0x80) {
+            output.write((int) (value | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+}
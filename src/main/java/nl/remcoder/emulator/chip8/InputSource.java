@@ -0,0 +1,12 @@
+package nl.remcoder.emulator.chip8;
+
+/**
+ * Supplies the key state to a {@link Machine}, polled at the start of every emulated frame.
+ */
+@FunctionalInterface
+public interface InputSource {
+    /**
+     * @return a bit mask of the keys that are currently held down, bit 0 for key 0x0 up to bit 15 for key 0xF
+     */
+    int currentKeys();
+}
@@ -0,0 +1,221 @@
+package nl.remcoder.emulator.chip8;
+
+/**
+ * Operation identifiers for decoded CHIP-8 instructions, and the SUPER-CHIP and XO-CHIP extensions.
+ * <p>
+ * A decoded instruction is stored as a single int: the operation in the upper 16 bits and the raw opcode in the lower
+ * 16 bits, so X, Y, N, NN and NNN can all be taken from it with a single shift and mask. The value 0 is never a valid
+ * decoded instruction and marks an entry that still has to be decoded.
+ */
+final class Instructions {
+    static final int NOT_DECODED = 0;
+
+    static final int OP_NOP = 1;
+    static final int OP_00E0 = 2;
+    static final int OP_00EE = 3;
+    static final int OP_1NNN = 4;
+    static final int OP_2NNN = 5;
+    static final int OP_3XNN = 6;
+    static final int OP_4XNN = 7;
+    static final int OP_5XY0 = 8;
+    static final int OP_6XNN = 9;
+    static final int OP_7XNN = 10;
+    static final int OP_8XY0 = 11;
+    static final int OP_8XY1 = 12;
+    static final int OP_8XY2 = 13;
+    static final int OP_8XY3 = 14;
+    static final int OP_8XY4 = 15;
+    static final int OP_8XY5 = 16;
+    static final int OP_8XY6 = 17;
+    static final int OP_8XY7 = 18;
+    static final int OP_8XYE = 19;
+    static final int OP_9XY0 = 20;
+    static final int OP_ANNN = 21;
+    static final int OP_BNNN = 22;
+    static final int OP_CXNN = 23;
+    static final int OP_DXYN = 24;
+    static final int OP_EX9E = 25;
+    static final int OP_EXA1 = 26;
+    static final int OP_FX07 = 27;
+    static final int OP_FX0A = 28;
+    static final int OP_FX15 = 29;
+    static final int OP_FX18 = 30;
+    static final int OP_FX1E = 31;
+    static final int OP_FX29 = 32;
+    static final int OP_FX33 = 33;
+    static final int OP_FX55 = 34;
+    static final int OP_FX65 = 35;
+    static final int OP_00CN = 36;
+    static final int OP_00DN = 37;
+    static final int OP_00FB = 38;
+    static final int OP_00FC = 39;
+    static final int OP_00FD = 40;
+    static final int OP_00FE = 41;
+    static final int OP_00FF = 42;
+    static final int OP_5XY2 = 43;
+    static final int OP_5XY3 = 44;
+    static final int OP_F000 = 45;
+    static final int OP_FN01 = 46;
+    static final int OP_F002 = 47;
+    static final int OP_FX30 = 48;
+    static final int OP_FX3A = 49;
+    static final int OP_FX75 = 50;
+    static final int OP_FX85 = 51;
+    // Variants of the ambiguous operations, see QuirkProfile
+    static final int OP_8XY6_VX = 52;
+    static final int OP_8XYE_VX = 53;
+    static final int OP_FX55_KEEP_I = 54;
+    static final int OP_FX65_KEEP_I = 55;
+    static final int OP_DXYN_CLIP = 56;
+    static final int OP_BXNN = 57;
+
+    /**
+     * The number of operation identifiers, for tables indexed by operation.
+     */
+    static final int OPERATION_COUNT = OP_BXNN + 1;
+
+    private Instructions() {
+    }
+
+    /**
+     * Decode a raw opcode into a decoded instruction for the given machine, with the ambiguous operations replaced by
+     * the variants of the given profile.
+     *
+     * @param opcode the raw 16 bit opcode
+     * @param mode the machine, which decides which extensions are available
+     * @param quirks the profile, which decides how the ambiguous operations behave
+     * @return the operation in the upper 16 bits and the opcode in the lower 16 bits
+     */
+    static int decode(int opcode, Mode mode, QuirkProfile quirks) {
+        return quirks.specialize(operationOf(opcode, mode)) << 16 | opcode;
+    }
+
+    static int operationOf(int opcode, Mode mode) {
+        if (mode != Mode.CHIP8) {
+            int operation = extendedOperationOf(opcode, mode == Mode.XOCHIP);
+            if (operation != OP_NOP) {
+                return operation;
+            }
+        }
+        return operationOf(opcode);
+    }
+
+    /**
+     * @return the SUPER-CHIP or XO-CHIP operation, or {@link #OP_NOP} if the opcode is not an extension
+     */
+    private static int extendedOperationOf(int opcode, boolean xoChip) {
+        return switch (opcode >> 12) {
+            case 0x0 -> switch (opcode & 0xFFF0) {
+                case 0x00C0 -> OP_00CN;
+                case 0x00D0 -> xoChip ? OP_00DN : OP_NOP;
+                default -> switch (opcode) {
+                    case 0x00FB -> OP_00FB;
+                    case 0x00FC -> OP_00FC;
+                    case 0x00FD -> OP_00FD;
+                    case 0x00FE -> OP_00FE;
+                    case 0x00FF -> OP_00FF;
+                    default -> OP_NOP;
+                };
+            };
+            case 0x5 -> !xoChip ? OP_NOP : switch (opcode & 0xF) {
+                case 0x2 -> OP_5XY2;
+                case 0x3 -> OP_5XY3;
+                default -> OP_NOP;
+            };
+            case 0xF -> switch (opcode & 0xFF) {
+                case 0x00 -> xoChip && opcode == 0xF000 ? OP_F000 : OP_NOP;
+                case 0x01 -> xoChip ? OP_FN01 : OP_NOP;
+                case 0x02 -> xoChip && opcode == 0xF002 ? OP_F002 : OP_NOP;
+                case 0x30 -> OP_FX30;
+                case 0x3A -> xoChip ? OP_FX3A : OP_NOP;
+                case 0x75 -> OP_FX75;
+                case 0x85 -> OP_FX85;
+                default -> OP_NOP;
+            };
+            default -> OP_NOP;
+        };
+    }
+
+    static int operationOf(int opcode) {
+        return switch (opcode >> 12) {
+            case 0x0 -> switch (opcode) {
+                case 0x00E0 -> OP_00E0;
+                case 0x00EE -> OP_00EE;
+                default -> OP_NOP;
+            };
+            case 0x1 -> OP_1NNN;
+            case 0x2 -> OP_2NNN;
+            case 0x3 -> OP_3XNN;
+            case 0x4 -> OP_4XNN;
+            case 0x5 -> OP_5XY0;
+            case 0x6 -> OP_6XNN;
+            case 0x7 -> OP_7XNN;
+            case 0x8 -> switch (opcode & 0xF) {
+                case 0x0 -> OP_8XY0;
+                case 0x1 -> OP_8XY1;
+                case 0x2 -> OP_8XY2;
+                case 0x3 -> OP_8XY3;
+                case 0x4 -> OP_8XY4;
+                case 0x5 -> OP_8XY5;
+                case 0x6 -> OP_8XY6;
+                case 0x7 -> OP_8XY7;
+                case 0xE -> OP_8XYE;
+                default -> OP_NOP;
+            };
+            case 0x9 -> OP_9XY0;
+            case 0xA -> OP_ANNN;
+            case 0xB -> OP_BNNN;
+            case 0xC -> OP_CXNN;
+            case 0xD -> OP_DXYN;
+            case 0xE -> switch (opcode & 0xFF) {
+                case 0x9E -> OP_EX9E;
+                case 0xA1 -> OP_EXA1;
+                default -> OP_NOP;
+            };
+            case 0xF -> switch (opcode & 0xFF) {
+                case 0x07 -> OP_FX07;
+                case 0x0A -> OP_FX0A;
+                case 0x15 -> OP_FX15;
+                case 0x18 -> OP_FX18;
+                case 0x1E -> OP_FX1E;
+                case 0x29 -> OP_FX29;
+                case 0x33 -> OP_FX33;
+                case 0x55 -> OP_FX55;
+                case 0x65 -> OP_FX65;
+                default -> OP_NOP;
+            };
+            default -> OP_NOP;
+        };
+    }
+
+    /**
+     * Get the family of an operation, the first hexadecimal digit of its opcode. Unknown opcodes are decoded as
+     * {@link #OP_NOP} and so end up in family 0.
+     *
+     * @param operation the operation identifier
+     * @return the family, from 0x0 to 0xF
+     */
+    static int familyOf(int operation) {
+        return switch (operation) {
+            case OP_00CN, OP_00DN, OP_00FB, OP_00FC, OP_00FD, OP_00FE, OP_00FF -> 0x0;
+            case OP_1NNN -> 0x1;
+            case OP_2NNN -> 0x2;
+            case OP_3XNN -> 0x3;
+            case OP_4XNN -> 0x4;
+            case OP_5XY0, OP_5XY2, OP_5XY3 -> 0x5;
+            case OP_6XNN -> 0x6;
+            case OP_7XNN -> 0x7;
+            case OP_8XY0, OP_8XY1, OP_8XY2, OP_8XY3, OP_8XY4, OP_8XY5, OP_8XY6, OP_8XY7, OP_8XYE, OP_8XY6_VX,
+                 OP_8XYE_VX -> 0x8;
+            case OP_9XY0 -> 0x9;
+            case OP_ANNN -> 0xA;
+            case OP_BNNN, OP_BXNN -> 0xB;
+            case OP_CXNN -> 0xC;
+            case OP_DXYN, OP_DXYN_CLIP -> 0xD;
+            case OP_EX9E, OP_EXA1 -> 0xE;
+            case OP_FX07, OP_FX0A, OP_FX15, OP_FX18, OP_FX1E, OP_FX29, OP_FX33, OP_FX55, OP_FX65, OP_F000, OP_FN01,
+                 OP_F002, OP_FX30, OP_FX3A, OP_FX75, OP_FX85, OP_FX55_KEEP_I, OP_FX65_KEEP_I -> 0xF;
+            default -> 0x0;
+        };
+    }
+}
@@ -1,61 +1,105 @@
 package nl.remcoder.emulator.chip8;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
-import javafx.scene.canvas.Canvas;
-import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Button;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuBar;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.RadioMenuItem;
+import javafx.scene.control.SeparatorMenuItem;
+import javafx.scene.control.ToggleGroup;
 import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCodeCombination;
 import javafx.scene.input.KeyEvent;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Text;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 
+import javax.management.JMException;
+import javax.sound.sampled.LineUnavailableException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 
 public class JavaFXMain extends Application {
+    private static final int VIDEO_QUEUE_CAPACITY = 64;
+    private static final int THUMBNAIL_WIDTH = 64;
+    // Several minutes of a typical game, most frames only take a few bytes
+    private static final int REWIND_MEMORY_BUDGET = 4 * 1024 * 1024;
 
-    private CPU cpu;
+    private Machine machine;
     private Stage stage;
     private DisplayTimer displayTimer;
-    private CPUTimer cpuTimer;
+    private EmulationScheduler emulationScheduler;
+    private LineAudioSink audioSink;
+    private FrameRecorder videoRecorder;
+    private RewindBuffer rewindBuffer;
     private File currentRom = new File("./src/main/resources/roms/");
+    private Path loadedRom;
+    private RomCatalog catalog;
+    private final Menu libraryMenu = new Menu("Library");
+    private final ToggleGroup modes = new ToggleGroup();
+    private final ToggleGroup quirkProfiles = new ToggleGroup();
 
     @Override
     public void start(Stage stage) throws IOException {
         this.stage = stage;
         var root = new VBox();
-        var canvas = new Canvas(640, 320);
-        GraphicsContext gc = canvas.getGraphicsContext2D();
 
         InputStream inputStream = ClassLoader.getSystemResource("Background.png").openStream();
 
         Image image = new Image(inputStream);
 
-        gc.drawImage(image, 0, 0);
+        var imageView = new ImageView(image);
+        imageView.setSmooth(false);
+        imageView.setPreserveRatio(true);
+
+        var screen = new StackPane(imageView);
+        screen.setPrefSize(640, 320);
+        screen.setMinSize(0, 0);
+        imageView.fitWidthProperty().bind(screen.widthProperty());
+        imageView.fitHeightProperty().bind(screen.heightProperty());
+        VBox.setVgrow(screen, Priority.ALWAYS);
 
         MenuBar menuBar = createMenu();
 
         root.getChildren().add(menuBar);
-        root.getChildren().add(canvas);
+        root.getChildren().add(screen);
 
         menuBar.useSystemMenuBarProperty();
 
         var scene = new Scene(root, Color.BLACK);
 
-        cpu = new CPU();
+        machine = new Machine();
+        try {
+            machine.enableMetrics().register("JavaFX");
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        try {
+            audioSink = new LineAudioSink();
+            machine.setAudioSink(audioSink);
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            // No audio device, run silently
+            e.printStackTrace();
+        }
+        enableRewind();
 
         stage.addEventHandler(KeyEvent.KEY_PRESSED, this::keyPressedHandler);
         stage.addEventHandler(KeyEvent.KEY_RELEASED, this::keyReleasedHandler);
@@ -64,28 +108,254 @@ public class JavaFXMain extends Application {
         stage.setScene(scene);
         stage.show();
         
-        cpuTimer = new CPUTimer(cpu);
+        emulationScheduler = new EmulationScheduler(machine);
         
-        displayTimer = new DisplayTimer(canvas.getGraphicsContext2D(), cpu);
+        displayTimer = new DisplayTimer(imageView, machine);
     }
 
     private MenuBar createMenu() {
         Menu fileMenu = new Menu("File");
         MenuItem openMenuItem = new MenuItem("Open");
         openMenuItem.setOnAction(event -> selectAndLoadRom());
-        fileMenu.getItems().add(openMenuItem);
-        return new MenuBar(fileMenu);
+        MenuItem openLibraryMenuItem = new MenuItem("Open library");
+        openLibraryMenuItem.setOnAction(event -> selectAndOpenLibrary());
+        MenuItem recordMenuItem = new MenuItem("Restart and record");
+        recordMenuItem.setOnAction(event -> restartAndRecord());
+        MenuItem stopRecordingMenuItem = new MenuItem("Stop recording");
+        stopRecordingMenuItem.setOnAction(event -> stopRecording());
+        MenuItem recordVideoMenuItem = new MenuItem("Record video");
+        recordVideoMenuItem.setOnAction(event -> recordVideo());
+        MenuItem stopVideoMenuItem = new MenuItem("Stop video");
+        stopVideoMenuItem.setOnAction(event -> stopVideo());
+        fileMenu.getItems().addAll(openMenuItem, openLibraryMenuItem, recordMenuItem, stopRecordingMenuItem,
+                                   recordVideoMenuItem, stopVideoMenuItem);
+
+        Menu machineMenu = new Menu("Machine");
+        for (Mode mode : Mode.values()) {
+            RadioMenuItem modeMenuItem = new RadioMenuItem(mode.toString());
+            modeMenuItem.setToggleGroup(modes);
+            modeMenuItem.setUserData(mode);
+            modeMenuItem.setSelected(mode == Mode.CHIP8);
+            modeMenuItem.setOnAction(event -> switchMode(mode));
+            machineMenu.getItems().add(modeMenuItem);
+        }
+        machineMenu.getItems().add(new SeparatorMenuItem());
+        MenuItem rewindMenuItem = new MenuItem("Rewind one second");
+        // Held down, the key repeats and keeps going further back
+        rewindMenuItem.setAccelerator(new KeyCodeCombination(KeyCode.BACK_SPACE));
+        rewindMenuItem.setOnAction(event -> rewind());
+        machineMenu.getItems().addAll(rewindMenuItem, new SeparatorMenuItem());
+        for (QuirkProfile quirks : QuirkProfile.values()) {
+            RadioMenuItem quirksMenuItem = new RadioMenuItem(quirks.toString());
+            quirksMenuItem.setToggleGroup(quirkProfiles);
+            quirksMenuItem.setUserData(quirks);
+            quirksMenuItem.setSelected(quirks == Mode.CHIP8.quirks);
+            quirksMenuItem.setOnAction(event -> switchQuirks(quirks));
+            machineMenu.getItems().add(quirksMenuItem);
+        }
+        return new MenuBar(fileMenu, machineMenu, libraryMenu);
+    }
+
+    private void switchMode(Mode mode) {
+        if (machine.getMode() == mode) {
+            return;
+        }
+        emulationScheduler.stop();
+        displayTimer.stop();
+        machine.setMode(mode);
+        enableRewind();
+        select(quirkProfiles, machine.getQuirks());
+        if (loadedRom != null) {
+            loadRom(loadedRom);
+        }
+        displayTimer.start();
+        emulationScheduler.start();
+    }
+
+    private void switchQuirks(QuirkProfile quirks) {
+        if (machine.getQuirks() == quirks) {
+            return;
+        }
+        emulationScheduler.stop();
+        displayTimer.stop();
+        machine.setQuirks(quirks);
+        if (loadedRom != null) {
+            loadRom(loadedRom);
+        }
+        displayTimer.start();
+        emulationScheduler.start();
+    }
+
+    private static void select(ToggleGroup group, Object userData) {
+        group.getToggles().stream()
+             .filter(toggle -> toggle.getUserData() == userData)
+             .forEach(toggle -> toggle.setSelected(true));
+    }
+
+    private void selectAndOpenLibrary() {
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setInitialDirectory(currentRom);
+        directoryChooser.setTitle("Open Library");
+        File directory = directoryChooser.showDialog(stage);
+        if (directory == null) {
+            return;
+        }
+        currentRom = directory;
+        RomCatalog opened = new RomCatalog(directory.toPath().resolve(RomCatalog.DEFAULT_INDEX_NAME),
+                                           RomCatalog.DEFAULT_THUMBNAIL_FRAMES);
+        // Show what is in the index right away, and bring it up to date without blocking the UI
+        showLibrary(opened, opened.getEntries());
+        Thread scanner = new Thread(() -> {
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            try {
+                List<RomCatalog.Entry> entries = opened.scan(directory.toPath(), parallelism);
+                opened.preload(parallelism);
+                Platform.runLater(() -> showLibrary(opened, entries));
+            } catch (IOException e) {
+                Platform.runLater(() -> showError(e));
+            }
+        }, "chip8-library-scanner");
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    private void showLibrary(RomCatalog opened, List<RomCatalog.Entry> entries) {
+        catalog = opened;
+        libraryMenu.getItems().clear();
+        for (RomCatalog.Entry entry : entries) {
+            ScreenRenderer renderer = new ScreenRenderer();
+            renderer.render(entry.thumbnail(), -1L);
+            ImageView thumbnail = new ImageView(renderer.getImage());
+            thumbnail.setFitWidth(THUMBNAIL_WIDTH);
+            thumbnail.setPreserveRatio(true);
+            MenuItem romMenuItem = new MenuItem(entry.path().getFileName() + " (" + entry.platform() + ", "
+                                                + entry.suggestedQuirks() + ")", thumbnail);
+            romMenuItem.setOnAction(event -> loadFromLibrary(entry));
+            libraryMenu.getItems().add(romMenuItem);
+        }
+    }
+
+    private void loadFromLibrary(RomCatalog.Entry entry) {
+        emulationScheduler.stop();
+        displayTimer.stop();
+        if (machine.getMode() != entry.platform()) {
+            machine.setMode(entry.platform());
+            enableRewind();
+            select(modes, entry.platform());
+        }
+        machine.setQuirks(entry.suggestedQuirks());
+        select(quirkProfiles, entry.suggestedQuirks());
+        try {
+            // Served from memory once the library is preloaded
+            machine.loadRom(catalog.romdata(entry));
+            loadedRom = entry.path();
+        } catch (UncheckedIOException e) {
+            showError(e.getCause());
+        }
+        displayTimer.start();
+        emulationScheduler.start();
+    }
+
+    private void restartAndRecord() {
+        if (loadedRom == null) {
+            return;
+        }
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Save Recording");
+        fileChooser.setInitialFileName(loadedRom.getFileName() + ".rec");
+        File file = fileChooser.showSaveDialog(stage);
+        if (file != null) {
+            emulationScheduler.stop();
+            displayTimer.stop();
+            loadRom(loadedRom);
+            try {
+                machine.startRecording(Files.newOutputStream(file.toPath()));
+            } catch (IOException e) {
+                showError(e);
+            }
+            displayTimer.start();
+            emulationScheduler.start();
+        }
+    }
+
+    private void stopRecording() {
+        if (!machine.isRecording()) {
+            return;
+        }
+        emulationScheduler.stop();
+        machine.stopRecording();
+        emulationScheduler.start();
+    }
+
+    /**
+     * Record every frame for rewinding, as far as the machine supports it. Switching to another machine drops the
+     * buffer, so this is called again after every switch.
+     */
+    private void enableRewind() {
+        if (machine.getMode() == Mode.CHIP8) {
+            rewindBuffer = new RewindBuffer(REWIND_MEMORY_BUDGET, RewindBuffer.DEFAULT_KEYFRAME_INTERVAL);
+            machine.setRewindBuffer(rewindBuffer);
+        } else {
+            rewindBuffer = null;
+        }
+    }
+
+    private void rewind() {
+        // A recording cannot be rewound, it would no longer replay
+        if (rewindBuffer == null || rewindBuffer.size() < 2 || machine.isRecording()) {
+            return;
+        }
+        emulationScheduler.stop();
+        machine.rewind(Math.min(EmulationScheduler.FRAMES_PER_SECOND, rewindBuffer.size() - 1));
+        emulationScheduler.start();
+    }
+
+    private void recordVideo() {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Save Video");
+        fileChooser.getExtensionFilters().addAll(new FileChooser.ExtensionFilter("Animated GIF", "*.gif"),
+                                                 new FileChooser.ExtensionFilter("Packed frames", "*.c8f"));
+        File file = fileChooser.showSaveDialog(stage);
+        if (file != null) {
+            emulationScheduler.stop();
+            closeVideoRecorder();
+            try {
+                // Emulation must never wait for the encoder, frames it cannot keep up with are dropped
+                videoRecorder = new FrameRecorder(FrameEncoder.forFile(file.toPath()), VIDEO_QUEUE_CAPACITY, true);
+                machine.setDisplaySink(videoRecorder);
+            } catch (IOException e) {
+                showError(e);
+            }
+            emulationScheduler.start();
+        }
+    }
+
+    private void stopVideo() {
+        if (videoRecorder == null) {
+            return;
+        }
+        emulationScheduler.stop();
+        closeVideoRecorder();
+        emulationScheduler.start();
+    }
+
+    private void closeVideoRecorder() {
+        if (videoRecorder != null) {
+            machine.setDisplaySink(null);
+            videoRecorder.close();
+            videoRecorder = null;
+        }
     }
 
     private void selectAndLoadRom() {
         Path pathToRom = selectRom();
         if (pathToRom != null) {
             currentRom = pathToRom.getParent().toFile();
-            cpuTimer.stop();
+            emulationScheduler.stop();
             displayTimer.stop();
             loadRom(pathToRom);
             displayTimer.start();
-            cpuTimer.start();
+            emulationScheduler.start();
         }
     }
 
@@ -104,46 +374,71 @@ public class JavaFXMain extends Application {
 
     private void loadRom(Path pathToRom) {
         try {
-            cpu.reset();
-            cpu.loadRom(Files.readAllBytes(pathToRom));
+            machine.loadRom(pathToRom);
+            loadedRom = pathToRom;
         } catch (IOException e) {
-            e.printStackTrace();
+            showError(e);
+        }
+    }
 
-            Stage dialogStage = new Stage();
-            dialogStage.initModality(Modality.WINDOW_MODAL);
+    private void showError(IOException e) {
+        e.printStackTrace();
 
-            VBox vbox = new VBox(new Text("An error occured:\n" + e.getMessage()), new Button("Ok."));
-            vbox.setAlignment(Pos.CENTER);
-            vbox.setPadding(new Insets(15));
+        Stage dialogStage = new Stage();
+        dialogStage.initModality(Modality.WINDOW_MODAL);
 
-            dialogStage.setScene(new Scene(vbox));
-            dialogStage.show();
-        }
+        VBox vbox = new VBox(new Text("An error occured:\n" + e.getMessage()), new Button("Ok."));
+        vbox.setAlignment(Pos.CENTER);
+        vbox.setPadding(new Insets(15));
+
+        dialogStage.setScene(new Scene(vbox));
+        dialogStage.show();
     }
 
     private void keyPressedHandler(KeyEvent keyEvent) {
-        switch (keyEvent.getCode()) {
-            case DIGIT1 -> cpu.setKey(0x1);
-            case DIGIT2 -> cpu.setKey(0x2);
-            case DIGIT3 -> cpu.setKey(0x3);
-            case DIGIT4 -> cpu.setKey(0xC);
-            case Q -> cpu.setKey(0x4);
-            case W -> cpu.setKey(0x5);
-            case E -> cpu.setKey(0x6);
-            case R -> cpu.setKey(0xD);
-            case A -> cpu.setKey(0x7);
-            case S -> cpu.setKey(0x8);
-            case D -> cpu.setKey(0x9);
-            case F -> cpu.setKey(0xE);
-            case Z -> cpu.setKey(0xA);
-            case X -> cpu.setKey(0x0);
-            case C -> cpu.setKey(0xB);
-            case V -> cpu.setKey(0xF);
+        int key = keyOf(keyEvent.getCode());
+        if (key >= 0) {
+            machine.pressKey(key);
         }
     }
 
     private void keyReleasedHandler(KeyEvent keyEvent) {
-        cpu.setKey(-1);
+        int key = keyOf(keyEvent.getCode());
+        if (key >= 0) {
+            machine.releaseKey(key);
+        }
+    }
+
+    private static int keyOf(KeyCode keyCode) {
+        return switch (keyCode) {
+            case DIGIT1 -> 0x1;
+            case DIGIT2 -> 0x2;
+            case DIGIT3 -> 0x3;
+            case DIGIT4 -> 0xC;
+            case Q -> 0x4;
+            case W -> 0x5;
+            case E -> 0x6;
+            case R -> 0xD;
+            case A -> 0x7;
+            case S -> 0x8;
+            case D -> 0x9;
+            case F -> 0xE;
+            case Z -> 0xA;
+            case X -> 0x0;
+            case C -> 0xB;
+            case V -> 0xF;
+            default -> -1;
+        };
+    }
+
+    @Override
+    public void stop() {
+        emulationScheduler.stop();
+        machine.stopRecording();
+        closeVideoRecorder();
+        if (audioSink != null) {
+            audioSink.close();
+        }
     }
 
     public static void main(String[] args) {
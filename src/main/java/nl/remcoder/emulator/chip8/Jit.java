@@ -0,0 +1,314 @@
+package nl.remcoder.emulator.chip8;
+
+import java.lang.invoke.MethodHandles;
+import java.util.List;
+
+import static nl.remcoder.emulator.chip8.Instructions.*;
+
+/**
+ * Optional compiling tier on top of the interpreter in {@link CPU}.
+ * <p>
+ * Addresses that are executed often are compiled into basic blocks: a straight run of instructions ending at the first
+ * jump, call, return or skip. Every block is translated to JVM bytecode by the {@link BlockCompiler} and defined as a
+ * hidden class, which the JVM compiles and inlines like any other code and unloads again once the block is thrown
+ * away. Writes of the carry flag VF that are overwritten within the same block before anything reads them are left
+ * out.
+ * <p>
+ * FX0A is never compiled, a block stops right in front of it so waiting for a key is always done by the interpreter.
+ * Blocks end after FX33 and FX55 as well, since those may write into code, and every memory write the CPU reports
+ * through {@link #invalidate(int, int)} throws away the blocks it touches.
+ */
+final class Jit {
+    static final int COMPILE_THRESHOLD = 32;
+    static final int MAX_BLOCK_LENGTH = 64;
+
+    private static final int UNCOMPILABLE = Integer.MIN_VALUE;
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final CPU cpu;
+    private final Block[] blocks = new Block[4096];
+    private final int[] executionCounts = new int[4096];
+    private final int[] blocksCoveringAddress = new int[4096];
+    private int maxBlockLength = MAX_BLOCK_LENGTH;
+
+    Jit(CPU cpu) {
+        this.cpu = cpu;
+        cpu.setJit(this);
+    }
+
+    /**
+     * Execute instructions, through compiled blocks where available and through the interpreter otherwise.
+     * <p>
+     * A block is only entered when it fits in what is left of the budget, so exactly the requested number of
+     * instructions is executed. See {@link #fitBlocksIn(int)} for keeping blocks short enough to fit.
+     *
+     * @param budget the number of instructions to execute
+     */
+    void execute(int budget) {
+        int[] operationCounts = cpu.operationCounts;
+        int executed = 0;
+        while (executed < budget) {
+            int pc = cpu.pc;
+            Block block = blocks[pc];
+            if (block == null && ++executionCounts[pc] >= COMPILE_THRESHOLD) {
+                block = compile(pc);
+            }
+            if (block != null && block.length <= budget - executed) {
+                block.run(cpu);
+                executed += block.length;
+                if (operationCounts != null) {
+                    for (int operation : block.operations) {
+                        operationCounts[operation]++;
+                    }
+                }
+            } else {
+                cpu.emulateCycle();
+                executed++;
+            }
+        }
+    }
+
+    /**
+     * Keep blocks short enough to run within a frame of the given number of instructions. A block longer than every
+     * budget passed to {@link #execute(int)} would never be entered, so whoever drives the CPU passes the length of
+     * every frame. Blocks longer than the shortest frame so far are thrown away and no longer compiled.
+     *
+     * @param frameLength the number of instructions in the coming frame
+     */
+    void fitBlocksIn(int frameLength) {
+        if (frameLength >= maxBlockLength) {
+            return;
+        }
+        maxBlockLength = frameLength;
+        for (Block block : blocks) {
+            if (block != null && block.length > maxBlockLength) {
+                remove(block);
+            }
+        }
+    }
+
+    /**
+     * Throw away every compiled block that overlaps the given memory range.
+     *
+     * @param from the first address that was written
+     * @param length the number of bytes that were written
+     */
+    void invalidate(int from, int length) {
+        int to = Math.min(from + length, blocks.length);
+        boolean coversCode = false;
+        for (int address = from; address < to; address++) {
+            if (blocksCoveringAddress[address] > 0) {
+                coversCode = true;
+                break;
+            }
+        }
+        for (int address = Math.max(from - 1, 0); address < to; address++) {
+            executionCounts[address] = 0;
+        }
+        if (!coversCode) {
+            return;
+        }
+        for (int start = Math.max(from - MAX_BLOCK_LENGTH * 2, 0); start < to; start++) {
+            Block block = blocks[start];
+            if (block != null && block.end > from) {
+                remove(block);
+            }
+        }
+    }
+
+    private void remove(Block block) {
+        blocks[block.start] = null;
+        executionCounts[block.start] = 0;
+        for (int address = block.start; address < block.end; address++) {
+            blocksCoveringAddress[address]--;
+        }
+    }
+
+    /**
+     * Install blocks that were translated ahead of time, so they run without having to become hot first.
+     *
+     * @param translation the translated blocks, all from the memory image that is currently loaded. Blocks that do
+     *                    not fit in a frame are left out, the code they cover is compiled into shorter ones once hot
+     */
+    void install(List<CompiledCode> translation) {
+        for (CompiledCode code : translation) {
+            if (blocks[code.start()] == null && code.length() <= maxBlockLength) {
+                define(code);
+            }
+        }
+    }
+
+    private Block compile(int start) {
+        CompiledCode code = translate(cpu.memory, start, cpu.getQuirks(), maxBlockLength);
+        Block block = code == null ? null : define(code);
+        if (block == null) {
+            executionCounts[start] = UNCOMPILABLE;
+        }
+        return block;
+    }
+
+    private Block define(CompiledCode code) {
+        CompiledBlock compiledBlock;
+        try {
+            Class<?> blockClass = LOOKUP.defineHiddenClass(code.classFile(), true).lookupClass();
+            compiledBlock = (CompiledBlock) blockClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Leave this address to the interpreter rather than failing the emulation
+            return null;
+        }
+
+        int[] operations = new int[code.length()];
+        for (int i = 0; i < operations.length; i++) {
+            int address = code.start() + i * 2;
+            operations[i] = Instructions.decode((cpu.memory[address] & 0xFF) << 8 | cpu.memory[address + 1] & 0xFF,
+                                                Mode.CHIP8, cpu.getQuirks()) >>> 16;
+        }
+        Block block = new Block(code.start(), code.end(), code.length(), operations, compiledBlock);
+        blocks[code.start()] = block;
+        for (int covered = code.start(); covered < code.end(); covered++) {
+            blocksCoveringAddress[covered]++;
+        }
+        return block;
+    }
+
+    /**
+     * Find the basic block starting at the given address and translate it to a class file.
+     *
+     * @param memory the memory image to read the instructions from
+     * @param start the address of the first instruction
+     * @param quirks the profile the instructions are decoded with
+     * @return the translated block, or null if the block would be empty because it starts with FX0A
+     */
+    static CompiledCode translate(byte[] memory, int start, QuirkProfile quirks) {
+        return translate(memory, start, quirks, MAX_BLOCK_LENGTH);
+    }
+
+    /**
+     * Find the basic block starting at the given address, cut off after a number of instructions, and translate it
+     * to a class file.
+     *
+     * @param memory the memory image to read the instructions from
+     * @param start the address of the first instruction
+     * @param quirks the profile the instructions are decoded with
+     * @param maxLength the maximum number of instructions in the block
+     * @return the translated block, or null if the block would be empty because it starts with FX0A
+     */
+    static CompiledCode translate(byte[] memory, int start, QuirkProfile quirks, int maxLength) {
+        int[] instructions = new int[maxLength];
+        int length = 0;
+        int address = start;
+        boolean terminated = false;
+        while (length < maxLength && address + 1 < memory.length) {
+            int instruction = Instructions.decode((memory[address] & 0xFF) << 8 | memory[address + 1] & 0xFF,
+                                                  Mode.CHIP8, quirks);
+            int operation = instruction >>> 16;
+            if (operation == OP_FX0A) {
+                break;
+            }
+            instructions[length++] = instruction;
+            address += 2;
+            if (isBlockTerminator(operation)) {
+                terminated = true;
+                break;
+            }
+            if (operation == OP_FX33 || operation == OP_FX55 || operation == OP_FX55_KEEP_I) {
+                break;
+            }
+        }
+        if (length == 0) {
+            return null;
+        }
+
+        boolean[] flagNeeded = flagLiveness(instructions, length);
+        byte[] classFile = BlockCompiler.compile(instructions, length, terminated, address, flagNeeded);
+        int exitInstruction = terminated ? instructions[length - 1] : NOT_DECODED;
+        return new CompiledCode(start, address, length, exitInstruction, classFile);
+    }
+
+    private static boolean isBlockTerminator(int operation) {
+        return switch (operation) {
+            case OP_00EE, OP_1NNN, OP_2NNN, OP_BNNN, OP_BXNN,
+                    OP_3XNN, OP_4XNN, OP_5XY0, OP_9XY0, OP_EX9E, OP_EXA1 -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Work out, for every instruction in a block, whether the value it writes to VF as a carry, borrow or shift flag
+     * can be read later. VF is assumed to be live when the block is left.
+     */
+    private static boolean[] flagLiveness(int[] instructions, int length) {
+        boolean[] flagNeeded = new boolean[length];
+        boolean live = true;
+        for (int i = length - 1; i >= 0; i--) {
+            int instruction = instructions[i];
+            flagNeeded[i] = live;
+            if (writesVF(instruction)) {
+                live = false;
+            }
+            if (readsVF(instruction)) {
+                live = true;
+            }
+        }
+        return flagNeeded;
+    }
+
+    private static boolean writesVF(int instruction) {
+        int operation = instruction >>> 16;
+        int x = (instruction >> 8) & 0xF;
+        return switch (operation) {
+            case OP_8XY4, OP_8XY5, OP_8XY6, OP_8XY7, OP_8XYE, OP_8XY6_VX, OP_8XYE_VX, OP_DXYN, OP_DXYN_CLIP -> true;
+            case OP_6XNN, OP_8XY0, OP_8XY1, OP_8XY2, OP_8XY3, OP_CXNN, OP_FX07, OP_FX65, OP_FX65_KEEP_I -> x == 0xF;
+            default -> false;
+        };
+    }
+
+    private static boolean readsVF(int instruction) {
+        int operation = instruction >>> 16;
+        int x = (instruction >> 8) & 0xF;
+        int y = (instruction >> 4) & 0xF;
+        return switch (operation) {
+            case OP_3XNN, OP_4XNN, OP_7XNN, OP_EX9E, OP_EXA1,
+                    OP_FX15, OP_FX18, OP_FX1E, OP_FX29, OP_FX33, OP_FX55, OP_FX55_KEEP_I, OP_8XY6_VX,
+                    OP_8XYE_VX -> x == 0xF;
+            case OP_5XY0, OP_9XY0, OP_8XY1, OP_8XY2, OP_8XY3, OP_8XY4, OP_8XY5, OP_8XY7, OP_DXYN, OP_DXYN_CLIP ->
+                    x == 0xF || y == 0xF;
+            case OP_8XY0, OP_8XY6, OP_8XYE -> y == 0xF;
+            default -> false;
+        };
+    }
+
+    static int skipIfEqual(int left, int right, int address) {
+        return (left == right ? address + 4 : address + 2) & CPU.ADDRESS_MASK;
+    }
+
+    static int skipIfNotEqual(int left, int right, int address) {
+        return (left != right ? address + 4 : address + 2) & CPU.ADDRESS_MASK;
+    }
+
+    /**
+     * The class file of a translated block together with the memory range it was translated from.
+     *
+     * @param start the address of the first instruction
+     * @param end the address directly after the last instruction
+     * @param length the number of instructions
+     * @param exitInstruction the decoded jump, call, return or skip that ends the block, or
+     *                        {@link Instructions#NOT_DECODED} if the block just runs into the next instruction
+     * @param classFile the class file of the {@link CompiledBlock}
+     */
+    record CompiledCode(int start, int end, int length, int exitInstruction, byte[] classFile) {
+    }
+
+    /**
+     * Implemented by the hidden classes generated for compiled blocks.
+     */
+    interface CompiledBlock {
+        void execute(CPU cpu);
+    }
+
+    private record Block(int start, int end, int length, int[] operations, CompiledBlock compiledBlock) {
+        void run(CPU cpu) {
+            compiledBlock.execute(cpu);
+        }
+    }
+}
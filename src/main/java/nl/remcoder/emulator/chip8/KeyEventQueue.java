@@ -0,0 +1,82 @@
+package nl.remcoder.emulator.chip8;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands timestamped key events from the input thread to the emulation thread.
+ * <p>
+ * This is a bounded ring for a single producer and a single consumer. Each side owns one of the two counters and only
+ * publishes it with a release store, so neither side ever takes a lock or allocates. Every event carries the complete
+ * state of the keys after it, so an event that does not fit because the ring is full only delays the state it
+ * reports until the next event that does fit.
+ */
+final class KeyEventQueue {
+    private final long[] timestamps;
+    private final int[] keys;
+    private final int mask;
+    // The next event to read, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // The next event to write, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity the maximum number of events waiting, a power of two
+     */
+    KeyEventQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two, was " + capacity);
+        }
+        timestamps = new long[capacity];
+        keys = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Add an event. Only to be called from the producing thread.
+     *
+     * @param timestamp the {@link System#nanoTime()} the event happened at
+     * @param keys the keys held down after the event
+     * @return false if the queue is full and the event was not added
+     */
+    boolean offer(long timestamp, int keys) {
+        long position = tail.get();
+        if (position - head.get() > mask) {
+            return false;
+        }
+        int index = (int) position & mask;
+        timestamps[index] = timestamp;
+        this.keys[index] = keys;
+        tail.lazySet(position + 1);
+        return true;
+    }
+
+    /**
+     * Only to be called from the consuming thread.
+     *
+     * @return true if there is no event waiting
+     */
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Only to be called from the consuming thread, when the queue is not empty.
+     *
+     * @return the timestamp of the oldest event
+     */
+    long peekTimestamp() {
+        return timestamps[(int) head.get() & mask];
+    }
+
+    /**
+     * Remove the oldest event. Only to be called from the consuming thread, when the queue is not empty.
+     *
+     * @return the keys held down after the event
+     */
+    int poll() {
+        long position = head.get();
+        int keys = this.keys[(int) position & mask];
+        head.lazySet(position + 1);
+        return keys;
+    }
+}
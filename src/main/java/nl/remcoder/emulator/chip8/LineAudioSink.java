@@ -0,0 +1,110 @@
+package nl.remcoder.emulator.chip8;
+
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays the buzzer through the sound card.
+ * <p>
+ * Every frame the emulation thread synthesizes a frame of samples (see {@link SquareWave}) into a small ring, and a
+ * dedicated thread moves them from the ring to a {@link SourceDataLine}, which paces it. The ring holds
+ * {@value #RING_FRAMES} frames and the line two, which keeps the latency well under 100 milliseconds. When the ring is
+ * full the new frame is dropped, when it is empty a short stretch of silence is played instead, so neither thread ever
+ * waits for the other.
+ */
+public class LineAudioSink implements AudioSink, Closeable {
+    private static final int RING_FRAMES = 3;
+    private static final int UNDERRUN_BYTES = SquareWave.BYTES_PER_FRAME / 4;
+
+    private final SquareWave squareWave = new SquareWave();
+    private final byte[] ring = new byte[RING_FRAMES * SquareWave.BYTES_PER_FRAME];
+    private final byte[] dropped = new byte[SquareWave.BYTES_PER_FRAME];
+    // The number of frames written to the ring, only written by the emulation thread
+    private final AtomicLong written = new AtomicLong();
+    // The number of frames taken from the ring, only written by the audio thread
+    private final AtomicLong read = new AtomicLong();
+    private final SourceDataLine line;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile long droppedFrames = 0;
+    private volatile long underruns = 0;
+
+    /**
+     * Open the default audio output device.
+     *
+     * @throws LineUnavailableException if there is no audio output device, or it is in use
+     */
+    public LineAudioSink() throws LineUnavailableException {
+        line = AudioSystem.getSourceDataLine(SquareWave.FORMAT);
+        line.open(SquareWave.FORMAT, 2 * SquareWave.BYTES_PER_FRAME);
+        line.start();
+        thread = new Thread(this::run, "chip8-audio");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    @Override
+    public void beep(boolean beeping) {
+        long frame = written.get();
+        if (frame - read.get() >= RING_FRAMES) {
+            // Still render it, so the wave stays continuous
+            squareWave.render(beeping, dropped, 0);
+            droppedFrames++;
+            return;
+        }
+        squareWave.render(beeping, ring, (int) (frame % RING_FRAMES) * SquareWave.BYTES_PER_FRAME);
+        written.lazySet(frame + 1);
+    }
+
+    @Override
+    public boolean isRealTime() {
+        return true;
+    }
+
+    private void run() {
+        byte[] silence = new byte[UNDERRUN_BYTES];
+        while (running) {
+            long frame = read.get();
+            if (frame == written.get()) {
+                underruns++;
+                line.write(silence, 0, silence.length);
+            } else {
+                line.write(ring, (int) (frame % RING_FRAMES) * SquareWave.BYTES_PER_FRAME, SquareWave.BYTES_PER_FRAME);
+                read.lazySet(frame + 1);
+            }
+        }
+    }
+
+    /**
+     * @return the number of frames that were dropped because the audio thread could not keep up
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return the number of times the audio thread ran out of frames and played silence
+     */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * Stop the audio thread and close the device.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        line.stop();
+        line.close();
+    }
+}
@@ -0,0 +1,568 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Headless CHIP-8 machine.
+ * <p>
+ * Wraps a {@link CPU} and drives it frame by frame: every frame the input source is polled, a fixed number of
+ * instructions is executed, the delay and sound timers are decremented and the display and audio sinks are notified.
+ * Nothing in here depends on JavaFX, so a machine can be run on a server or in a test at full speed.
+ * <p>
+ * Key changes take effect at instruction boundaries, which makes a run a function of the ROM, the random seed, the
+ * key changes with the instruction they took effect at, and the length of every frame. That is exactly what {@link #startRecording(OutputStream)} records and
+ * {@link Replay} plays back.
+ */
+public class Machine {
+    public static final int DEFAULT_CYCLES_PER_FRAME = 10;
+
+    private static final int IDLE_CHECK_INTERVAL = Jit.MAX_BLOCK_LENGTH;
+    private static final int KEY_EVENT_CAPACITY = 256;
+
+    private final CPU cpu;
+    private final FrameExchange frameExchange = new FrameExchange();
+    private int cyclesPerFrame = DEFAULT_CYCLES_PER_FRAME;
+    private DisplaySink displaySink = DisplaySink.NONE;
+    private AudioSink audioSink = AudioSink.NONE;
+    private InputSource inputSource;
+    private Jit jit;
+    private AotCache aotCache;
+    private RewindBuffer rewindBuffer;
+    private InputRecorder recorder;
+    private MachineMetrics metrics;
+    private Profiler profiler;
+    private byte[] romdata = new byte[0];
+    private final KeyEventQueue keyEvents = new KeyEventQueue(KEY_EVENT_CAPACITY);
+    // The keys after the latest key event, only written by the thread pressing and releasing keys
+    private volatile int latestKeys = 0;
+    private volatile boolean keyEventsLost = false;
+    private volatile Runnable keyListener;
+    private long cycles = 0;
+    private long frames = 0;
+    private int frameCycle = 0;
+
+    public Machine() {
+        this(new CPU());
+    }
+
+    public Machine(CPU cpu) {
+        this.cpu = cpu;
+        cpu.reset();
+    }
+
+    /**
+     * Reset the machine and load the given ROM image at address 0x200.
+     *
+     * @param romdata the raw ROM image
+     */
+    public void loadRom(byte[] romdata) {
+        Events.RomLoad event = new Events.RomLoad();
+        event.begin();
+        stopRecording();
+        this.romdata = romdata.clone();
+        cpu.reset();
+        cpu.loadRom(romdata);
+        if (aotCache != null && cpu.getMode() == Mode.CHIP8) {
+            jit.fitBlocksIn(cyclesPerFrame);
+            jit.install(aotCache.translationOf(romdata, cpu.getQuirks()));
+        }
+        if (rewindBuffer != null) {
+            rewindBuffer.clear();
+        }
+        cycles = 0;
+        frames = 0;
+        event.romSize = romdata.length;
+        event.commit();
+    }
+
+    /**
+     * Reset the machine and load the ROM image stored in the given file.
+     *
+     * @param pathToRom the file containing the ROM image
+     * @throws IOException if the file could not be read
+     */
+    public void loadRom(Path pathToRom) throws IOException {
+        loadRom(Files.readAllBytes(pathToRom));
+    }
+
+    /**
+     * Execute a number of instructions, without touching the timers or the sinks.
+     * <p>
+     * Every {@value #IDLE_CHECK_INTERVAL} instructions the CPU is checked for an idle loop, see {@link IdleLoops}. The
+     * rest of the batch is skipped when it is in one, which ends in exactly the same state as executing it. Skipped
+     * instructions count towards {@link #getCycles()}, but not towards the opcode counts of the metrics. Nothing is
+     * skipped while a profiler is set.
+     *
+     * @param count the number of instructions to execute
+     */
+    public void step(int count) {
+        Events.CycleBatch event = new Events.CycleBatch();
+        event.begin();
+        if (profiler != null) {
+            for (int i = 0; i < count; i++) {
+                profiler.beforeCycle(cpu);
+                cpu.emulateCycle();
+            }
+        } else {
+            int remaining = count;
+            while (remaining > 0) {
+                remaining -= IdleLoops.skip(cpu, remaining);
+                int batch = Math.min(remaining, IDLE_CHECK_INTERVAL);
+                if (jit != null) {
+                    jit.execute(batch);
+                } else {
+                    for (int i = 0; i < batch; i++) {
+                        cpu.emulateCycle();
+                    }
+                }
+                remaining -= batch;
+            }
+        }
+        cycles += count;
+        if (event.shouldCommit()) {
+            event.instructions = count;
+            event.jit = jit != null;
+            event.commit();
+        }
+    }
+
+    /**
+     * Emulate a single 60 Hz frame: poll the input, execute {@link #getCyclesPerFrame()} instructions, tick the timers
+     * and hand the results to the sinks.
+     */
+    public void runFrame() {
+        runFrame(cyclesPerFrame);
+    }
+
+    /**
+     * Emulate a single 60 Hz frame with the given number of instructions. All key events that are waiting take effect
+     * at the start of the frame.
+     *
+     * @param cycles the number of instructions to execute in this frame
+     */
+    public void runFrame(int cycles) {
+        startFrame(cycles);
+        while (!keyEvents.isEmpty()) {
+            changeKeysAt(0, keyEvents.poll());
+        }
+        recoverLostKeyEvents();
+        finishFrame(cycles);
+    }
+
+    /**
+     * Emulate a single 60 Hz frame that stands for the given stretch of real time. Key events from that stretch take
+     * effect at the instruction matching the moment they happened, so presses and releases keep their order and
+     * spacing, at the cost of a constant latency of one frame. Events from before the stretch take effect at the start
+     * of the frame, later events are left for the next frame.
+     *
+     * @param cycles the number of instructions to execute in this frame
+     * @param windowStart the {@link System#nanoTime()} the stretch of real time starts at
+     * @param windowEnd the {@link System#nanoTime()} the stretch of real time ends at, after its start
+     */
+    void runFrame(int cycles, long windowStart, long windowEnd) {
+        startFrame(cycles);
+        long windowLength = windowEnd - windowStart;
+        while (!keyEvents.isEmpty() && keyEvents.peekTimestamp() - windowEnd < 0) {
+            long offset = Math.max(keyEvents.peekTimestamp() - windowStart, 0);
+            changeKeysAt((int) (offset * cycles / windowLength), keyEvents.poll());
+        }
+        recoverLostKeyEvents();
+        finishFrame(cycles);
+    }
+
+    /**
+     * Emulate a single 60 Hz frame with key changes at the given instructions, as {@link Replay} plays them back.
+     *
+     * @param cycles the number of instructions to execute in this frame
+     * @param offsets the number of instructions into the frame every key change takes effect at, in ascending order
+     * @param keys the keys held down after every key change
+     * @param count the number of key changes
+     */
+    void runFrame(int cycles, int[] offsets, int[] keys, int count) {
+        frameCycle = 0;
+        if (jit != null) {
+            jit.fitBlocksIn(cycles);
+        }
+        for (int i = 0; i < count; i++) {
+            changeKeysAt(offsets[i], keys[i]);
+        }
+        finishFrame(cycles);
+    }
+
+    private void startFrame(int cycles) {
+        frameCycle = 0;
+        if (jit != null) {
+            jit.fitBlocksIn(cycles);
+        }
+        if (inputSource != null) {
+            changeKeysAt(0, inputSource.currentKeys());
+        }
+    }
+
+    /**
+     * Execute the instructions of the frame up to the given one and change the keys from there on.
+     */
+    private void changeKeysAt(int offset, int keys) {
+        if (offset > frameCycle) {
+            step(offset - frameCycle);
+            frameCycle = offset;
+        }
+        if (keys != cpu.keys) {
+            cpu.setKeys(keys);
+            if (recorder != null) {
+                recorder.keyChanged(this.cycles, keys);
+            }
+        }
+    }
+
+    private void recoverLostKeyEvents() {
+        if (keyEventsLost) {
+            keyEventsLost = false;
+            changeKeysAt(frameCycle, latestKeys);
+        }
+    }
+
+    private void finishFrame(int cycles) {
+        if (cycles > frameCycle) {
+            step(cycles - frameCycle);
+        }
+        tickTimers();
+        long dirtyRows = cpu.takeDirtyRows();
+        frameExchange.publish(cpu.getDisplay(), dirtyRows);
+        displaySink.frame(cpu.getDisplay(), dirtyRows);
+        audioSink.beep(cpu.getSound_timer() > 0);
+        if (rewindBuffer != null) {
+            rewindBuffer.record(cpu);
+        }
+        if (recorder != null) {
+            recorder.frameEnded(cycles);
+        }
+        if (metrics != null) {
+            metrics.frameCompleted(cycles, cpu.operationCounts);
+        }
+        frames++;
+    }
+
+    /**
+     * Emulate a number of frames back to back, without any throttling.
+     *
+     * @param count the number of frames to emulate
+     */
+    public void runFrames(int count) {
+        for (int i = 0; i < count; i++) {
+            runFrame();
+        }
+    }
+
+    /**
+     * Decrement the delay and sound timers by one, as happens 60 times per second on real hardware.
+     */
+    public void tickTimers() {
+        Events.TimerTick event = new Events.TimerTick();
+        event.begin();
+        cpu.decrementDelayTimer();
+        cpu.decrementSoundTimer();
+        if (event.shouldCommit()) {
+            event.delayTimer = cpu.getDelay_timer();
+            event.soundTimer = cpu.getSound_timer();
+            event.commit();
+        }
+    }
+
+    /**
+     * @return the exchange {@link #runFrame()} publishes every completed frame to, for renderers on another thread
+     */
+    public FrameExchange getFrameExchange() {
+        return frameExchange;
+    }
+
+    /**
+     * Press a key. The press is queued with the moment it happened, see {@link #runFrame(int)}. Presses and releases
+     * must all come from the same thread, and are ignored while an {@link InputSource} is set.
+     *
+     * @param key the key from 0x0 to 0xF
+     */
+    public void pressKey(int key) {
+        setKeys(latestKeys | 1 << key);
+    }
+
+    /**
+     * Release a key, see {@link #pressKey(int)}.
+     *
+     * @param key the key from 0x0 to 0xF
+     */
+    public void releaseKey(int key) {
+        setKeys(latestKeys & ~(1 << key));
+    }
+
+    /**
+     * Set which keys are held down, see {@link #pressKey(int)}.
+     *
+     * @param keys a bit mask of the keys that are held down, bit 0 for key 0x0 up to bit 15 for key 0xF
+     */
+    public void setKeys(int keys) {
+        latestKeys = keys;
+        if (!keyEvents.offer(System.nanoTime(), keys)) {
+            keyEventsLost = true;
+        }
+        Runnable keyListener = this.keyListener;
+        if (keyListener != null) {
+            keyListener.run();
+        }
+    }
+
+    /**
+     * @param keyListener called on the calling thread whenever the keys are changed, or null for none
+     */
+    void setKeyListener(Runnable keyListener) {
+        this.keyListener = keyListener;
+    }
+
+    /**
+     * Work out how many of the coming frames the CPU will spend in an idle loop without anything changing that can be
+     * seen from outside, such as the screen or the beep. Running those frames can be postponed until the last one of
+     * them is due, or until a key is pressed, without changing the outcome. While the buzzer sounds through a
+     * real-time audio sink no frame is postponed, so the beep is played as it happens.
+     *
+     * @return the number of coming frames that are certainly idle, {@link Integer#MAX_VALUE} if the machine idles
+     *         until a key is pressed or forever
+     */
+    public int getIdleFrames() {
+        if (!keyEvents.isEmpty() && inputSource == null) {
+            return 0;
+        }
+        if (cpu.getSound_timer() > 0 && audioSink.isRealTime()) {
+            return 0;
+        }
+        return IdleLoops.idleFrames(cpu, inputSource != null);
+    }
+
+    /**
+     * @return the screen as packed bitplanes, at the resolution the ROM is using
+     */
+    public Bitplanes getDisplay() {
+        return cpu.getDisplay();
+    }
+
+    /**
+     * Switch to another machine, which resets the CPU and selects the quirks of that machine. Load a ROM afterwards.
+     * <p>
+     * The compiling tier, rewinding and savestates only know about the plain CHIP-8, so the compiling tier is switched
+     * off and a rewind buffer is dropped when switching to one of the extensions.
+     *
+     * @param mode the machine to emulate
+     */
+    public void setMode(Mode mode) {
+        stopRecording();
+        if (mode != Mode.CHIP8) {
+            setJitEnabled(false);
+            rewindBuffer = null;
+        }
+        cpu.setMode(mode);
+        romdata = new byte[0];
+        cycles = 0;
+        frames = 0;
+    }
+
+    public Mode getMode() {
+        return cpu.getMode();
+    }
+
+    /**
+     * Run the ambiguous instructions like the given interpreter did, see {@link QuirkProfile}. Switching to another
+     * machine selects the quirks of that machine, so set the quirks after the mode. The current recording is ended,
+     * since a replay has to run with the same quirks.
+     *
+     * @param quirks the profile to run with
+     */
+    public void setQuirks(QuirkProfile quirks) {
+        if (quirks == cpu.getQuirks()) {
+            return;
+        }
+        stopRecording();
+        cpu.setQuirks(quirks);
+    }
+
+    public QuirkProfile getQuirks() {
+        return cpu.getQuirks();
+    }
+
+    public int getDelayTimer() {
+        return cpu.getDelay_timer();
+    }
+
+    public int getSoundTimer() {
+        return cpu.getSound_timer();
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public int getCyclesPerFrame() {
+        return cyclesPerFrame;
+    }
+
+    public void setCyclesPerFrame(int cyclesPerFrame) {
+        if (cyclesPerFrame < 1) {
+            throw new IllegalArgumentException("cyclesPerFrame must be at least 1, was " + cyclesPerFrame);
+        }
+        this.cyclesPerFrame = cyclesPerFrame;
+    }
+
+    public void setDisplaySink(DisplaySink displaySink) {
+        this.displaySink = displaySink == null ? DisplaySink.NONE : displaySink;
+    }
+
+    public void setAudioSink(AudioSink audioSink) {
+        this.audioSink = audioSink == null ? AudioSink.NONE : audioSink;
+    }
+
+    /**
+     * Switch the compiling tier on or off. With the tier on, code that is executed often is compiled into blocks that
+     * run without decoding and dispatching every single instruction, see {@link Jit}.
+     *
+     * @param enabled true to compile hot code, false to interpret everything
+     */
+    public void setJitEnabled(boolean enabled) {
+        if (enabled && cpu.getMode() != Mode.CHIP8) {
+            throw new IllegalStateException("The compiling tier only supports CHIP-8, not " + cpu.getMode());
+        }
+        if (enabled && jit == null) {
+            jit = new Jit(cpu);
+        } else if (!enabled && jit != null) {
+            cpu.setJit(null);
+            jit = null;
+            aotCache = null;
+        }
+    }
+
+    /**
+     * Translate every ROM loaded from now on ahead of time, using the given cache for translations of ROMs that were
+     * seen before. This switches on the compiling tier as well, see {@link #setJitEnabled(boolean)}.
+     *
+     * @param aotCache the cache to use, or null to stop translating ROMs ahead of time
+     */
+    public void setAotCache(AotCache aotCache) {
+        if (aotCache != null) {
+            setJitEnabled(true);
+        }
+        this.aotCache = aotCache;
+    }
+
+    /**
+     * Record the state of the machine after every frame, so it can be rewound with {@link #rewind(int)}.
+     *
+     * @param rewindBuffer the buffer to record into, or null to stop recording
+     */
+    public void setRewindBuffer(RewindBuffer rewindBuffer) {
+        if (rewindBuffer != null && cpu.getMode() != Mode.CHIP8) {
+            throw new IllegalStateException("Rewinding only supports CHIP-8, not " + cpu.getMode());
+        }
+        this.rewindBuffer = rewindBuffer;
+    }
+
+    /**
+     * Go back to the state of an earlier frame. Frames after it are forgotten, emulation continues from there.
+     *
+     * @param frames how many frames to go back, 0 for the end of the last frame that was run
+     */
+    public void rewind(int frames) {
+        if (rewindBuffer == null) {
+            throw new IllegalStateException("No rewind buffer set");
+        }
+        if (recorder != null) {
+            throw new IllegalStateException("Cannot rewind while recording");
+        }
+        rewindBuffer.rewind(frames, cpu);
+        // The keys held back then are not the keys held now
+        cpu.setKeys(latestKeys);
+    }
+
+    /**
+     * Start recording everything needed to replay this run: a freshly chosen random seed, every key change and the
+     * length of every frame. Must be called after loading a ROM and before running it. The recording ends when
+     * {@link #stopRecording()} is called or another ROM is loaded.
+     *
+     * @param output the stream to write the recording to, closed when the recording ends
+     * @throws IOException if the header could not be written
+     */
+    public void startRecording(OutputStream output) throws IOException {
+        if (cycles != 0 || frames != 0) {
+            throw new IllegalStateException("Recording must start directly after loading a ROM");
+        }
+        stopRecording();
+        long seed = new Random().nextLong();
+        cpu.setSeed(seed);
+        recorder = new InputRecorder(output, seed, cpu.getMode(), cpu.getQuirks(), romdata);
+        if (cpu.keys != 0) {
+            recorder.keyChanged(0, cpu.keys);
+        }
+    }
+
+    /**
+     * End the current recording, if any, and close its stream.
+     */
+    public void stopRecording() {
+        if (recorder != null) {
+            InputRecorder finished = recorder;
+            recorder = null;
+            finished.close();
+        }
+    }
+
+    public boolean isRecording() {
+        return recorder != null;
+    }
+
+    /**
+     * Start collecting metrics for this machine. Counting executed operations costs a little on every instruction, so
+     * this is off until asked for. The metrics can be published over JMX with {@link MachineMetrics#register(String)}.
+     *
+     * @return the metrics, the same instance every time this is called
+     */
+    public MachineMetrics enableMetrics() {
+        if (metrics == null) {
+            cpu.operationCounts = new int[Instructions.OPERATION_COUNT];
+            metrics = new MachineMetrics(frameExchange);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of this machine, or null if they were never enabled
+     */
+    public MachineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Profile everything this machine executes from now on. While a profiler is set every instruction is interpreted,
+     * even with the compiling tier switched on.
+     *
+     * @param profiler the profiler, or null to stop profiling
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public boolean isJitEnabled() {
+        return jit != null;
+    }
+
+    public void setInputSource(InputSource inputSource) {
+        this.inputSource = inputSource;
+    }
+
+    public CPU getCpu() {
+        return cpu;
+    }
+}
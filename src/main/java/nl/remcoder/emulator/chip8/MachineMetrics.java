@@ -0,0 +1,176 @@
+package nl.remcoder.emulator.chip8;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static nl.remcoder.emulator.chip8.Instructions.OPERATION_COUNT;
+
+/**
+ * Counters describing how a {@link Machine} behaves, exposed over JMX through {@link MachineMetricsMXBean}.
+ * <p>
+ * Nothing in here is touched per instruction. The CPU counts operations in a plain array that only the emulation
+ * thread touches, and once per frame those counts are added to the shared counters here and the array is cleared.
+ * All shared counters are atomics or striped adders, so JMX can read them from any thread.
+ */
+public class MachineMetrics implements MachineMetricsMXBean {
+    static final int PAINT_TIME_BUCKETS = 16;
+
+    private static final String[] FAMILY_NAMES = {
+            "0NNN", "1NNN", "2NNN", "3XNN", "4XNN", "5XY0", "6XNN", "7XNN",
+            "8XYN", "9XY0", "ANNN", "BNNN", "CXNN", "DXYN", "EXNN", "FXNN"
+    };
+
+    private final FrameExchange frameExchange;
+    private final LongAdder instructions = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private final AtomicLongArray operationCounts = new AtomicLongArray(OPERATION_COUNT);
+    private final AtomicLongArray paintTimeHistogram = new AtomicLongArray(PAINT_TIME_BUCKETS);
+    private final LongAdder skippedFrames = new LongAdder();
+    private final LongAccumulator maxTimerDrift = new LongAccumulator(Math::max, 0);
+    private volatile long timerDrift;
+    private long sampledAt = System.nanoTime();
+    private long sampledInstructions;
+    private ObjectName objectName;
+
+    MachineMetrics(FrameExchange frameExchange) {
+        this.frameExchange = frameExchange;
+    }
+
+    /**
+     * Add the counts of a completed frame. Only to be called from the emulation thread.
+     *
+     * @param cycles the number of instructions executed in the frame
+     * @param frameOperationCounts the number of times each operation was executed in the frame, cleared afterwards
+     */
+    void frameCompleted(int cycles, int[] frameOperationCounts) {
+        instructions.add(cycles);
+        frames.increment();
+        for (int operation = 0; operation < frameOperationCounts.length; operation++) {
+            int count = frameOperationCounts[operation];
+            if (count != 0) {
+                operationCounts.getAndAdd(operation, count);
+                frameOperationCounts[operation] = 0;
+            }
+        }
+    }
+
+    /**
+     * @param nanos the time it took to paint a frame
+     */
+    void framePainted(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), PAINT_TIME_BUCKETS - 1);
+        paintTimeHistogram.incrementAndGet(bucket);
+    }
+
+    /**
+     * @param driftNanos how late the frame in which the timers were ticked started
+     */
+    void timerTicked(long driftNanos) {
+        timerDrift = driftNanos;
+        maxTimerDrift.accumulate(driftNanos);
+    }
+
+    void framesSkipped(long count) {
+        skippedFrames.add(count);
+    }
+
+    /**
+     * Register these metrics with the platform MBean server.
+     *
+     * @param name the name to tell this machine apart from others in the same JVM
+     * @return the name the metrics were registered under
+     * @throws JMException if the metrics could not be registered, for instance because the name is taken
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        unregister();
+        ObjectName objectName = new ObjectName("nl.remcoder.emulator.chip8:type=Machine,name="
+                                                       + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Remove these metrics from the platform MBean server, if they were registered.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // Already gone
+        }
+        objectName = null;
+    }
+
+    @Override
+    public long getInstructions() {
+        return instructions.sum();
+    }
+
+    @Override
+    public long getFrames() {
+        return frames.sum();
+    }
+
+    @Override
+    public synchronized double getInstructionsPerSecond() {
+        long now = System.nanoTime();
+        long executed = instructions.sum();
+        double perSecond = (executed - sampledInstructions) * 1e9 / Math.max(now - sampledAt, 1);
+        sampledAt = now;
+        sampledInstructions = executed;
+        return perSecond;
+    }
+
+    @Override
+    public Map<String, Long> getOpcodeFamilyCounts() {
+        long[] counts = new long[FAMILY_NAMES.length];
+        for (int operation = 0; operation < OPERATION_COUNT; operation++) {
+            counts[Instructions.familyOf(operation)] += operationCounts.get(operation);
+        }
+        Map<String, Long> familyCounts = new LinkedHashMap<>();
+        for (int family = 0; family < FAMILY_NAMES.length; family++) {
+            familyCounts.put(FAMILY_NAMES[family], counts[family]);
+        }
+        return familyCounts;
+    }
+
+    @Override
+    public long[] getFramePaintTimeHistogram() {
+        long[] histogram = new long[PAINT_TIME_BUCKETS];
+        for (int bucket = 0; bucket < histogram.length; bucket++) {
+            histogram[bucket] = paintTimeHistogram.get(bucket);
+        }
+        return histogram;
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return frameExchange.getDroppedFrames();
+    }
+
+    @Override
+    public long getSkippedFrames() {
+        return skippedFrames.sum();
+    }
+
+    @Override
+    public long getTimerDriftNanos() {
+        return timerDrift;
+    }
+
+    @Override
+    public long getMaxTimerDriftNanos() {
+        return maxTimerDrift.get();
+    }
+}
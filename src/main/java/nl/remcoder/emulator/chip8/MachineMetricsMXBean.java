@@ -0,0 +1,55 @@
+package nl.remcoder.emulator.chip8;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link MachineMetrics}, one per monitored machine.
+ */
+public interface MachineMetricsMXBean {
+    /**
+     * @return the number of instructions executed since the metrics were enabled
+     */
+    long getInstructions();
+
+    /**
+     * @return the number of frames emulated since the metrics were enabled
+     */
+    long getFrames();
+
+    /**
+     * @return the number of instructions executed per second since the previous call of this method
+     */
+    double getInstructionsPerSecond();
+
+    /**
+     * @return the number of executed instructions per opcode family, keyed by family like "8XYN"
+     */
+    Map<String, Long> getOpcodeFamilyCounts();
+
+    /**
+     * @return the number of frames painted per paint time, bucket n counts the paints that took less than 2^n
+     *         microseconds but not less than 2^(n-1), the last bucket counts everything slower
+     */
+    long[] getFramePaintTimeHistogram();
+
+    /**
+     * @return the number of frames that were emulated but replaced by a newer one before they could be painted
+     */
+    long getDroppedFrames();
+
+    /**
+     * @return the number of frames that were not emulated at all because emulation fell too far behind real time
+     */
+    long getSkippedFrames();
+
+    /**
+     * @return how late the most recent frame, and with it the tick of the timers, started compared to the 60 Hz
+     *         schedule, in nanoseconds
+     */
+    long getTimerDriftNanos();
+
+    /**
+     * @return the largest timer drift seen so far, in nanoseconds
+     */
+    long getMaxTimerDriftNanos();
+}
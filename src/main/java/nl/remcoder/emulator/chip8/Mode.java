@@ -0,0 +1,32 @@
+package nl.remcoder.emulator.chip8;
+
+/**
+ * The machines a {@link CPU} can emulate.
+ */
+public enum Mode {
+    /**
+     * The original CHIP-8: 64x32 pixels, 4 KB of memory. Runs with the {@link QuirkProfile#MODERN} quirks unless told
+     * otherwise, since that is what most CHIP-8 ROMs in circulation were tested against.
+     */
+    CHIP8(4096, 1, QuirkProfile.MODERN),
+    /**
+     * SUPER-CHIP 1.1: adds a 128x64 mode, scrolling, 16x16 sprites, a large font and the RPL flags. Runs with the
+     * {@link QuirkProfile#SUPER_CHIP} quirks unless told otherwise.
+     */
+    SCHIP(4096, 1, QuirkProfile.SUPER_CHIP),
+    /**
+     * XO-CHIP: SUPER-CHIP with 64 KB of memory, two bitplanes, scrolling up, saving and loading register ranges and an
+     * audio pattern buffer. Runs with the {@link QuirkProfile#MODERN} quirks unless told otherwise.
+     */
+    XOCHIP(65536, 2, QuirkProfile.MODERN);
+
+    final int memorySize;
+    final int planes;
+    final QuirkProfile quirks;
+
+    Mode(int memorySize, int planes, QuirkProfile quirks) {
+        this.memorySize = memorySize;
+        this.planes = planes;
+        this.quirks = quirks;
+    }
+}
@@ -0,0 +1,82 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the frames written by a {@link PackedFrameWriter}, one at a time.
+ */
+public class PackedFrameReader implements Closeable {
+    private final DataInputStream input;
+    private final Bitplanes frame = new Bitplanes();
+    private boolean ended = false;
+
+    /**
+     * @param input the stream to read from, closed when this reader is closed
+     * @throws IOException if the stream could not be read or does not hold packed frames
+     */
+    public PackedFrameReader(InputStream input) throws IOException {
+        this.input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(input)));
+        if (this.input.readInt() != PackedFrameWriter.MAGIC) {
+            throw new IOException("Not a packed frame stream");
+        }
+        int version = this.input.readUnsignedShort();
+        if (version != PackedFrameWriter.VERSION) {
+            throw new IOException("Unsupported packed frame stream version " + version);
+        }
+    }
+
+    /**
+     * Read the next frame.
+     * <p>
+     * Every call returns the same framebuffer, updated in place, so a caller that needs to keep a frame around has to
+     * copy it.
+     *
+     * @return the next frame, or null after the last one
+     * @throws IOException if the stream could not be read or is corrupt
+     */
+    public Bitplanes next() throws IOException {
+        if (ended) {
+            return null;
+        }
+        int tag = input.readUnsignedByte();
+        if (tag == PackedFrameWriter.END) {
+            ended = true;
+            return null;
+        }
+        if (tag != PackedFrameWriter.FRAME) {
+            throw new IOException("Unknown event " + tag);
+        }
+        int width = input.readUnsignedByte();
+        int height = input.readUnsignedByte();
+        int planes = input.readUnsignedByte();
+        if (width != 64 && width != 128 || height != width / 2 || planes < 1 || planes > Bitplanes.MAX_PLANES) {
+            throw new IOException("Unsupported frame of " + width + "x" + height + " with " + planes + " planes");
+        }
+        if (width != frame.getWidth() || height != frame.getHeight() || planes != frame.getPlanes()) {
+            frame.setPlanes(planes);
+            frame.setResolution(width, height);
+        }
+        for (int plane = 0; plane < planes; plane++) {
+            for (long rows = input.readLong(); rows != 0; rows &= rows - 1) {
+                int y = Long.numberOfTrailingZeros(rows);
+                if (y >= height) {
+                    throw new IOException("Row " + y + " is outside a frame of " + height + " rows");
+                }
+                for (int word = 0; word < width / 64; word++) {
+                    frame.setWord(plane, y, word, input.readLong());
+                }
+            }
+        }
+        return frame;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
@@ -0,0 +1,78 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes frames as a stream of packed framebuffers, which {@link PackedFrameReader} reads back.
+ * <p>
+ * A stream is gzip compressed and starts with a magic number and a format version. It is followed by events, each a
+ * tag byte and its operands:
+ * <ul>
+ *     <li>{@link #FRAME}: the width, height and number of planes as a byte each, followed for every plane by a bit
+ *     mask of the rows that differ from the previous frame as a long, and the packed pixels of each of those rows as
+ *     one long per 64 pixels</li>
+ *     <li>{@link #END}: the end of the stream</li>
+ * </ul>
+ * Every row that is left out is the same as in the previous frame, which starts out as a blank screen of 64x32 with a
+ * single plane. When the resolution or the number of planes changes every row is written. Most frames change only a
+ * few rows, or none at all, so compressed an unchanged frame costs a couple of bytes.
+ */
+public class PackedFrameWriter implements FrameEncoder {
+    static final int MAGIC = 0x43384653; // C8FS
+    static final int VERSION = 1;
+    static final int FRAME = 1;
+    static final int END = 2;
+
+    private final DataOutputStream output;
+    private final Bitplanes previous = new Bitplanes();
+
+    /**
+     * @param output the stream to write to, closed when this writer is closed
+     * @throws IOException if the header could not be written
+     */
+    public PackedFrameWriter(OutputStream output) throws IOException {
+        this.output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(output)));
+        this.output.writeInt(MAGIC);
+        this.output.writeShort(VERSION);
+    }
+
+    @Override
+    public void encode(Bitplanes frame) throws IOException {
+        boolean resized = frame.getWidth() != previous.getWidth() || frame.getHeight() != previous.getHeight()
+                          || frame.getPlanes() != previous.getPlanes();
+        int wordsPerRow = frame.getWidth() / 64;
+        output.write(FRAME);
+        output.write(frame.getWidth());
+        output.write(frame.getHeight());
+        output.write(frame.getPlanes());
+        for (int plane = 0; plane < frame.getPlanes(); plane++) {
+            long changedRows = 0;
+            for (int y = 0; y < frame.getHeight(); y++) {
+                for (int word = 0; word < wordsPerRow; word++) {
+                    if (resized || frame.getWord(plane, y, word) != previous.getWord(plane, y, word)) {
+                        changedRows |= 1L << y;
+                    }
+                }
+            }
+            output.writeLong(changedRows);
+            for (long rows = changedRows; rows != 0; rows &= rows - 1) {
+                int y = Long.numberOfTrailingZeros(rows);
+                for (int word = 0; word < wordsPerRow; word++) {
+                    output.writeLong(frame.getWord(plane, y, word));
+                }
+            }
+        }
+        previous.copyFrom(frame);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (output) {
+            output.write(END);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package nl.remcoder.emulator.chip8;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+import static nl.remcoder.emulator.chip8.Instructions.*;
+
+/**
+ * Works out which machine a ROM image was written for, and which quirks it most likely expects, by looking at its
+ * code.
+ * <p>
+ * Like the {@link AotCompiler}, the control flow is followed from 0x200 through jumps, calls and skips, so data that
+ * happens to look like an instruction does not count. A ROM that reaches an XO-CHIP instruction, or does not fit in
+ * 4 KB, is taken for an XO-CHIP ROM, one that reaches a SUPER-CHIP instruction for a SUPER-CHIP ROM, and anything else
+ * for a CHIP-8 ROM.
+ * <p>
+ * CHIP-8 ROMs that shift with 8X06 or 8X0E, leaving Y at 0 while X is not, were almost certainly written for the
+ * CHIP-48, which shifts VX in place. Those get the CHIP-48 quirks suggested, other CHIP-8 ROMs the quirks the
+ * machine runs with by default.
+ */
+final class PlatformDetector {
+
+    /**
+     * @param platform the machine the ROM was written for
+     * @param suggestedQuirks the quirks the ROM most likely expects
+     */
+    record Detection(Mode platform, QuirkProfile suggestedQuirks) {
+    }
+
+    private PlatformDetector() {
+    }
+
+    static Detection detect(byte[] romdata) {
+        int romEnd = 0x200 + romdata.length;
+        boolean schip = false;
+        boolean xochip = romdata.length > CPU.MEMORY_SIZE - 0x200;
+        boolean shiftsInPlace = false;
+
+        BitSet visited = new BitSet(romEnd);
+        Deque<Integer> worklist = new ArrayDeque<>();
+        worklist.push(0x200);
+        while (!worklist.isEmpty()) {
+            int address = worklist.pop();
+            while (address >= 0x200 && address + 1 < romEnd && !visited.get(address)) {
+                visited.set(address);
+                int opcode = (romdata[address - 0x200] & 0xFF) << 8 | romdata[address + 1 - 0x200] & 0xFF;
+                int operation = Instructions.operationOf(opcode, Mode.XOCHIP);
+                switch (operation) {
+                    case OP_00CN, OP_00FB, OP_00FC, OP_00FD, OP_00FE, OP_00FF, OP_FX30, OP_FX75, OP_FX85 ->
+                            schip = true;
+                    case OP_00DN, OP_5XY2, OP_5XY3, OP_F000, OP_FN01, OP_F002, OP_FX3A -> xochip = true;
+                    case OP_8XY6, OP_8XYE -> shiftsInPlace |= (opcode & 0x0F00) != 0 && (opcode & 0x00F0) == 0;
+                    default -> {
+                    }
+                }
+
+                int next = address + (operation == OP_F000 ? 4 : 2);
+                switch (operation) {
+                    case OP_1NNN -> {
+                        worklist.push(opcode & 0xFFF);
+                        next = -1;
+                    }
+                    case OP_2NNN -> worklist.push(opcode & 0xFFF);
+                    case OP_3XNN, OP_4XNN, OP_5XY0, OP_9XY0, OP_EX9E, OP_EXA1 -> {
+                        worklist.push(next + 2);
+                        if (next + 1 < romEnd && romdata[next - 0x200] == (byte) 0xF0
+                            && romdata[next + 1 - 0x200] == 0) {
+                            // On the XO-CHIP a skip steps over F000 NNNN as a whole
+                            worklist.push(next + 4);
+                        }
+                    }
+                    case OP_00EE, OP_BNNN, OP_00FD -> next = -1;
+                    default -> {
+                    }
+                }
+                address = next;
+            }
+        }
+
+        if (xochip) {
+            return new Detection(Mode.XOCHIP, Mode.XOCHIP.quirks);
+        } else if (schip) {
+            return new Detection(Mode.SCHIP, Mode.SCHIP.quirks);
+        }
+        return new Detection(Mode.CHIP8, shiftsInPlace ? QuirkProfile.CHIP_48 : Mode.CHIP8.quirks);
+    }
+}
@@ -0,0 +1,201 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static nl.remcoder.emulator.chip8.Instructions.*;
+
+/**
+ * Profiles the ROM running on a {@link Machine}: how often every address is executed, how the subroutines call each
+ * other and which memory is read and written.
+ * <p>
+ * The profiler looks at every instruction from the outside, right before the CPU executes it, so the CPU itself
+ * knows nothing about it and a machine without a profiler pays nothing for it. While a profiler is set the machine
+ * interprets every instruction, compiled blocks would skip the profiler.
+ * <p>
+ * Memory is counted for every mode: on the SUPER-CHIP and XO-CHIP a 16x16 sprite reads 32 bytes and every selected
+ * plane reads a sprite of its own, and the XO-CHIP register ranges and audio pattern count as well. The heatmaps cover
+ * the 64 KB of the XO-CHIP, on the other machines only the first 4 KB can be touched.
+ * <p>
+ * Calls are tracked on a shadow stack of the subroutines entered through 2NNN and left through 00EE. Every executed
+ * instruction is counted against the chain of subroutines it executed in, which is what
+ * {@link #writeCollapsedStacks(Writer)} writes out for flamegraph tools.
+ */
+public class Profiler {
+    private static final int HEATMAP_SIZE = Mode.XOCHIP.memorySize;
+    private static final int AUDIO_PATTERN_BYTES = 16;
+
+    private final long[] executions = new long[HEATMAP_SIZE];
+    private final long[] reads = new long[HEATMAP_SIZE];
+    private final long[] writes = new long[HEATMAP_SIZE];
+    private final CallNode root = new CallNode(null, -1);
+    private CallNode current = root;
+
+    /**
+     * Account for the instruction the CPU is about to execute.
+     *
+     * @param cpu the CPU, with the program counter at the instruction
+     */
+    void beforeCycle(CPU cpu) {
+        int addressMask = cpu.memory.length - 1;
+        int pc = cpu.pc & addressMask;
+        int opcode = (cpu.memory[pc] & 0xFF) << 8 | cpu.memory[(pc + 1) & addressMask] & 0xFF;
+        int x = (opcode >> 8) & 0xF;
+        int y = (opcode >> 4) & 0xF;
+
+        if (current.depth != cpu.sp) {
+            // The stack was changed behind our back, by restoring a savestate for instance
+            current = root;
+        }
+        executions[pc]++;
+        current.instructions++;
+
+        switch (Instructions.operationOf(opcode, cpu.getMode())) {
+            case OP_2NNN -> current = current.child(opcode & 0xFFF);
+            case OP_00EE -> current = current.parent == null ? root : current.parent;
+            case OP_DXYN -> count(reads, cpu.I, spriteBytes(cpu, opcode), addressMask);
+            case OP_FX65 -> count(reads, cpu.I, x + 1, addressMask);
+            case OP_FX55 -> count(writes, cpu.I, x + 1, addressMask);
+            case OP_FX33 -> count(writes, cpu.I, 3, addressMask);
+            case OP_5XY2 -> count(writes, cpu.I, Math.abs(y - x) + 1, addressMask);
+            case OP_5XY3 -> count(reads, cpu.I, Math.abs(y - x) + 1, addressMask);
+            case OP_F002 -> count(reads, cpu.I, AUDIO_PATTERN_BYTES, addressMask);
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes of sprite data DXYN reads, including the rows clipped at the bottom of the screen
+     */
+    private static int spriteBytes(CPU cpu, int opcode) {
+        int n = opcode & 0xF;
+        if (cpu.getMode() == Mode.CHIP8) {
+            return n;
+        }
+        return (n == 0 ? 32 : n) * Integer.bitCount(cpu.getPlaneMask());
+    }
+
+    private static void count(long[] heatmap, int from, int length, int addressMask) {
+        for (int i = 0; i < length; i++) {
+            heatmap[(from + i) & addressMask]++;
+        }
+    }
+
+    /**
+     * @return the number of times an instruction was executed at every address
+     */
+    public long[] getExecutions() {
+        return executions.clone();
+    }
+
+    /**
+     * @return the number of times every address was read as sprite data, by FX65 and 5XY3 or as audio pattern
+     */
+    public long[] getReads() {
+        return reads.clone();
+    }
+
+    /**
+     * @return the number of times every address was written by FX33, FX55 or 5XY2
+     */
+    public long[] getWrites() {
+        return writes.clone();
+    }
+
+    /**
+     * @return every caller and callee pair seen, the main program being caller -1, with the number of calls
+     */
+    public List<CallEdge> getCallGraph() {
+        Map<Long, Long> calls = new HashMap<>();
+        List<CallNode> pending = new ArrayList<>(List.of(root));
+        while (!pending.isEmpty()) {
+            CallNode node = pending.remove(pending.size() - 1);
+            for (CallNode child : node.children.values()) {
+                calls.merge((long) node.address << 32 | child.address, child.calls, Long::sum);
+                pending.add(child);
+            }
+        }
+        List<CallEdge> callGraph = new ArrayList<>();
+        calls.forEach((edge, count) -> callGraph.add(new CallEdge((int) (edge >> 32), edge.intValue(), count)));
+        callGraph.sort(Comparator.comparingLong(CallEdge::calls).reversed()
+                                 .thenComparingInt(CallEdge::caller)
+                                 .thenComparingInt(CallEdge::callee));
+        return callGraph;
+    }
+
+    /**
+     * Write the executed instructions per call stack in the collapsed stack format read by flamegraph tools: one line
+     * per stack, the frames from outermost to innermost separated by semicolons, followed by a space and the count.
+     *
+     * @param writer the writer to write to
+     * @throws IOException if writing failed
+     */
+    public void writeCollapsedStacks(Writer writer) throws IOException {
+        writeCollapsedStacks(writer, root, "main");
+        writer.flush();
+    }
+
+    private static void writeCollapsedStacks(Writer writer, CallNode node, String stack) throws IOException {
+        if (node.instructions > 0) {
+            writer.write(stack + " " + node.instructions + "\n");
+        }
+        for (CallNode child : node.children.values()) {
+            writeCollapsedStacks(writer, child, stack + ";" + String.format("sub_%03X", child.address));
+        }
+    }
+
+    /**
+     * Write, as CSV, every address that was executed, read or written with the number of times it was.
+     *
+     * @param writer the writer to write to
+     * @throws IOException if writing failed
+     */
+    public void writeHeatmap(Writer writer) throws IOException {
+        writer.write("address,executions,reads,writes\n");
+        for (int address = 0; address < HEATMAP_SIZE; address++) {
+            if (executions[address] != 0 || reads[address] != 0 || writes[address] != 0) {
+                writer.write(String.format("0x%03X,%d,%d,%d\n", address, executions[address], reads[address],
+                                           writes[address]));
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * A subroutine called from another subroutine, or from the main program.
+     *
+     * @param caller the address of the calling subroutine, or -1 for the main program
+     * @param callee the address of the called subroutine
+     * @param calls the number of calls
+     */
+    public record CallEdge(int caller, int callee, long calls) {
+    }
+
+    private static final class CallNode {
+        private final CallNode parent;
+        private final int address;
+        private final int depth;
+        private final Map<Integer, CallNode> children = new TreeMap<>();
+        private long calls;
+        private long instructions;
+
+        private CallNode(CallNode parent, int address) {
+            this.parent = parent;
+            this.address = address;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+        }
+
+        private CallNode child(int address) {
+            CallNode child = children.computeIfAbsent(address, key -> new CallNode(this, key));
+            child.calls++;
+            return child;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package nl.remcoder.emulator.chip8;
+
+import static nl.remcoder.emulator.chip8.Instructions.*;
+
+/**
+ * The interpreters that disagree on what a handful of CHIP-8 instructions do, and that ROMs were written against.
+ * <p>
+ * A profile is applied when an instruction is decoded: the ambiguous operations are replaced by the variant the profile
+ * asks for, each with its own operation identifier. The interpreter and the {@link Jit} only ever see the variant, so
+ * every profile effectively runs on its own instruction set and executing an instruction never has to check a quirk.
+ */
+public enum QuirkProfile {
+    /**
+     * The original interpreter on the COSMAC VIP: 8XY6 and 8XYE shift VY into VX, FX55 and FX65 leave I pointing past
+     * the last register, sprites are clipped at the edges of the screen and BNNN adds V0.
+     */
+    COSMAC_VIP(true, true, true, false),
+    /**
+     * CHIP-48 on the HP-48: shifts work on VX in place and BNNN was implemented as BXNN, adding VX.
+     */
+    CHIP_48(false, true, true, true),
+    /**
+     * SUPER-CHIP 1.1: like CHIP-48, but FX55 and FX65 leave I alone.
+     */
+    SUPER_CHIP(false, false, true, true),
+    /**
+     * What most emulators, Octo and XO-CHIP do: like the COSMAC VIP, but sprites wrap around the edges of the screen.
+     */
+    MODERN(true, true, false, false);
+
+    private final int[] operations = new int[OPERATION_COUNT];
+
+    QuirkProfile(boolean shiftsVY, boolean incrementsIndex, boolean clipsSprites, boolean jumpsWithVX) {
+        for (int operation = 0; operation < OPERATION_COUNT; operation++) {
+            operations[operation] = operation;
+        }
+        if (!shiftsVY) {
+            operations[OP_8XY6] = OP_8XY6_VX;
+            operations[OP_8XYE] = OP_8XYE_VX;
+        }
+        if (!incrementsIndex) {
+            operations[OP_FX55] = OP_FX55_KEEP_I;
+            operations[OP_FX65] = OP_FX65_KEEP_I;
+        }
+        if (clipsSprites) {
+            operations[OP_DXYN] = OP_DXYN_CLIP;
+        }
+        if (jumpsWithVX) {
+            operations[OP_BNNN] = OP_BXNN;
+        }
+    }
+
+    /**
+     * @param operation an operation as decoded without quirks
+     * @return the variant of the operation this profile executes
+     */
+    int specialize(int operation) {
+        return operations[operation];
+    }
+}
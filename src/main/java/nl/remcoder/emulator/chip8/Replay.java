@@ -0,0 +1,249 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A run recorded with {@link Machine#startRecording(java.io.OutputStream)}, played back headless and unthrottled.
+ * <p>
+ * Playing back seeds the random number generator with the recorded seed and feeds the machine the recorded key changes
+ * and frame lengths, so the machine goes through exactly the same framebuffers as during recording. That makes a
+ * replay usable both to reproduce a bug and as a repeatable workload.
+ * <p>
+ * Usage: {@code Replay <rom> <recording> [--jit] [--profile prefix] [--video file]}, where profiling writes the
+ * collapsed call stacks to {@code prefix.folded} and the memory heatmap to {@code prefix.heatmap.csv}, see
+ * {@link Profiler}, and every frame is written to the video file, see {@link FrameEncoder#forFile(Path)}.
+ */
+public class Replay {
+    private static final int VIDEO_QUEUE_CAPACITY = 64;
+
+    private final long seed;
+    private final Mode mode;
+    private final QuirkProfile quirks;
+    private final String romHash;
+    private final long[] events;
+    private final int frameCount;
+
+    private Replay(long seed, Mode mode, QuirkProfile quirks, String romHash, long[] events, int frameCount) {
+        this.seed = seed;
+        this.mode = mode;
+        this.quirks = quirks;
+        this.romHash = romHash;
+        this.events = events;
+        this.frameCount = frameCount;
+    }
+
+    /**
+     * Read a recording completely into memory.
+     *
+     * @param input the stream to read the recording from
+     * @return the recording
+     * @throws IOException if the recording could not be read or is not a recording
+     */
+    public static Replay read(InputStream input) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(input)));
+        if (data.readInt() != InputRecorder.MAGIC) {
+            throw new IOException("Not a recording");
+        }
+        int version = data.readUnsignedShort();
+        if (version != InputRecorder.VERSION) {
+            throw new IOException("Unsupported recording version " + version);
+        }
+        long seed = data.readLong();
+        int modeOrdinal = data.readUnsignedByte();
+        if (modeOrdinal >= Mode.values().length) {
+            throw new IOException("Unknown mode " + modeOrdinal);
+        }
+        int quirksOrdinal = data.readUnsignedByte();
+        if (quirksOrdinal >= QuirkProfile.values().length) {
+            throw new IOException("Unknown quirk profile " + quirksOrdinal);
+        }
+        byte[] romHash = new byte[32];
+        data.readFully(romHash);
+
+        // Every event is packed into a long: the tag in the top byte, its operands below it. A key change has the
+        // number of instructions into its frame in the upper and the keys in the lower half of the rest.
+        long[] events = new long[1024];
+        int eventCount = 0;
+        int frameCount = 0;
+        long cycle = 0;
+        long lastKeyChange = 0;
+        int tag;
+        while ((tag = data.readUnsignedByte()) != InputRecorder.END) {
+            long event = switch (tag) {
+                case InputRecorder.KEY_CHANGED -> {
+                    lastKeyChange += readVarint(data);
+                    if (lastKeyChange < cycle) {
+                        throw new IOException("Key change at instruction " + lastKeyChange
+                                                      + " is before the start of its frame");
+                    }
+                    yield (long) tag << 56 | (lastKeyChange - cycle) << 16 | data.readUnsignedShort();
+                }
+                case InputRecorder.FRAME -> {
+                    long cycles = readVarint(data);
+                    if (lastKeyChange > cycle + cycles) {
+                        throw new IOException("Key change at instruction " + lastKeyChange
+                                                      + " is after the end of its frame");
+                    }
+                    cycle += cycles;
+                    frameCount++;
+                    yield (long) tag << 56 | cycles;
+                }
+                default -> throw new IOException("Unknown event " + tag);
+            };
+            if (eventCount == events.length) {
+                events = Arrays.copyOf(events, eventCount * 2);
+            }
+            events[eventCount++] = event;
+        }
+        return new Replay(seed, Mode.values()[modeOrdinal], QuirkProfile.values()[quirksOrdinal],
+                          HexFormat.of().formatHex(romHash), Arrays.copyOf(events, eventCount), frameCount);
+    }
+
+    public static Replay read(Path recording) throws IOException {
+        try (InputStream input = Files.newInputStream(recording)) {
+            return read(input);
+        }
+    }
+
+    /**
+     * Load the ROM into the machine and play the recording back on it. The machine is switched to the mode and the
+     * quirks the recording was made with first.
+     *
+     * @param machine the machine to play back on, its display and audio sinks see every frame
+     * @param romdata the ROM the recording was made with
+     * @throws IllegalArgumentException if the ROM is not the one the recording was made with
+     */
+    public void play(Machine machine, byte[] romdata) {
+        if (!AotCache.hash(romdata).equals(romHash)) {
+            throw new IllegalArgumentException("The recording was made with a different ROM");
+        }
+        if (machine.getMode() != mode) {
+            machine.setMode(mode);
+        }
+        machine.setQuirks(quirks);
+        machine.loadRom(romdata);
+        machine.getCpu().setSeed(seed);
+        machine.getCpu().setKeys(0);
+        int[] offsets = new int[16];
+        int[] keys = new int[16];
+        int count = 0;
+        for (long event : events) {
+            if (event >>> 56 == InputRecorder.KEY_CHANGED) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    keys = Arrays.copyOf(keys, count * 2);
+                }
+                offsets[count] = (int) (event >>> 16 & 0xFFFFFFFFFFL);
+                keys[count++] = (int) event & 0xFFFF;
+            } else {
+                machine.runFrame((int) event, offsets, keys, count);
+                count = 0;
+            }
+        }
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public QuirkProfile getQuirks() {
+        return quirks;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    private static long readVarint(DataInputStream data) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> paths = new ArrayList<>();
+        boolean jitEnabled = false;
+        String profile = null;
+        String video = null;
+        boolean valid = true;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--jit" -> jitEnabled = true;
+                case "--profile" -> {
+                    valid &= i + 1 < args.length;
+                    profile = valid ? args[++i] : null;
+                }
+                case "--video" -> {
+                    valid &= i + 1 < args.length;
+                    video = valid ? args[++i] : null;
+                }
+                default -> paths.add(args[i]);
+            }
+        }
+        if (!valid || paths.size() != 2) {
+            System.err.println("Usage: Replay <rom> <recording> [--jit] [--profile prefix] [--video file]");
+            System.exit(2);
+            return;
+        }
+        byte[] romdata = Files.readAllBytes(Path.of(paths.get(0)));
+        Replay replay = read(Path.of(paths.get(1)));
+
+        Machine machine = new Machine();
+        machine.setMode(replay.getMode());
+        machine.setQuirks(replay.getQuirks());
+        machine.setJitEnabled(jitEnabled && replay.getMode() == Mode.CHIP8);
+        Profiler profiler = null;
+        if (profile != null) {
+            profiler = new Profiler();
+            machine.setProfiler(profiler);
+        }
+        FrameRecorder recorder = null;
+        if (video != null) {
+            // Replaying is not real time, so the replay waits for the encoder rather than dropping frames
+            recorder = new FrameRecorder(FrameEncoder.forFile(Path.of(video)), VIDEO_QUEUE_CAPACITY, false);
+            machine.setDisplaySink(recorder);
+        }
+        long start = System.nanoTime();
+        replay.play(machine, romdata);
+        long wallTime = System.nanoTime() - start;
+        if (recorder != null) {
+            recorder.close();
+        }
+
+        System.out.printf("%d frames, %d instructions in %.1f ms, framebuffer %s%n", machine.getFrames(),
+                          machine.getCycles(), wallTime / 1e6, RomFarm.framebufferHash(machine.getDisplay()));
+        if (profiler != null) {
+            try (Writer writer = Files.newBufferedWriter(Path.of(profile + ".folded"))) {
+                profiler.writeCollapsedStacks(writer);
+            }
+            try (Writer writer = Files.newBufferedWriter(Path.of(profile + ".heatmap.csv"))) {
+                profiler.writeHeatmap(writer);
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package nl.remcoder.emulator.chip8;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the recent history of a {@link CPU}, one {@link SaveState} per frame, within a fixed memory budget.
+ * <p>
+ * Most frames only change a handful of bytes, so only every {@code keyframeInterval}th frame is stored in full. The
+ * frames in between are stored as the XOR with the frame before them, run-length encoded: a run of unchanged bytes
+ * costs a single varint. Everything lives in one preallocated ring of bytes; when it is full the oldest keyframe is
+ * dropped together with the frames that depend on it. Restoring a frame decodes its keyframe and applies at most
+ * {@code keyframeInterval - 1} deltas.
+ * <p>
+ * The buffer is not thread safe, record and rewind from the emulation thread.
+ */
+public class RewindBuffer {
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+    private static final int BYTES_PER_FRAME_INDEX = 64;
+
+    private final int keyframeInterval;
+    private final byte[] data;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final boolean[] keyframes;
+    private int oldest = 0;
+    private int count = 0;
+    private int writeOffset = 0;
+    private int framesSinceKeyframe = 0;
+
+    private byte[] previous = new byte[SaveState.SIZE];
+    private byte[] current = new byte[SaveState.SIZE];
+    private final byte[] encoded = new byte[SaveState.SIZE];
+    private int cursor;
+
+    /**
+     * @param memoryBudget the number of bytes to keep frames in, at least two full savestates; at most one frame is
+     *                     kept per {@value #BYTES_PER_FRAME_INDEX} bytes of budget
+     * @param keyframeInterval every how many frames a full savestate is stored
+     */
+    public RewindBuffer(int memoryBudget, int keyframeInterval) {
+        if (memoryBudget < 2 * SaveState.SIZE) {
+            throw new IllegalArgumentException("memoryBudget must be at least " + 2 * SaveState.SIZE
+                                                       + " bytes, was " + memoryBudget);
+        }
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("keyframeInterval must be at least 1, was " + keyframeInterval);
+        }
+        this.keyframeInterval = keyframeInterval;
+        data = new byte[memoryBudget];
+        int capacity = memoryBudget / BYTES_PER_FRAME_INDEX;
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+        keyframes = new boolean[capacity];
+    }
+
+    /**
+     * Record the state of the CPU as the newest frame.
+     *
+     * @param cpu the CPU
+     */
+    public void record(CPU cpu) {
+        SaveState.save(cpu, ByteBuffer.wrap(current));
+
+        boolean keyframe = count == 0 || framesSinceKeyframe + 1 >= keyframeInterval;
+        int length = keyframe ? SaveState.SIZE : encodeDelta();
+        if (length >= SaveState.SIZE) {
+            // Changed so much that the delta is no smaller than the frame itself
+            keyframe = true;
+            length = SaveState.SIZE;
+        }
+        int position = reserve(length);
+        if (!keyframe && count == 0) {
+            // Making room dropped the keyframe this delta builds on
+            keyframe = true;
+            length = SaveState.SIZE;
+            position = reserve(length);
+        }
+
+        System.arraycopy(keyframe ? current : encoded, 0, data, position, length);
+        int index = indexOf(count++);
+        offsets[index] = position;
+        lengths[index] = length;
+        keyframes[index] = keyframe;
+        writeOffset = position + length;
+        framesSinceKeyframe = keyframe ? 0 : framesSinceKeyframe + 1;
+
+        byte[] swap = previous;
+        previous = current;
+        current = swap;
+    }
+
+    /**
+     * Restore the CPU to a recorded frame and forget all frames recorded after it, so recording continues from there.
+     *
+     * @param framesBack how many frames to go back, 0 for the newest recorded frame
+     * @param cpu the CPU to restore the state into
+     */
+    public void rewind(int framesBack, CPU cpu) {
+        if (framesBack < 0 || framesBack >= count) {
+            throw new IndexOutOfBoundsException("Can rewind " + (count - 1) + " frames, not " + framesBack);
+        }
+        int target = count - 1 - framesBack;
+        int keyframe = target;
+        while (!keyframes[indexOf(keyframe)]) {
+            keyframe--;
+        }
+
+        int index = indexOf(keyframe);
+        System.arraycopy(data, offsets[index], previous, 0, SaveState.SIZE);
+        for (int frame = keyframe + 1; frame <= target; frame++) {
+            index = indexOf(frame);
+            applyDelta(offsets[index], lengths[index], previous);
+        }
+        SaveState.load(ByteBuffer.wrap(previous), cpu);
+
+        count = target + 1;
+        writeOffset = offsets[index] + lengths[index];
+        framesSinceKeyframe = target - keyframe;
+    }
+
+    /**
+     * @return the number of frames that can currently be restored
+     */
+    public int size() {
+        return count;
+    }
+
+    public void clear() {
+        count = 0;
+        oldest = 0;
+        writeOffset = 0;
+        framesSinceKeyframe = 0;
+    }
+
+    /**
+     * Find a place for an entry of the given length directly after the newest frame, wrapping around to the start of
+     * the ring when it does not fit before the end, and drop the oldest frames that are in the way.
+     */
+    private int reserve(int length) {
+        int position = writeOffset;
+        boolean wrapped = false;
+        if (position + length > data.length) {
+            position = 0;
+            wrapped = true;
+        }
+        while (count > 0) {
+            int index = indexOf(0);
+            boolean overlaps = offsets[index] < position + length && position < offsets[index] + lengths[index];
+            boolean leftBehind = wrapped && offsets[index] >= writeOffset;
+            if (count < offsets.length && !overlaps && !leftBehind) {
+                break;
+            }
+            dropOldestKeyframe();
+        }
+        return position;
+    }
+
+    private void dropOldestKeyframe() {
+        do {
+            oldest = (oldest + 1) % offsets.length;
+            count--;
+        } while (count > 0 && !keyframes[oldest]);
+    }
+
+    private int indexOf(int frame) {
+        return (oldest + frame) % offsets.length;
+    }
+
+    /**
+     * Encode the difference between the previous and the current frame as pairs of varints, the number of unchanged
+     * bytes followed by the number of changed bytes, each pair followed by the XOR of the changed bytes.
+     *
+     * @return the length of the encoded delta, or {@link SaveState#SIZE} if it would not be any smaller than that
+     */
+    private int encodeDelta() {
+        cursor = 0;
+        int i = 0;
+        while (i < SaveState.SIZE) {
+            int unchangedStart = i;
+            while (i < SaveState.SIZE && current[i] == previous[i]) {
+                i++;
+            }
+            int changedStart = i;
+            while (i < SaveState.SIZE && current[i] != previous[i]) {
+                i++;
+            }
+            int changed = i - changedStart;
+            if (cursor + changed + 6 > encoded.length) {
+                return SaveState.SIZE;
+            }
+            writeVarint(changedStart - unchangedStart);
+            writeVarint(changed);
+            for (int j = changedStart; j < i; j++) {
+                encoded[cursor++] = (byte) (current[j] ^ previous[j]);
+            }
+        }
+        return cursor;
+    }
+
+    private void applyDelta(int offset, int length, byte[] frame) {
+        cursor = offset;
+        int end = offset + length;
+        int i = 0;
+        while (cursor < end) {
+            i += readVarint();
+            int changed = readVarint();
+            for (int j = 0; j < changed; j++) {
+                frame[i++] ^= data[cursor++];
+            }
+        }
+    }
+
+    private void writeVarint(int value) {
+        while (value >= 0x80) {
+            encoded[cursor++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        encoded[cursor++] = (byte) value;
+    }
+
+    private int readVarint() {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[cursor++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
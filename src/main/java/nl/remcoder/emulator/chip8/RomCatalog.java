@@ -0,0 +1,344 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * A library of ROMs with an index that is kept on disk.
+ * <p>
+ * Scanning a directory hashes every ROM, works out which machine it was written for and which quirks it most likely
+ * expects (see {@link PlatformDetector}), and runs it headless for a number of frames to get a thumbnail of what it
+ * shows. All of that runs on several cores, one ROM per task, like the {@link RomFarm}. The results are written to the
+ * index, and a ROM whose size and modification time did not change since it was indexed is not looked at again, so
+ * reopening a large library only costs reading the index.
+ * <p>
+ * The images of the ROMs can be preloaded into memory, so switching between ROMs does not touch the disk.
+ * <p>
+ * Usage: {@code RomCatalog <directory> [--index file] [--frames N] [--parallelism N]}
+ */
+public class RomCatalog {
+    public static final String DEFAULT_INDEX_NAME = ".chip8-index";
+    public static final int DEFAULT_THUMBNAIL_FRAMES = 120;
+
+    private static final int MAGIC = 0x43384958; // C8IX
+    private static final int FORMAT_VERSION = 2;
+
+    private final Path indexFile;
+    private final int thumbnailFrames;
+    private final Map<Path, Entry> entries = new LinkedHashMap<>();
+    private final Map<Path, byte[]> images = new ConcurrentHashMap<>();
+
+    /**
+     * A single ROM in the catalog.
+     *
+     * @param path the file containing the ROM
+     * @param size the size of the ROM image in bytes
+     * @param lastModified the modification time of the file when it was indexed, in milliseconds since the epoch
+     * @param hash the SHA-256 hash of the ROM image, as hexadecimal digits
+     * @param platform the machine the ROM was most likely written for
+     * @param suggestedQuirks the quirks the ROM most likely expects
+     * @param thumbnail the screen after running the ROM headless, blank if it crashed the machine
+     */
+    public record Entry(Path path, int size, long lastModified, String hash, Mode platform,
+                        QuirkProfile suggestedQuirks, Bitplanes thumbnail) {
+    }
+
+    /**
+     * Open a catalog, reading its index if there is one. An index that cannot be read, or that was written for
+     * another number of thumbnail frames, is ignored and every ROM is indexed again by the next scan.
+     *
+     * @param indexFile the file the index is kept in
+     * @param thumbnailFrames the number of frames to run every ROM for to get its thumbnail
+     */
+    public RomCatalog(Path indexFile, int thumbnailFrames) {
+        this.indexFile = indexFile;
+        this.thumbnailFrames = thumbnailFrames;
+        if (Files.isRegularFile(indexFile)) {
+            try {
+                for (Entry entry : read(Files.readAllBytes(indexFile), thumbnailFrames)) {
+                    entries.put(entry.path(), entry);
+                }
+            } catch (IOException e) {
+                // Unreadable or from an older version, everything is indexed again by the next scan
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Bring the catalog up to date with all regular files in a directory and its subdirectories, and write the index.
+     * Hidden files, like the index itself, are skipped, as are files too large to be a ROM.
+     *
+     * @param directory the directory containing the ROMs
+     * @param parallelism the number of ROMs to index at the same time
+     * @return the entries of the ROMs in the directory, in alphabetical order of their paths
+     * @throws IOException if the directory could not be listed or the index could not be written
+     */
+    public synchronized List<Entry> scan(Path directory, int parallelism) throws IOException {
+        Path root = directory.toAbsolutePath().normalize();
+        List<Path> roms;
+        try (Stream<Path> files = Files.walk(root)) {
+            roms = files.filter(Files::isRegularFile)
+                        .filter(file -> !file.getFileName().toString().startsWith("."))
+                        .sorted()
+                        .toList();
+        }
+
+        List<Entry> scanned = inParallel(parallelism, () -> roms.parallelStream()
+                                                                .map(this::indexed)
+                                                                .filter(Objects::nonNull)
+                                                                .toList());
+        for (Entry entry : scanned) {
+            entries.put(entry.path(), entry);
+        }
+        entries.keySet().removeIf(path -> path.startsWith(root) && !Files.isRegularFile(path));
+        writeIndex();
+        return scanned;
+    }
+
+    /**
+     * Load the images of all ROMs in the catalog into memory, so {@link #romdata(Entry)} does not have to go to disk.
+     *
+     * @param parallelism the number of ROMs to load at the same time
+     * @throws IOException if a ROM could not be read
+     */
+    public void preload(int parallelism) throws IOException {
+        List<Entry> toLoad = getEntries();
+        inParallel(parallelism, () -> {
+            toLoad.parallelStream().forEach(this::romdata);
+            return null;
+        });
+    }
+
+    /**
+     * Get the image of a ROM, from memory if it was loaded before.
+     * <p>
+     * The same array is handed out every time, so it must not be changed. {@link Machine#loadRom(byte[])} copies it.
+     *
+     * @param entry the ROM
+     * @return the raw ROM image
+     * @throws UncheckedIOException if the ROM was not in memory and could not be read
+     */
+    public byte[] romdata(Entry entry) {
+        return images.computeIfAbsent(entry.path(), path -> {
+            try {
+                return Files.readAllBytes(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * @return all entries in the catalog, in alphabetical order of their paths
+     */
+    public synchronized List<Entry> getEntries() {
+        return entries.values().stream().sorted((a, b) -> a.path().compareTo(b.path())).toList();
+    }
+
+    /**
+     * Get the entry of a file, reusing the entry in the index if the file did not change since.
+     *
+     * @return the entry, or null if the file is too large to be a ROM
+     */
+    private Entry indexed(Path rom) {
+        try {
+            long size = Files.size(rom);
+            long lastModified = Files.getLastModifiedTime(rom).toMillis();
+            Entry known = entries.get(rom);
+            if (known != null && known.size() == size && known.lastModified() == lastModified) {
+                return known;
+            }
+            if (size > Mode.XOCHIP.memorySize - 0x200) {
+                return null;
+            }
+            byte[] romdata = Files.readAllBytes(rom);
+            images.put(rom, romdata);
+            PlatformDetector.Detection detection = PlatformDetector.detect(romdata);
+            return new Entry(rom, romdata.length, lastModified, AotCache.hash(romdata), detection.platform(),
+                             detection.suggestedQuirks(), thumbnail(romdata, detection));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Bitplanes thumbnail(byte[] romdata, PlatformDetector.Detection detection) {
+        Machine machine = new Machine(new CPU(new Random(0)));
+        Bitplanes thumbnail = new Bitplanes();
+        try {
+            machine.setMode(detection.platform());
+            machine.setQuirks(detection.suggestedQuirks());
+            machine.loadRom(romdata);
+            machine.runFrames(thumbnailFrames);
+            thumbnail.copyFrom(machine.getDisplay());
+        } catch (RuntimeException e) {
+            // Whatever the ROM does, it gets an entry, with a blank thumbnail
+        }
+        return thumbnail;
+    }
+
+    private static <T> T inParallel(int parallelism, Callable<T> task) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while indexing ROMs", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException uncheckedIOException) {
+                throw uncheckedIOException.getCause();
+            }
+            throw new IllegalStateException("Indexing ROMs failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        Path directory = indexFile.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporaryFile = Files.createTempFile(directory, "index", ".tmp");
+        Files.write(temporaryFile, write(entries.values(), thumbnailFrames));
+        Files.move(temporaryFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] write(Iterable<Entry> entries, int thumbnailFrames) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(thumbnailFrames);
+            for (Entry entry : entries) {
+                output.writeBoolean(true);
+                output.writeUTF(entry.path().toString());
+                output.writeInt(entry.size());
+                output.writeLong(entry.lastModified());
+                output.write(HexFormat.of().parseHex(entry.hash()));
+                output.write(entry.platform().ordinal());
+                output.write(entry.suggestedQuirks().ordinal());
+                Bitplanes thumbnail = entry.thumbnail();
+                output.write(thumbnail.getWidth());
+                output.write(thumbnail.getHeight());
+                output.write(thumbnail.getPlanes());
+                for (int plane = 0; plane < thumbnail.getPlanes(); plane++) {
+                    for (int y = 0; y < thumbnail.getHeight(); y++) {
+                        for (int word = 0; word < thumbnail.getWidth() / 64; word++) {
+                            output.writeLong(thumbnail.getWord(plane, y, word));
+                        }
+                    }
+                }
+            }
+            output.writeBoolean(false);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<Entry> read(byte[] data, int thumbnailFrames) throws IOException {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not an index in the current format");
+            }
+            if (input.readInt() != thumbnailFrames) {
+                throw new IOException("Thumbnails were taken after another number of frames");
+            }
+            List<Entry> entries = new ArrayList<>();
+            while (input.readBoolean()) {
+                Path path = Path.of(input.readUTF());
+                int size = input.readInt();
+                long lastModified = input.readLong();
+                byte[] hash = new byte[32];
+                input.readFully(hash);
+                int platform = input.readUnsignedByte();
+                if (platform >= Mode.values().length) {
+                    throw new IOException("Unknown platform " + platform);
+                }
+                int suggestedQuirks = input.readUnsignedByte();
+                if (suggestedQuirks >= QuirkProfile.values().length) {
+                    throw new IOException("Unknown quirk profile " + suggestedQuirks);
+                }
+                Bitplanes thumbnail = new Bitplanes();
+                int width = input.readUnsignedByte();
+                int height = input.readUnsignedByte();
+                int planes = input.readUnsignedByte();
+                if (width != 64 && width != 128 || height != width / 2
+                    || planes < 1 || planes > Bitplanes.MAX_PLANES) {
+                    throw new IOException("Unsupported thumbnail of " + width + "x" + height);
+                }
+                thumbnail.setPlanes(planes);
+                thumbnail.setResolution(width, height);
+                for (int plane = 0; plane < planes; plane++) {
+                    for (int y = 0; y < height; y++) {
+                        for (int word = 0; word < width / 64; word++) {
+                            thumbnail.setWord(plane, y, word, input.readLong());
+                        }
+                    }
+                }
+                entries.add(new Entry(path, size, lastModified, HexFormat.of().formatHex(hash),
+                                      Mode.values()[platform], QuirkProfile.values()[suggestedQuirks], thumbnail));
+            }
+            return entries;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path directory = null;
+        Path indexFile = null;
+        int frames = DEFAULT_THUMBNAIL_FRAMES;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        boolean valid = true;
+        for (int i = 0; i < args.length && valid; i++) {
+            switch (args[i]) {
+                case "--index" -> {
+                    valid = i + 1 < args.length;
+                    indexFile = valid ? Path.of(args[++i]) : null;
+                }
+                case "--frames" -> {
+                    valid = i + 1 < args.length;
+                    frames = valid ? Integer.parseInt(args[++i]) : 0;
+                }
+                case "--parallelism" -> {
+                    valid = i + 1 < args.length;
+                    parallelism = valid ? Integer.parseInt(args[++i]) : 0;
+                }
+                default -> {
+                    valid = directory == null;
+                    directory = Path.of(args[i]);
+                }
+            }
+        }
+        if (!valid || directory == null) {
+            System.err.println("Usage: RomCatalog <directory> [--index file] [--frames N] [--parallelism N]");
+            System.exit(2);
+            return;
+        }
+
+        long start = System.nanoTime();
+        RomCatalog catalog = new RomCatalog(indexFile != null ? indexFile : directory.resolve(DEFAULT_INDEX_NAME),
+                                            frames);
+        List<Entry> scanned = catalog.scan(directory, parallelism);
+        for (Entry entry : scanned) {
+            System.out.printf("%s  %-7s %-10s %5d  %s%n", entry.hash().substring(0, 16), entry.platform(),
+                              entry.suggestedQuirks(), entry.size(), entry.path().getFileName());
+        }
+        System.out.printf("%d ROMs indexed in %.1f ms%n", scanned.size(), (System.nanoTime() - start) / 1e6);
+    }
+}
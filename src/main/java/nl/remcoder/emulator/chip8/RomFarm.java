@@ -0,0 +1,247 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * Command line runner that executes a directory of ROMs in parallel, headless and unthrottled.
+ * <p>
+ * Every ROM runs on its own {@link Machine} for a fixed number of frames or instructions, and one JSON line is written
+ * per ROM with the hash of the final framebuffer, the number of instructions executed and the wall time it took. The
+ * machines share nothing, so throughput scales with the number of cores.
+ * <p>
+ * Usage: {@code RomFarm <directory> [--frames N | --cycles N] [--parallelism N] [--seed N] [--jit] [--output file]}
+ */
+public class RomFarm {
+    private final int frames;
+    private final long cycles;
+    private final long seed;
+    private final boolean jitEnabled;
+
+    /**
+     * @param frames the number of frames to run every ROM for, used when cycles is 0
+     * @param cycles the number of instructions to run every ROM for, or 0 to run frames instead
+     * @param seed the seed for the random number generator of every machine, so runs can be repeated
+     * @param jitEnabled true to run with the compiling tier switched on
+     */
+    public RomFarm(int frames, long cycles, long seed, boolean jitEnabled) {
+        this.frames = frames;
+        this.cycles = cycles;
+        this.seed = seed;
+        this.jitEnabled = jitEnabled;
+    }
+
+    /**
+     * Run all regular files in a directory, in alphabetical order of their names.
+     *
+     * @param directory the directory containing the ROMs
+     * @param parallelism the number of ROMs to run at the same time
+     * @return the results, in the same order as the ROMs
+     * @throws IOException if the directory could not be listed
+     */
+    public List<Result> runAll(Path directory, int parallelism) throws IOException {
+        List<Path> roms;
+        try (Stream<Path> files = Files.list(directory)) {
+            roms = files.filter(Files::isRegularFile).sorted().toList();
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.submit(() -> roms.parallelStream().map(this::run).toList()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running ROMs", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException uncheckedIOException) {
+                throw uncheckedIOException.getCause();
+            }
+            throw new IllegalStateException("Running ROMs failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Run a single ROM on a fresh machine.
+     *
+     * @param rom the file containing the ROM
+     * @return the result, with the error filled in if the ROM crashed the machine
+     */
+    public Result run(Path rom) {
+        byte[] romdata;
+        try {
+            romdata = Files.readAllBytes(rom);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        Machine machine = new Machine(new CPU(new Random(seed)));
+        machine.setJitEnabled(jitEnabled);
+        long start = System.nanoTime();
+        String error = null;
+        try {
+            machine.loadRom(romdata);
+            if (cycles > 0) {
+                runCycles(machine);
+            } else {
+                machine.runFrames(frames);
+            }
+        } catch (RuntimeException e) {
+            error = e.toString();
+        }
+        long wallTime = System.nanoTime() - start;
+
+        return new Result(rom.getFileName().toString(), framebufferHash(machine.getDisplay()),
+                          machine.getCycles(), wallTime, error);
+    }
+
+    private void runCycles(Machine machine) {
+        long remaining = cycles;
+        while (remaining > 0) {
+            int batch = (int) Math.min(remaining, machine.getCyclesPerFrame());
+            machine.runFrame(batch);
+            remaining -= batch;
+        }
+    }
+
+    /**
+     * Hash a framebuffer with 64 bit FNV-1a over its rows packed into longs, plane by plane. A 64x32 screen with a
+     * single plane hashes the same as it always did.
+     *
+     * @param display the framebuffer
+     * @return the hash as 16 hexadecimal digits
+     */
+    static String framebufferHash(Bitplanes display) {
+        long hash = 0xCBF29CE484222325L;
+        int wordsPerRow = display.getWidth() / 64;
+        for (int plane = 0; plane < display.getPlanes(); plane++) {
+            for (int y = 0; y < display.getHeight(); y++) {
+                for (int word = 0; word < wordsPerRow; word++) {
+                    hash = hashWord(hash, display.getWord(plane, y, word));
+                }
+            }
+        }
+        return String.format("%016x", hash);
+    }
+
+    private static long hashWord(long hash, long packed) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (packed >>> (56 - i * 8)) & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * The outcome of running a single ROM.
+     *
+     * @param rom the file name of the ROM
+     * @param framebufferHash the hash of the framebuffer at the end of the run
+     * @param instructions the number of instructions executed
+     * @param wallTimeNanos the time it took to load and run the ROM
+     * @param error a description of the exception that ended the run early, or null if it ran to completion
+     */
+    public record Result(String rom, String framebufferHash, long instructions, long wallTimeNanos, String error) {
+        public String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"rom\":").append(quote(rom))
+                .append(",\"framebufferHash\":").append(quote(framebufferHash))
+                .append(",\"instructions\":").append(instructions)
+                .append(",\"wallTimeNanos\":").append(wallTimeNanos);
+            if (error != null) {
+                json.append(",\"error\":").append(quote(error));
+            }
+            return json.append('}').toString();
+        }
+
+        private static String quote(String value) {
+            StringBuilder quoted = new StringBuilder("\"");
+            for (char c : value.toCharArray()) {
+                switch (c) {
+                    case '"' -> quoted.append("\\\"");
+                    case '\\' -> quoted.append("\\\\");
+                    case '\n' -> quoted.append("\\n");
+                    case '\r' -> quoted.append("\\r");
+                    case '\t' -> quoted.append("\\t");
+                    default -> {
+                        if (c < 0x20) {
+                            quoted.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            quoted.append(c);
+                        }
+                    }
+                }
+            }
+            return quoted.append('"').toString();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path directory = null;
+        int frames = 600;
+        long cycles = 0;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        long seed = 0;
+        boolean jitEnabled = false;
+        Path output = null;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--frames" -> frames = Integer.parseInt(valueOf(args, ++i));
+                    case "--cycles" -> cycles = Long.parseLong(valueOf(args, ++i));
+                    case "--parallelism" -> parallelism = Integer.parseInt(valueOf(args, ++i));
+                    case "--seed" -> seed = Long.parseLong(valueOf(args, ++i));
+                    case "--jit" -> jitEnabled = true;
+                    case "--output" -> output = Path.of(valueOf(args, ++i));
+                    default -> {
+                        if (args[i].startsWith("--") || directory != null) {
+                            throw new IllegalArgumentException("Unexpected argument " + args[i]);
+                        }
+                        directory = Path.of(args[i]);
+                    }
+                }
+            }
+            if (directory == null) {
+                throw new IllegalArgumentException("No ROM directory given");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: RomFarm <directory> [--frames N | --cycles N] [--parallelism N] [--seed N]"
+                                       + " [--jit] [--output file]");
+            System.exit(2);
+            return;
+        }
+
+        List<Result> results = new RomFarm(frames, cycles, seed, jitEnabled).runAll(directory, parallelism);
+        if (output == null) {
+            print(results, System.out);
+        } else {
+            try (PrintStream out = new PrintStream(Files.newOutputStream(output))) {
+                print(results, out);
+            }
+        }
+    }
+
+    private static void print(List<Result> results, PrintStream out) {
+        for (Result result : results) {
+            out.println(result.toJson());
+        }
+        out.flush();
+    }
+
+    private static String valueOf(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+        }
+        return args[index];
+    }
+}
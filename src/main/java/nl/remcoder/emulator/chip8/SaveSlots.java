@@ -0,0 +1,79 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file of fixed-size savestate slots, mapped into memory.
+ * <p>
+ * Saving or loading a slot is a copy from or to the mapped memory, the operating system writes the pages back to the
+ * file in the background. That makes it cheap to snapshot thousands of machines into one file. Different slots may be
+ * used from different threads at the same time.
+ */
+public class SaveSlots implements Closeable {
+    private final FileChannel channel;
+    private final MappedByteBuffer slots;
+    private final int slotCount;
+
+    /**
+     * Open a slot file, creating it or growing it when it is too small for the requested number of slots.
+     *
+     * @param file the slot file
+     * @param slotCount the number of slots
+     * @throws IOException if the file could not be opened or mapped
+     */
+    public SaveSlots(Path file, int slotCount) throws IOException {
+        if (slotCount < 1 || (long) slotCount * SaveState.SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported number of slots " + slotCount);
+        }
+        this.slotCount = slotCount;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        slots = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) slotCount * SaveState.SIZE);
+    }
+
+    public void save(int slot, CPU cpu) {
+        SaveState.save(cpu, slot(slot));
+    }
+
+    /**
+     * @param slot the slot to load
+     * @param cpu the CPU to restore the state into
+     * @throws IllegalArgumentException if nothing was saved in the slot
+     */
+    public void load(int slot, CPU cpu) {
+        SaveState.load(slot(slot), cpu);
+    }
+
+    public boolean isOccupied(int slot) {
+        return SaveState.isSaveState(slot(slot));
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * Write all saved slots through to the storage device.
+     */
+    public void force() {
+        slots.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer slot(int slot) {
+        if (slot < 0 || slot >= slotCount) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " out of " + slotCount);
+        }
+        return slots.slice(slot * SaveState.SIZE, SaveState.SIZE);
+    }
+}
@@ -0,0 +1,149 @@
+package nl.remcoder.emulator.chip8;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary snapshot of the complete state of a {@link CPU}.
+ * <p>
+ * Memory and registers are stored as bytes and the framebuffer as one bit per pixel, so a savestate takes
+ * {@value #SIZE} bytes. The layout, all big-endian:
+ * <pre>
+ * magic "C8SS" (4), version (2), memory (4096), V0-VF (16), I (4), pc (2), sp (1), stack (16 x 2),
+ * delay timer (1), sound timer (1), keys (2), framebuffer (32 rows x 8)
+ * </pre>
+ * The state of the random number generator is not part of a savestate.
+ */
+public final class SaveState {
+    public static final int VERSION = 2;
+    public static final int SIZE = 4 + 2 + 4096 + 16 + 4 + 2 + 1 + 16 * 2 + 1 + 1 + 2 + 32 * 8;
+
+    private static final int MAGIC = 0x43385353; // C8SS
+
+    private SaveState() {
+    }
+
+    /**
+     * Write the state of the CPU at the current position of the buffer.
+     *
+     * @param cpu the CPU to take the snapshot of
+     * @param buffer the buffer to write to, with at least {@link #SIZE} bytes remaining
+     * @throws IllegalStateException if the CPU is not emulating a plain CHIP-8
+     */
+    public static void save(CPU cpu, ByteBuffer buffer) {
+        requireChip8(cpu);
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.put(cpu.memory);
+        for (int value : cpu.registers) {
+            buffer.put((byte) value);
+        }
+        // Every access through I wraps around, so only the address within memory matters
+        buffer.putInt(cpu.I & CPU.ADDRESS_MASK);
+        buffer.putShort((short) cpu.pc);
+        buffer.put((byte) cpu.sp);
+        for (int value : cpu.stack) {
+            buffer.putShort((short) value);
+        }
+        buffer.put((byte) cpu.delay_timer);
+        buffer.put((byte) cpu.sound_timer);
+        buffer.putShort((short) cpu.keys);
+        Bitplanes display = cpu.getDisplay();
+        for (int y = 0; y < 32; y++) {
+            buffer.putLong(display.getWord(0, y, 0));
+        }
+    }
+
+    /**
+     * @param cpu the CPU to take the snapshot of
+     * @return the savestate
+     */
+    public static byte[] save(CPU cpu) {
+        byte[] savestate = new byte[SIZE];
+        save(cpu, ByteBuffer.wrap(savestate));
+        return savestate;
+    }
+
+    /**
+     * Replace the state of the CPU with the savestate at the current position of the buffer.
+     *
+     * @param buffer the buffer to read from
+     * @param cpu the CPU to restore the state into
+     * @throws IllegalArgumentException if the buffer does not contain a savestate of this version, or one with
+     *                                  addresses outside memory or a stack pointer outside the stack
+     * @throws IllegalStateException if the CPU is not emulating a plain CHIP-8
+     */
+    public static void load(ByteBuffer buffer, CPU cpu) {
+        requireChip8(cpu);
+        if (buffer.remaining() < SIZE || buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a savestate");
+        }
+        int version = buffer.getShort();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported savestate version " + version);
+        }
+        requireValidPointers(buffer, cpu);
+        buffer.get(cpu.memory);
+        for (int i = 0; i < cpu.registers.length; i++) {
+            cpu.registers[i] = buffer.get() & 0xFF;
+        }
+        cpu.I = buffer.getInt();
+        cpu.pc = buffer.getShort() & 0xFFFF;
+        cpu.sp = buffer.get();
+        for (int i = 0; i < cpu.stack.length; i++) {
+            cpu.stack[i] = buffer.getShort() & 0xFFFF;
+        }
+        cpu.delay_timer = buffer.get() & 0xFF;
+        cpu.sound_timer = buffer.get() & 0xFF;
+        cpu.keys = buffer.getShort() & 0xFFFF;
+        Bitplanes display = cpu.getDisplay();
+        for (int y = 0; y < 32; y++) {
+            display.setRow(y, buffer.getLong());
+        }
+        cpu.stateRestored();
+    }
+
+    /**
+     * @param savestate the savestate
+     * @param cpu the CPU to restore the state into
+     */
+    public static void load(byte[] savestate, CPU cpu) {
+        load(ByteBuffer.wrap(savestate), cpu);
+    }
+
+    /**
+     * @param buffer the buffer to look at, from its current position
+     * @return true if the buffer starts with a savestate of this version
+     */
+    public static boolean isSaveState(ByteBuffer buffer) {
+        return buffer.remaining() >= SIZE
+                && buffer.getInt(buffer.position()) == MAGIC
+                && buffer.getShort(buffer.position() + 4) == VERSION;
+    }
+
+    /**
+     * Check the registers that point into memory or the stack before anything is restored, so a damaged savestate
+     * leaves the CPU as it was instead of failing once it runs.
+     */
+    private static void requireValidPointers(ByteBuffer buffer, CPU cpu) {
+        ByteBuffer pointers = buffer.duplicate().position(buffer.position() + cpu.memory.length + cpu.registers.length);
+        int I = pointers.getInt();
+        int pc = pointers.getShort() & 0xFFFF;
+        // A return without a call leaves the stack pointer just below the stack, like it would on the interpreter
+        int sp = pointers.get();
+        if (I < 0 || I >= cpu.memory.length || pc >= cpu.memory.length || sp < -1 || sp >= cpu.stack.length) {
+            throw new IllegalArgumentException("Corrupt savestate, I " + I + ", pc " + pc + ", sp " + sp);
+        }
+        for (int i = 0; i < cpu.stack.length; i++) {
+            int address = pointers.getShort() & 0xFFFF;
+            if (address >= cpu.memory.length) {
+                throw new IllegalArgumentException("Corrupt savestate, stack entry " + i + " is " + address);
+            }
+        }
+    }
+
+    private static void requireChip8(CPU cpu) {
+        if (cpu.getMode() != Mode.CHIP8) {
+            throw new IllegalStateException("Savestates only support CHIP-8, not " + cpu.getMode());
+        }
+    }
+}
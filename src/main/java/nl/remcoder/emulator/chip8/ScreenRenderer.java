@@ -0,0 +1,65 @@
+package nl.remcoder.emulator.chip8;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.nio.IntBuffer;
+
+/**
+ * Renders the framebuffer into an image of 128x64, the highest resolution of the SUPER-CHIP and XO-CHIP. At 64x32
+ * every pixel becomes a block of 2x2, so switching resolution does not change the size of the image.
+ * <p>
+ * The changed rows are handed to the image in one bulk {@code setPixels} call. Scaling it up to the window is left to
+ * whoever shows the image, an {@link javafx.scene.image.ImageView} with smoothing switched off scales it
+ * nearest-neighbour on the graphics card, so the cost of a frame does not depend on the size of the window.
+ */
+public class ScreenRenderer {
+    private static final int WIDTH = Bitplanes.MAX_WIDTH;
+    private static final int HEIGHT = Bitplanes.MAX_HEIGHT;
+    // Indexed by the color of a pixel, one bit per plane
+    private static final int[] PALETTE = {
+            0xFF000000, // Color.BLACK
+            0xFF32CD32, // Color.LIMEGREEN
+            0xFF1E90FF, // Color.DODGERBLUE
+            0xFFFFFFFF  // Color.WHITE
+    };
+
+    private final WritableImage image = new WritableImage(WIDTH, HEIGHT);
+    private final PixelFormat<IntBuffer> pixelFormat = PixelFormat.getIntArgbPreInstance();
+    private final int[] pixels = new int[WIDTH * HEIGHT];
+
+    /**
+     * Render the changed rows of a frame. The image is left alone entirely when nothing changed, otherwise the band
+     * from the first to the last changed row is written in one go.
+     *
+     * @param display the frame
+     * @param dirtyRows a bit mask of the rows that changed since the previously rendered frame
+     */
+    public void render(Bitplanes display, long dirtyRows) {
+        if (dirtyRows == 0) {
+            return;
+        }
+        int scale = WIDTH / display.getWidth();
+        int firstRow = Long.numberOfTrailingZeros(dirtyRows);
+        int lastRow = Math.min(63 - Long.numberOfLeadingZeros(dirtyRows), display.getHeight() - 1);
+        for (int y = firstRow; y <= lastRow; y++) {
+            int offset = y * scale * WIDTH;
+            for (int x = 0; x < display.getWidth(); x++) {
+                int color = PALETTE[display.getPixel(x, y)];
+                for (int i = 0; i < scale; i++) {
+                    pixels[offset + x * scale + i] = color;
+                }
+            }
+            if (scale == 2) {
+                System.arraycopy(pixels, offset, pixels, offset + WIDTH, WIDTH);
+            }
+        }
+        int top = firstRow * scale;
+        image.getPixelWriter().setPixels(0, top, WIDTH, (lastRow + 1) * scale - top, pixelFormat,
+                                         pixels, top * WIDTH, WIDTH);
+    }
+
+    public WritableImage getImage() {
+        return image;
+    }
+}
@@ -0,0 +1,47 @@
+package nl.remcoder.emulator.chip8;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Synthesizes the buzzer as a square wave, one emulated frame of samples at a time.
+ * <p>
+ * At {@value #SAMPLE_RATE} Hz a frame is exactly {@value #SAMPLES_PER_FRAME} samples, so the tone starts and stops on
+ * the sample that matches the frame the sound timer started or ran out in. The phase carries over from frame to frame
+ * and the tone fades in and out over a millisecond, so starting and stopping does not click.
+ */
+final class SquareWave {
+    static final int SAMPLE_RATE = 48_000;
+    static final int SAMPLES_PER_FRAME = SAMPLE_RATE / EmulationScheduler.FRAMES_PER_SECOND;
+    static final int BYTES_PER_FRAME = SAMPLES_PER_FRAME * 2;
+    // 16 bit signed little-endian mono
+    static final AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+
+    private static final int FREQUENCY = 440;
+    private static final int AMPLITUDE = 6000;
+    private static final int FADE_SAMPLES = SAMPLE_RATE / 1000;
+    private static final int PHASE_STEP = (int) (((long) FREQUENCY << 32) / SAMPLE_RATE);
+
+    private int phase = 0;
+    private int level = 0;
+
+    /**
+     * Render the samples of one frame.
+     *
+     * @param beeping true if the buzzer sounds during the frame
+     * @param buffer the buffer to write to, {@value #BYTES_PER_FRAME} bytes from the offset
+     * @param offset where in the buffer to start writing
+     */
+    void render(boolean beeping, byte[] buffer, int offset) {
+        for (int i = 0; i < SAMPLES_PER_FRAME; i++) {
+            if (beeping) {
+                level = Math.min(level + 1, FADE_SAMPLES);
+            } else {
+                level = Math.max(level - 1, 0);
+            }
+            int sample = (phase < 0 ? -AMPLITUDE : AMPLITUDE) * level / FADE_SAMPLES;
+            phase += PHASE_STEP;
+            buffer[offset++] = (byte) sample;
+            buffer[offset++] = (byte) (sample >> 8);
+        }
+    }
+}
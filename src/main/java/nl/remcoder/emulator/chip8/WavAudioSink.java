@@ -0,0 +1,75 @@
+package nl.remcoder.emulator.chip8;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the buzzer to a WAV file, synthesized exactly as {@link LineAudioSink} plays it. Needs no audio device, so
+ * the sound of a ROM can be captured and checked on a headless machine.
+ */
+public class WavAudioSink implements AudioSink, Closeable {
+    private static final int HEADER_SIZE = 44;
+
+    private final SquareWave squareWave = new SquareWave();
+    private final byte[] samples = new byte[SquareWave.BYTES_PER_FRAME];
+    private final FileChannel channel;
+    private long dataSize = 0;
+
+    /**
+     * @param file the file to write to, replaced if it exists
+     * @throws IOException if the file could not be created
+     */
+    public WavAudioSink(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                   StandardOpenOption.WRITE);
+        channel.position(HEADER_SIZE);
+    }
+
+    @Override
+    public void beep(boolean beeping) {
+        squareWave.render(beeping, samples, 0);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(samples);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        dataSize += samples.length;
+    }
+
+    /**
+     * Fill in the header and close the file.
+     */
+    @Override
+    public void close() {
+        try (channel) {
+            int blockAlign = SquareWave.FORMAT.getFrameSize();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0x46464952)                                  // "RIFF"
+                  .putInt((int) (36 + dataSize))
+                  .putInt(0x45564157)                                  // "WAVE"
+                  .putInt(0x20746D66)                                  // "fmt "
+                  .putInt(16)
+                  .putShort((short) 1)                                 // PCM
+                  .putShort((short) SquareWave.FORMAT.getChannels())
+                  .putInt(SquareWave.SAMPLE_RATE)
+                  .putInt(SquareWave.SAMPLE_RATE * blockAlign)
+                  .putShort((short) blockAlign)
+                  .putShort((short) SquareWave.FORMAT.getSampleSizeInBits())
+                  .putInt(0x61746164)                                  // "data"
+                  .putInt((int) dataSize)
+                  .flip();
+            channel.write(header, 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
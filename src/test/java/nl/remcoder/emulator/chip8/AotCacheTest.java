@@ -0,0 +1,115 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AotCacheTest {
+
+    private static byte[] readRom(String name) throws IOException {
+        try (InputStream inputStream = ClassLoader.getSystemResourceAsStream("roms/" + name)) {
+            assertNotNull(inputStream, name);
+            return inputStream.readAllBytes();
+        }
+    }
+
+    @Test
+    void storesTranslationKeyedByRomHash() throws IOException {
+        Path directory = Files.createTempDirectory("aot");
+        byte[] romdata = readRom("BLINKY");
+        AotCache aotCache = new AotCache(directory);
+
+        List<Jit.CompiledCode> translated = aotCache.translationOf(romdata, QuirkProfile.MODERN);
+        List<Jit.CompiledCode> cached = aotCache.translationOf(romdata, QuirkProfile.MODERN);
+
+        assertTrue(Files.isRegularFile(directory.resolve(AotCache.hash(romdata) + "-MODERN.aot")));
+        assertFalse(translated.isEmpty());
+        assertEquals(translated.size(), cached.size());
+        for (int i = 0; i < translated.size(); i++) {
+            assertEquals(translated.get(i).start(), cached.get(i).start());
+            assertArrayEquals(translated.get(i).classFile(), cached.get(i).classFile());
+        }
+    }
+
+    @Test
+    void retranslatesUnreadableCacheFile() throws IOException {
+        Path directory = Files.createTempDirectory("aot");
+        byte[] romdata = readRom("MAZE");
+        Files.write(directory.resolve(AotCache.hash(romdata) + "-MODERN.aot"), new byte[]{1, 2, 3});
+
+        List<Jit.CompiledCode> translation = new AotCache(directory).translationOf(romdata, QuirkProfile.MODERN);
+
+        assertFalse(translation.isEmpty());
+        assertEquals(0x200, translation.get(0).start());
+    }
+
+    @Test
+    void retranslatesCorruptCacheFile() throws IOException {
+        byte[] romdata = readRom("MAZE");
+        // The start of the first block, and the length of its class file
+        for (int offset : new int[]{12, 22}) {
+            Path directory = Files.createTempDirectory("aot");
+            new AotCache(directory).translationOf(romdata, QuirkProfile.MODERN);
+            Path file = directory.resolve(AotCache.hash(romdata) + "-MODERN.aot");
+            byte[] data = Files.readAllBytes(file);
+            data[offset] = (byte) 0xFF;
+            data[offset + 1] = (byte) 0xFF;
+            Files.write(file, data);
+
+            Machine machine = new Machine();
+            machine.setAotCache(new AotCache(directory));
+            machine.loadRom(romdata);
+            machine.runFrames(10);
+
+            List<Jit.CompiledCode> translation = new AotCache(directory).translationOf(romdata, QuirkProfile.MODERN);
+            assertEquals(0x200, translation.get(0).start());
+        }
+    }
+
+    @Test
+    void cleansUpAfterAFailedWrite() throws IOException {
+        Path directory = Files.createTempDirectory("aot");
+        byte[] romdata = readRom("MAZE");
+        // A directory in the way of the cache file makes moving it in place fail
+        Path inTheWay = directory.resolve(AotCache.hash(romdata) + "-MODERN.aot");
+        Files.createDirectories(inTheWay.resolve("occupied"));
+
+        List<Jit.CompiledCode> translation = new AotCache(directory).translationOf(romdata, QuirkProfile.MODERN);
+
+        assertFalse(translation.isEmpty());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(List.of(inTheWay), files.toList());
+        }
+    }
+
+    @Test
+    void matchesInterpreterWithTranslatedRoms() throws IOException {
+        Path directory = Files.createTempDirectory("aot");
+        for (String name : new String[]{"test_opcode.ch8", "BLINKY", "TRIP", "TETRIS"}) {
+            byte[] romdata = readRom(name);
+            Machine interpreted = new Machine(new CPU(new Random(8)));
+            interpreted.loadRom(romdata);
+            Machine translated = new Machine(new CPU(new Random(8)));
+            translated.setAotCache(new AotCache(directory));
+            translated.loadRom(romdata);
+
+            for (int frame = 0; frame < 300; frame++) {
+                interpreted.runFrame();
+                translated.runFrame();
+            }
+
+            assertEquals(interpreted.getCpu().pc, translated.getCpu().pc, name);
+            assertArrayEquals(interpreted.getCpu().registers, translated.getCpu().registers);
+            assertEquals(RomFarm.framebufferHash(interpreted.getDisplay()),
+                         RomFarm.framebufferHash(translated.getDisplay()));
+        }
+    }
+}
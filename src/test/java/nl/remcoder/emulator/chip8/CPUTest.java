@@ -1,8 +1,305 @@
 package nl.remcoder.emulator.chip8;
 
+import org.junit.jupiter.api.Test;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class CPUTest {
 
+    private static CPU cpuWithRom(int... program) {
+        return cpuWithRom(Mode.CHIP8, program);
+    }
+
+    private static CPU cpuWithRom(Mode mode, int... program) {
+        byte[] romdata = new byte[program.length];
+        for (int i = 0; i < program.length; i++) {
+            romdata[i] = (byte) program[i];
+        }
+        CPU cpu = new CPU();
+        cpu.setMode(mode);
+        cpu.loadRom(romdata);
+        return cpu;
+    }
+
+    private static int[] spriteProgram(int x) {
+        int[] program = new int[0x32];
+        int[] code = {
+                0x00, 0xFF,   // 200: switch to 128x64
+                0xA2, 0x10,   // 202: I = 210
+                0x60, x,      // 204: V0 = x
+                0x61, 0x00,   // 206: V1 = 0
+                0xD0, 0x10,   // 208: draw a 16x16 sprite at (V0, 0)
+                0x00, 0xFB,   // 20A: scroll right 4 pixels
+                0x00, 0xC1,   // 20C: scroll down 1 row
+                0x12, 0x0E,   // 20E: jump to self
+                0xFF, 0xFF    // 210: a sprite with only its top row set
+        };
+        System.arraycopy(code, 0, program, 0, code.length);
+        return program;
+    }
+
+    private static void run(CPU cpu, int cycles) {
+        for (int i = 0; i < cycles; i++) {
+            cpu.emulateCycle();
+        }
+    }
+
+    @Test
+    void executesSelfModifiedCodeWrittenByFX55() {
+        CPU cpu = cpuWithRom(
+                0x60, 0x63,   // 200: V0 = 0x63
+                0x61, 0x2A,   // 202: V1 = 0x2A
+                0x63, 0x07,   // 204: V3 = 0x07, rewritten to V3 = 0x2A
+                0x33, 0x2A,   // 206: skip if V3 == 0x2A
+                0x12, 0x0E,   // 208: jump to 20E
+                0xF3, 0x15,   // 20A: delay timer = V3
+                0x12, 0x0C,   // 20C: jump to self
+                0xA2, 0x04,   // 20E: I = 204
+                0xF1, 0x55,   // 210: store V0, V1 at 204
+                0x12, 0x04    // 212: jump to 204
+        );
+
+        run(cpu, 20);
+
+        assertEquals(0x2A, cpu.getDelay_timer());
+    }
+
+    @Test
+    void executesSelfModifiedCodeWrittenByFX33() {
+        CPU cpu = cpuWithRom(
+                0x12, 0x0A,   // 200: jump to 20A
+                0x00, 0x00,   // 202: padding
+                0x00, 0x00,   // 204: padding
+                0x00, 0x00,   // 206: padding
+                0x00, 0x00,   // 208: padding
+                0x65, 0x00,   // 20A: V5 = 0, rewritten to V5 = 1
+                0x00, 0x00,   // 20C: ignored, the last two BCD digits land here
+                0x35, 0x01,   // 20E: skip if V5 == 1
+                0x12, 0x16,   // 210: jump to 216
+                0xF5, 0x15,   // 212: delay timer = V5
+                0x12, 0x14,   // 214: jump to self
+                0x60, 0x64,   // 216: V0 = 100
+                0xA2, 0x0B,   // 218: I = 20B, the second byte of the instruction at 20A
+                0xF0, 0x33,   // 21A: store BCD of V0 at 20B, 20C and 20D
+                0x12, 0x0A    // 21C: jump to 20A
+        );
+
+        run(cpu, 20);
+
+        assertEquals(1, cpu.getDelay_timer());
+    }
+
+    @Test
+    void tracksRowsChangedByDrawingAndClearing() {
+        CPU cpu = cpuWithRom(
+                0x60, 0x1E,   // 200: V0 = 30
+                0xA0, 0x00,   // 202: I = font sprite for 0
+                0xD0, 0x05,   // 204: draw 5 rows at (30, 30), wrapping around to rows 0 to 2
+                0x12, 0x06,   // 206: jump to self
+                0x00, 0xE0    // 208: clear the screen
+        );
+        cpu.takeDirtyRows();
+
+        run(cpu, 3);
+
+        assertEquals(1L << 30 | 1L << 31 | 0b111, cpu.takeDirtyRows());
+        run(cpu, 1);
+        assertEquals(0L, cpu.takeDirtyRows());
+
+        cpu.pc = 0x208;
+        run(cpu, 1);
+        assertEquals(0xFFFFFFFFL, cpu.takeDirtyRows());
+    }
+
+    @Test
+    void drawsWholeSpriteRowsAndDetectsCollisions() {
+        CPU cpu = cpuWithRom(
+                0x60, 0x3C,   // 200: V0 = 60
+                0x61, 0x00,   // 202: V1 = 0
+                0xA0, 0x00,   // 204: I = font sprite for 0, its top row is F0
+                0xD0, 0x11,   // 206: draw its top row at (60, 0)
+                0x60, 0x3E,   // 208: V0 = 62
+                0xD0, 0x11    // 20A: draw it again at (62, 0), wrapping around to columns 0 and 1
+        );
+
+        run(cpu, 4);
+
+        assertEquals(0xFL, cpu.getDisplay().getWord(0, 0, 0));
+        assertEquals(0, cpu.registers[0xF]);
+
+        run(cpu, 2);
+
+        assertEquals(0xCL | 0b11L << 62, cpu.getDisplay().getWord(0, 0, 0));
+        assertEquals(1, cpu.registers[0xF]);
+    }
+
+    @Test
+    void wrapsMemoryAccessAround12BitAddresses() {
+        CPU cpu = cpuWithRom(
+                0x60, 0x11,   // 200: V0 = 0x11
+                0x61, 0x22,   // 202: V1 = 0x22
+                0x62, 0x33,   // 204: V2 = 0x33
+                0xAF, 0xFE,   // 206: I = FFE
+                0xF2, 0x55,   // 208: store V0-V2 at FFE, FFF and 000
+                0xAF, 0xFF,   // 20A: I = FFF
+                0xF1, 0x65    // 20C: read V0, V1 from FFF and 000
+        );
+
+        run(cpu, 7);
+
+        assertEquals(0x11, cpu.memory[0xFFE]);
+        assertEquals(0x22, cpu.memory[0xFFF]);
+        assertEquals(0x33, cpu.memory[0x000]);
+        assertEquals(0x22, cpu.registers[0]);
+        assertEquals(0x33, cpu.registers[1]);
+    }
+
+    @Test
+    void wrapsJumpsAround12BitAddresses() {
+        CPU cpu = cpuWithRom(
+                0x60, 0x10,   // 200: V0 = 0x10
+                0xBF, 0xFF    // 202: jump to FFF + V0, which is 00F
+        );
+        cpu.memory[0x00F] = 0x1F;   // 00F: jump to FFE
+        cpu.memory[0x010] = (byte) 0xFE;
+        cpu.memory[0xFFE] = 0x60;   // FFE: V0 = 0x2A, then runs into 000
+        cpu.memory[0xFFF] = 0x2A;
+
+        run(cpu, 2);
+        assertEquals(0x00F, cpu.pc);
+        run(cpu, 2);
+        assertEquals(0x000, cpu.pc);
+        assertEquals(0x2A, cpu.registers[0]);
+    }
+
+    @Test
+    void resetsInPlace() {
+        CPU cpu = cpuWithRom(0x00, 0xE0, 0x6A, 0x01);
+        Bitplanes display = cpu.getDisplay();
+        byte[] memory = cpu.memory;
+        run(cpu, 2);
+
+        cpu.reset();
+
+        assertSame(display, cpu.getDisplay());
+        assertEquals(0L, display.getWord(0, 0, 0));
+        assertSame(memory, cpu.memory);
+        assertEquals(0, cpu.registers[0xA]);
+        assertEquals(0, cpu.memory[0x200]);
+        assertEquals((byte) 0xF0, cpu.memory[0]);
+        assertThrows(IllegalArgumentException.class, () -> cpu.loadRom(new byte[4096 - 0x200 + 1]));
+    }
+
+    @Test
+    void drawsAndScrolls16x16SpritesInHighResolution() {
+        CPU cpu = cpuWithRom(Mode.SCHIP, spriteProgram(0));
+
+        run(cpu, 7);
+
+        Bitplanes display = cpu.getDisplay();
+        assertEquals(128, display.getWidth());
+        assertEquals(0L, display.getWord(0, 0, 0));
+        assertEquals(0xFFFFL << 44, display.getWord(0, 1, 0));
+        assertEquals(0L, display.getWord(0, 1, 1));
+        assertEquals(-1L, cpu.takeDirtyRows());
+    }
+
+    @Test
+    void clipsSpritesOnTheSuperChipAndWrapsThemOnTheXoChip() {
+        CPU schip = cpuWithRom(Mode.SCHIP, spriteProgram(0x78));
+        CPU xochip = cpuWithRom(Mode.XOCHIP, spriteProgram(0x78));
+
+        run(schip, 5);
+        run(xochip, 5);
+
+        assertEquals(0L, schip.getDisplay().getWord(0, 0, 0));
+        assertEquals(0xFFL, schip.getDisplay().getWord(0, 0, 1));
+        assertEquals(0xFFL << 56, xochip.getDisplay().getWord(0, 0, 0));
+        assertEquals(0xFFL, xochip.getDisplay().getWord(0, 0, 1));
+    }
+
+    @Test
+    void runsAmbiguousInstructionsAsTheQuirkProfileSays() {
+        int[] program = {
+                0x60, 0x05,   // 200: V0 = 5
+                0x61, 0x03,   // 202: V1 = 3
+                0x62, 0x08,   // 204: V2 = 8
+                0x82, 0x16,   // 206: V2 = V1 >> 1, or V2 >> 1 in place
+                0xA3, 0x00,   // 208: I = 300
+                0xF1, 0x55,   // 20A: store V0 and V1 at I
+                0xB1, 0x00    // 20C: jump to 100 + V0, or 100 + V1
+        };
+        QuirkProfile[] profiles = {QuirkProfile.COSMAC_VIP, QuirkProfile.CHIP_48, QuirkProfile.SUPER_CHIP,
+                                   QuirkProfile.MODERN};
+        int[][] expected = {
+                // V2, I, pc
+                {1, 0x302, 0x105},
+                {4, 0x302, 0x103},
+                {4, 0x300, 0x103},
+                {1, 0x302, 0x105}
+        };
+
+        for (int i = 0; i < profiles.length; i++) {
+            CPU cpu = cpuWithRom(program);
+            cpu.setQuirks(profiles[i]);
+            run(cpu, 7);
+
+            assertEquals(expected[i][0], cpu.registers[2], profiles[i] + " V2");
+            assertEquals(expected[i][1], cpu.I, profiles[i] + " I");
+            assertEquals(expected[i][2], cpu.pc, profiles[i] + " pc");
+        }
+    }
+
+    @Test
+    void clipsOrWrapsChip8SpritesAsTheQuirkProfileSays() {
+        int[] program = {
+                0x60, 0x3E,   // 200: V0 = 62
+                0x61, 0x1E,   // 202: V1 = 30
+                0xA0, 0x00,   // 204: I = the font sprite of 0
+                0xD0, 0x15    // 206: draw it at (V0, V1)
+        };
+        CPU wrapping = cpuWithRom(program);
+        CPU clipping = cpuWithRom(program);
+        clipping.setQuirks(QuirkProfile.COSMAC_VIP);
+
+        run(wrapping, 4);
+        run(clipping, 4);
+
+        assertEquals(1, wrapping.getDisplay().getPixel(62, 30));
+        assertEquals(1, wrapping.getDisplay().getPixel(1, 30));
+        assertEquals(1, wrapping.getDisplay().getPixel(62, 0));
+        assertEquals(1, clipping.getDisplay().getPixel(62, 30));
+        assertEquals(0, clipping.getDisplay().getPixel(1, 30));
+        assertEquals(0, clipping.getDisplay().getPixel(62, 0));
+    }
+
+    @Test
+    void drawsOnBothPlanesAndSkipsLongInstructionsOnTheXoChip() {
+        int[] program = new int[0x22];
+        int[] code = {
+                0xF3, 0x01,   // 200: select both planes
+                0xF0, 0x00,   // 202: I = 220
+                0x02, 0x20,
+                0x60, 0x00,   // 206: V0 = 0
+                0xD0, 0x01,   // 208: draw one row at (0, 0), on every plane
+                0x30, 0x00,   // 20A: skip if V0 == 0, over all four bytes of F000 NNNN
+                0xF0, 0x00,   // 20C: I = 0, skipped
+                0x00, 0x00,
+                0x61, 0x01,   // 210: V1 = 1
+                0x12, 0x12    // 212: jump to self
+        };
+        System.arraycopy(code, 0, program, 0, code.length);
+        program[0x20] = 0x80; // 220: plane 0
+        program[0x21] = 0xC0; // 221: plane 1
+        CPU cpu = cpuWithRom(Mode.XOCHIP, program);
+
+        run(cpu, 7);
 
-}
\ No newline at end of file
+        assertEquals(65536, cpu.memory.length);
+        assertEquals(3, cpu.getDisplay().getPixel(0, 0));
+        assertEquals(2, cpu.getDisplay().getPixel(1, 0));
+        assertEquals(0x220, cpu.I);
+        assertEquals(1, cpu.registers[1]);
+        assertEquals(0x212, cpu.pc);
+    }
+}
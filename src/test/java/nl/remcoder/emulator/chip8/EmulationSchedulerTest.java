@@ -0,0 +1,42 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmulationSchedulerTest {
+
+    @Test
+    void spreadsInstructionsEvenlyOverASecond() {
+        EmulationScheduler emulationScheduler = new EmulationScheduler(new Machine());
+        emulationScheduler.setInstructionsPerSecond(1000);
+
+        long total = 0;
+        for (int frame = 0; frame < EmulationScheduler.FRAMES_PER_SECOND; frame++) {
+            int cycles = emulationScheduler.cyclesForFrame(frame);
+            assertTrue(cycles == 16 || cycles == 17, "cycles " + cycles);
+            total += cycles;
+        }
+
+        assertEquals(1000, total);
+    }
+
+    @Test
+    void ticksTimersAtSixtyHertz() throws InterruptedException {
+        Machine machine = new Machine();
+        machine.loadRom(new byte[]{
+                0x60, (byte) 0xFF,        // V0 = 255
+                (byte) 0xF0, 0x15,        // delay timer = V0
+                0x12, 0x04                // jump to self
+        });
+        EmulationScheduler emulationScheduler = new EmulationScheduler(machine);
+
+        emulationScheduler.start();
+        Thread.sleep(500);
+        emulationScheduler.stop();
+
+        long frames = machine.getFrames();
+        assertTrue(frames >= 20 && frames <= 40, "frames " + frames);
+        assertEquals(255 - frames, machine.getDelayTimer());
+    }
+}
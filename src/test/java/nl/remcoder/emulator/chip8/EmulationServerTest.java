@@ -0,0 +1,294 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmulationServerTest {
+
+    private static final Path ROMS = Path.of("src/main/resources/roms");
+    // Waits for a key, draws its digit in the top left corner and loops forever
+    private static final byte[] KEY_ROM = {(byte) 0xF1, 0x0A, (byte) 0xF1, 0x29, 0x60, 0x00, (byte) 0xD0, 0x05, 0x12,
+                                           0x08};
+    // Calls itself until the stack overflows
+    private static final byte[] CRASH_ROM = {0x22, 0x00};
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Test
+    void streamsTheScreenToPlayersAndSpectators() throws Exception {
+        Path directory = Files.createTempDirectory("chip8-server");
+        try (EmulationServer server = startServer(directory)) {
+            HttpClient client = HttpClient.newHttpClient();
+            String roms = client.send(HttpRequest.newBuilder(uri(server, "http", "/roms")).build(),
+                                      HttpResponse.BodyHandlers.ofString()).body();
+            assertEquals("CRASH\nIBM\nKEYS\n", roms);
+
+            Bitplanes expected = run(Files.readAllBytes(ROMS.resolve("IBM")), 0, 60);
+            Client player = new Client(client, uri(server, "ws", "/play/IBM"));
+            String session = player.text();
+            player.awaitScreen(expected);
+            assertEquals(1, server.getSessionCount());
+
+            Client spectator = new Client(client, uri(server, "ws", "/watch/" + session));
+            assertEquals(session, spectator.text());
+            // The logo is drawn by now, so joining shows it at once
+            spectator.apply(spectator.binary());
+            assertEquals(RomFarm.framebufferHash(expected), RomFarm.framebufferHash(spectator.screen));
+
+            player.webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "").join();
+            assertEquals(Integer.valueOf(1001), spectator.closed.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertEquals(0, server.getSessionCount());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void appliesKeysFromThePlayer() throws Exception {
+        Path directory = Files.createTempDirectory("chip8-server");
+        try (EmulationServer server = startServer(directory)) {
+            Client player = new Client(HttpClient.newHttpClient(), uri(server, "ws", "/play/KEYS"));
+            player.text();
+
+            player.webSocket.sendBinary(ByteBuffer.wrap(new byte[]{0x04, 0x00}), true).join();
+            // Held down for a few frames, presses and releases in the same frame would not be seen
+            Thread.sleep(100);
+            player.webSocket.sendBinary(ByteBuffer.wrap(new byte[]{0x00, 0x00}), true).join();
+
+            player.awaitScreen(run(KEY_ROM, 1 << 0xA, 2));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void endsOnlyTheSessionThatFails() throws Exception {
+        Path directory = Files.createTempDirectory("chip8-server");
+        try (EmulationServer server = startServer(directory)) {
+            HttpClient client = HttpClient.newHttpClient();
+            Client player = new Client(client, uri(server, "ws", "/play/IBM"));
+            player.text();
+            Client crashing = new Client(client, uri(server, "ws", "/play/CRASH"));
+            crashing.text();
+
+            assertEquals(Integer.valueOf(1011), crashing.closed.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            player.awaitScreen(run(Files.readAllBytes(ROMS.resolve("IBM")), 0, 60));
+            assertEquals(1, server.getSessionCount());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void compressesFramesForClientsThatOfferDeflate() throws Exception {
+        Path directory = Files.createTempDirectory("chip8-server");
+        try (EmulationServer server = startServer(directory);
+             Socket socket = new Socket("localhost", server.getPort())) {
+            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            String key = Base64.getEncoder().encodeToString("sixteen byte key".getBytes(StandardCharsets.US_ASCII));
+            OutputStream output = socket.getOutputStream();
+            output.write(("GET /play/IBM HTTP/1.1\r\n"
+                          + "Host: localhost\r\n"
+                          + "Upgrade: websocket\r\n"
+                          + "Connection: Upgrade\r\n"
+                          + "Sec-WebSocket-Key: " + key + "\r\n"
+                          + "Sec-WebSocket-Version: 13\r\n"
+                          + "Sec-WebSocket-Extensions: permessage-deflate; client_max_window_bits\r\n\r\n")
+                                 .getBytes(StandardCharsets.ISO_8859_1));
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+
+            String response = readHead(input);
+            assertTrue(response.startsWith("HTTP/1.1 101 "), response);
+            String accept = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1").digest(
+                    (key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.US_ASCII)));
+            assertTrue(response.contains("Sec-WebSocket-Accept: " + accept + "\r\n"), response);
+            assertTrue(response.contains("Sec-WebSocket-Extensions: permessage-deflate"), response);
+
+            assertEquals(0x81, input.readUnsignedByte());
+            input.readFully(new byte[input.readUnsignedByte()]);
+
+            Bitplanes expected = run(Files.readAllBytes(ROMS.resolve("IBM")), 0, 60);
+            Bitplanes screen = new Bitplanes();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            while (!RomFarm.framebufferHash(expected).equals(RomFarm.framebufferHash(screen))) {
+                assertTrue(System.nanoTime() - deadline < 0, "Timed out waiting for the logo");
+                // Binary, compressed and in a single frame
+                assertEquals(0xC2, input.readUnsignedByte());
+                int length = input.readUnsignedByte();
+                length = length == 126 ? input.readUnsignedShort() : length;
+                byte[] payload = new byte[length + 4];
+                input.readFully(payload, 0, length);
+                payload[length + 2] = (byte) 0xFF;
+                payload[length + 3] = (byte) 0xFF;
+
+                Inflater inflater = new Inflater(true);
+                inflater.setInput(payload);
+                byte[] frame = new byte[4096];
+                int frameLength = inflater.inflate(frame);
+                inflater.end();
+                assertTrue(frameLength > length, "A frame of " + frameLength + " bytes compressed to " + length);
+                apply(ByteBuffer.wrap(frame, 0, frameLength), screen);
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static EmulationServer startServer(Path directory) throws IOException {
+        Files.copy(ROMS.resolve("IBM"), directory.resolve("IBM"));
+        Files.write(directory.resolve("KEYS"), KEY_ROM);
+        Files.write(directory.resolve("CRASH"), CRASH_ROM);
+        RomCatalog catalog = new RomCatalog(directory.resolve(RomCatalog.DEFAULT_INDEX_NAME), 1);
+        catalog.scan(directory, 1);
+        return new EmulationServer(catalog, new InetSocketAddress("localhost", 0), 2);
+    }
+
+    private static URI uri(EmulationServer server, String scheme, String path) {
+        return URI.create(scheme + "://localhost:" + server.getPort() + path);
+    }
+
+    /**
+     * Run a ROM headless, holding the given keys down for the first frame.
+     */
+    private static Bitplanes run(byte[] romdata, int keys, int frames) {
+        Machine machine = new Machine();
+        machine.loadRom(romdata);
+        machine.setKeys(keys);
+        machine.runFrame();
+        machine.setKeys(0);
+        machine.runFrames(frames);
+        return machine.getDisplay();
+    }
+
+    private static void apply(ByteBuffer frame, Bitplanes screen) {
+        int width = frame.get() & 0xFF;
+        int height = frame.get() & 0xFF;
+        int planes = frame.get() & 0xFF;
+        if (width != screen.getWidth() || height != screen.getHeight() || planes != screen.getPlanes()) {
+            screen.setPlanes(planes);
+            screen.setResolution(width, height);
+        }
+        for (int plane = 0; plane < planes; plane++) {
+            for (long rows = frame.getLong(); rows != 0; rows &= rows - 1) {
+                int y = Long.numberOfTrailingZeros(rows);
+                for (int word = 0; word < width / 64; word++) {
+                    screen.setWord(plane, y, word, frame.getLong());
+                }
+            }
+        }
+        assertFalse(frame.hasRemaining());
+    }
+
+    private static String readHead(InputStream input) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n")) {
+            int b = input.read();
+            assertNotEquals(-1, b);
+            head.write(b);
+        }
+        return head.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * A client on the WebSocket implementation of the JDK, which does not compress.
+     */
+    private static final class Client implements WebSocket.Listener {
+        private final BlockingQueue<Object> messages = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Integer> closed = new LinkedBlockingQueue<>();
+        private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        private final Bitplanes screen = new Bitplanes();
+        private final WebSocket webSocket;
+
+        private Client(HttpClient client, URI uri) {
+            webSocket = client.newWebSocketBuilder().buildAsync(uri, this).join();
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            messages.add(data.toString());
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            partial.writeBytes(bytes);
+            if (last) {
+                messages.add(ByteBuffer.wrap(partial.toByteArray()));
+                partial.reset();
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            closed.add(statusCode);
+            return null;
+        }
+
+        private String text() throws InterruptedException {
+            return (String) next();
+        }
+
+        private ByteBuffer binary() throws InterruptedException {
+            return (ByteBuffer) next();
+        }
+
+        private Object next() throws InterruptedException {
+            Object message = messages.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(message, "Timed out waiting for a message");
+            return message;
+        }
+
+        private void apply(ByteBuffer frame) {
+            EmulationServerTest.apply(frame, screen);
+        }
+
+        /**
+         * Apply frames until the screen shows what is expected.
+         */
+        private void awaitScreen(Bitplanes expected) throws InterruptedException {
+            String hash = RomFarm.framebufferHash(expected);
+            while (!hash.equals(RomFarm.framebufferHash(screen))) {
+                apply(binary());
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameExchangeTest {
+
+    private static Bitplanes uniformFrame(long pixels) {
+        Bitplanes frame = new Bitplanes();
+        for (int y = 0; y < frame.getHeight(); y++) {
+            frame.setRow(y, pixels);
+        }
+        return frame;
+    }
+
+    @Test
+    void acquiresLatestPublishedFrame() {
+        FrameExchange frameExchange = new FrameExchange();
+        Bitplanes graphics = new Bitplanes();
+
+        graphics.setRow(3, 1L << 58);
+        frameExchange.publish(graphics, 1 << 3);
+        graphics.setRow(3, 0);
+        graphics.setRow(7, 1L << 54);
+        frameExchange.publish(graphics, 1 << 3 | 1 << 7);
+
+        assertTrue(frameExchange.hasNewFrame());
+        Bitplanes frame = frameExchange.acquire();
+        assertEquals(0, frame.getPixel(5, 3));
+        assertEquals(1, frame.getPixel(9, 7));
+        assertFalse(frameExchange.hasNewFrame());
+        assertSame(frame, frameExchange.acquire());
+    }
+
+    @Test
+    void carriesDirtyRowsOfDroppedFramesOver() {
+        FrameExchange frameExchange = new FrameExchange();
+        Bitplanes graphics = new Bitplanes();
+
+        frameExchange.publish(graphics, 1 << 1);
+        frameExchange.acquire();
+        assertEquals(1L << 1, frameExchange.getDirtyRows());
+
+        frameExchange.publish(graphics, 1 << 2);
+        frameExchange.publish(graphics, 1 << 3);
+        frameExchange.acquire();
+        assertEquals(1L << 2 | 1L << 3, frameExchange.getDirtyRows());
+
+        frameExchange.acquire();
+        assertEquals(0L, frameExchange.getDirtyRows());
+
+        frameExchange.publish(graphics, 1 << 4);
+        frameExchange.acquire();
+        assertEquals(1L << 4, frameExchange.getDirtyRows());
+    }
+
+    @Test
+    void neverHandsOutTornFrames() throws InterruptedException {
+        FrameExchange frameExchange = new FrameExchange();
+        Bitplanes on = uniformFrame(-1L);
+        Bitplanes off = uniformFrame(0);
+        AtomicBoolean running = new AtomicBoolean(true);
+
+        Thread producer = new Thread(() -> {
+            for (int i = 0; running.get(); i++) {
+                frameExchange.publish(i % 2 == 0 ? on : off, 0xFFFFFFFFL);
+            }
+        });
+        producer.start();
+        try {
+            for (int i = 0; i < 20_000; i++) {
+                Bitplanes frame = frameExchange.acquire();
+                long first = frame.getWord(0, 0, 0);
+                for (int y = 0; y < frame.getHeight(); y++) {
+                    assertEquals(first, frame.getWord(0, y, 0));
+                }
+            }
+        } finally {
+            running.set(false);
+            producer.join();
+        }
+    }
+}
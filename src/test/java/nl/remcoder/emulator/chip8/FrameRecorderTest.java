@@ -0,0 +1,172 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameRecorderTest {
+
+    private static byte[] rom(String name) throws IOException {
+        try (InputStream inputStream = ClassLoader.getSystemResourceAsStream("roms/" + name)) {
+            assertNotNull(inputStream, name);
+            return inputStream.readAllBytes();
+        }
+    }
+
+    @Test
+    void packedFramesReadBackAsTheyWereRecorded() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FrameRecorder recorder = new FrameRecorder(new PackedFrameWriter(bytes), 4, false);
+        List<String> recorded = new ArrayList<>();
+        Machine machine = new Machine();
+        machine.setDisplaySink((display, dirtyRows) -> {
+            recorded.add(RomFarm.framebufferHash(display));
+            recorder.frame(display, dirtyRows);
+        });
+        machine.loadRom(rom("BRIX"));
+
+        machine.runFrames(300);
+        recorder.close();
+
+        List<String> read = new ArrayList<>();
+        try (PackedFrameReader reader = new PackedFrameReader(new ByteArrayInputStream(bytes.toByteArray()))) {
+            for (Bitplanes frame = reader.next(); frame != null; frame = reader.next()) {
+                read.add(RomFarm.framebufferHash(frame));
+            }
+        }
+        assertEquals(recorded, read);
+        assertEquals(0L, recorder.getDroppedFrames());
+        assertEquals(300L, recorder.getEncodedFrames());
+    }
+
+    @Test
+    void dropsAndCountsFramesWhileTheEncoderIsBehind() throws InterruptedException {
+        CountDownLatch encoding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FrameRecorder recorder = new FrameRecorder(new FrameEncoder() {
+            @Override
+            public void encode(Bitplanes frame) {
+                encoding.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        }, 2, true);
+        Bitplanes display = new Bitplanes();
+
+        recorder.frame(display, 0);
+        encoding.await();
+        for (int i = 0; i < 9; i++) {
+            recorder.frame(display, 0);
+        }
+        release.countDown();
+        recorder.close();
+
+        // The frame being encoded keeps its slot until it is done, so only one more fits
+        assertEquals(8L, recorder.getDroppedFrames());
+        assertEquals(2L, recorder.getEncodedFrames());
+    }
+
+    @Test
+    void writesGifsThatDecodeToTheRecordedPixels() throws IOException {
+        Bitplanes noise = new Bitplanes();
+        noise.setPlanes(2);
+        noise.setResolution(128, 64);
+        Random random = new Random(42);
+        for (int plane = 0; plane < 2; plane++) {
+            for (int y = 0; y < 64; y++) {
+                noise.setWord(plane, y, 0, random.nextLong());
+                noise.setWord(plane, y, 1, random.nextLong());
+            }
+        }
+        Bitplanes changed = new Bitplanes();
+        changed.copyFrom(noise);
+        changed.setWord(0, 10, 0, 0);
+        changed.setWord(0, 20, 1, -1L);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GifEncoder encoder = new GifEncoder(bytes)) {
+            encoder.encode(noise);
+            encoder.encode(noise);
+            encoder.encode(changed);
+        }
+
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            reader.setInput(input);
+            assertEquals(2, reader.getNumImages(true));
+            BufferedImage first = reader.read(0);
+            assertEquals(128, first.getWidth());
+            assertEquals(64, first.getHeight());
+            assertPixels(noise, first, 0);
+            BufferedImage band = reader.read(1);
+            assertEquals(11, band.getHeight());
+            assertPixels(changed, band, 10);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    @Test
+    void neverWritesDelaysViewersWouldSlowDown() throws IOException {
+        Bitplanes frame = new Bitplanes();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GifEncoder encoder = new GifEncoder(bytes)) {
+            // A screen that changes every frame for a second
+            for (int i = 0; i < 60; i++) {
+                frame.setWord(0, i % 32, 0, i + 1);
+                encoder.encode(frame);
+            }
+        }
+
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            reader.setInput(input);
+            int images = reader.getNumImages(true);
+            int total = 0;
+            for (int i = 0; i < images; i++) {
+                IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(i)
+                                                               .getAsTree("javax_imageio_gif_image_1.0");
+                IIOMetadataNode control = (IIOMetadataNode) root.getElementsByTagName("GraphicControlExtension")
+                                                                .item(0);
+                int delay = Integer.parseInt(control.getAttribute("delayTime"));
+                assertTrue(delay >= 2, "frame " + i + " has a delay of " + delay);
+                total += delay;
+            }
+            // Merged frames keep their time, so the whole animation still takes a second
+            assertEquals(100, total);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static void assertPixels(Bitplanes expected, BufferedImage image, int top) {
+        int[] palette = {0x000000, 0x32CD32, 0x1E90FF, 0xFFFFFF};
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(palette[expected.getPixel(x, top + y)], image.getRGB(x, y) & 0xFFFFFF,
+                             "pixel " + x + "," + (top + y));
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdleLoopsTest {
+    private static final byte[] ROM = {
+            0x60, 0x1E,               // V0 = 30
+            (byte) 0xF0, 0x15,        // delay timer = V0
+            (byte) 0xF1, 0x07,        // V1 = delay timer
+            0x31, 0x00,               // skip if V1 == 0
+            0x12, 0x04,               // jump back to reading the delay timer
+            0x70, 0x01,               // V0 += 1
+            (byte) 0xF2, 0x0A,        // wait for key, store in V2
+            0x72, 0x01,               // V2 += 1
+            0x12, 0x10                // jump to self
+    };
+
+    @Test
+    void skippingEndsInTheSameStateAsExecuting() {
+        skipsExactly(false);
+    }
+
+    @Test
+    void skippingEndsInTheSameStateAsExecutingWithJit() {
+        skipsExactly(true);
+    }
+
+    private static void skipsExactly(boolean jitEnabled) {
+        Machine machine = new Machine(new CPU(new Random(1)));
+        machine.setJitEnabled(jitEnabled);
+        machine.loadRom(ROM);
+        CPU reference = new CPU(new Random(1));
+        reference.reset();
+        reference.loadRom(ROM);
+
+        for (int frame = 0; frame < 50; frame++) {
+            int keys = frame >= 40 ? 1 << 0x7 : 0;
+            machine.setKeys(keys);
+            reference.setKeys(keys);
+            int cycles = 7 + frame % 5;
+            machine.runFrame(cycles);
+            for (int i = 0; i < cycles; i++) {
+                reference.emulateCycle();
+            }
+            reference.decrementDelayTimer();
+            reference.decrementSoundTimer();
+
+            assertArrayEquals(saveState(reference), saveState(machine.getCpu()), "frame " + frame);
+        }
+        assertEquals(0x8, machine.getCpu().registers[2]);
+    }
+
+    @Test
+    void countsTheFramesLeftToIdle() {
+        Machine machine = new Machine();
+        machine.loadRom(ROM);
+
+        machine.runFrame();
+        assertEquals(29, machine.getIdleFrames());
+
+        machine.runFrames(29);
+        assertEquals(0, machine.getIdleFrames());
+
+        machine.runFrame();
+        assertEquals(IdleLoops.UNLIMITED, machine.getIdleFrames());
+
+        machine.pressKey(0x3);
+        assertEquals(0, machine.getIdleFrames());
+        machine.runFrame();
+        assertEquals(IdleLoops.UNLIMITED, machine.getIdleFrames());
+    }
+
+    @Test
+    void doesNotPostponeFramesWhileARealTimeSinkBeeps() {
+        byte[] rom = {
+                0x60, 0x1E,               // V0 = 30
+                (byte) 0xF0, 0x18,        // sound timer = V0
+                (byte) 0xF2, 0x0A         // wait for key, store in V2
+        };
+        Machine machine = new Machine();
+        machine.loadRom(rom);
+        machine.runFrame();
+        assertEquals(28, machine.getIdleFrames());
+
+        machine.setAudioSink(new AudioSink() {
+            @Override
+            public void beep(boolean beeping) {
+            }
+
+            @Override
+            public boolean isRealTime() {
+                return true;
+            }
+        });
+        assertEquals(0, machine.getIdleFrames());
+
+        machine.runFrames(29);
+        assertEquals(IdleLoops.UNLIMITED, machine.getIdleFrames());
+    }
+
+    private static byte[] saveState(CPU cpu) {
+        byte[] state = new byte[SaveState.SIZE];
+        SaveState.save(cpu, ByteBuffer.wrap(state));
+        return state;
+    }
+}
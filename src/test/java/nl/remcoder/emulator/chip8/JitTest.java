@@ -0,0 +1,126 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JitTest {
+
+    private static byte[] readRom(String name) throws IOException {
+        try (InputStream inputStream = ClassLoader.getSystemResourceAsStream("roms/" + name)) {
+            assertNotNull(inputStream, name);
+            return inputStream.readAllBytes();
+        }
+    }
+
+    private static Machine machine(byte[] romdata, boolean jitEnabled) {
+        return machine(romdata, jitEnabled, QuirkProfile.MODERN);
+    }
+
+    private static Machine machine(byte[] romdata, boolean jitEnabled, QuirkProfile quirks) {
+        Machine machine = new Machine(new CPU(new Random(8)));
+        machine.setJitEnabled(jitEnabled);
+        machine.setQuirks(quirks);
+        machine.loadRom(romdata);
+        return machine;
+    }
+
+    private static void assertSameState(Machine expected, Machine actual, String name) {
+        CPU expectedCpu = expected.getCpu();
+        CPU actualCpu = actual.getCpu();
+        assertEquals(expectedCpu.pc, actualCpu.pc, name + " pc");
+        assertEquals(expectedCpu.I, actualCpu.I, name + " I");
+        assertEquals(expectedCpu.sp, actualCpu.sp, name + " sp");
+        assertArrayEquals(expectedCpu.registers, actualCpu.registers);
+        assertArrayEquals(expectedCpu.memory, actualCpu.memory);
+        assertEquals(RomFarm.framebufferHash(expectedCpu.getDisplay()),
+                     RomFarm.framebufferHash(actualCpu.getDisplay()));
+    }
+
+    @Test
+    void matchesInterpreterOnBundledRoms() throws IOException {
+        for (String name : new String[]{"test_opcode.ch8", "BLINKY", "TRIP", "BRIX", "INVADERS", "MAZE", "PONG"}) {
+            byte[] romdata = readRom(name);
+            Machine interpreted = machine(romdata, false);
+            Machine compiled = machine(romdata, true);
+
+            for (int frame = 0; frame < 300; frame++) {
+                interpreted.runFrame();
+                compiled.runFrame();
+            }
+
+            assertSameState(interpreted, compiled, name);
+        }
+    }
+
+    @Test
+    void matchesInterpreterWithEveryQuirkProfile() throws IOException {
+        byte[] loop = {
+                0x75, 0x01,                 // 200: V5 += 1
+                (byte) 0x82, 0x56,          // 202: shift V5, or V2 in place, right into V2
+                (byte) 0x83, 0x5E,          // 204: shift V5, or V3 in place, left into V3
+                (byte) 0xA3, 0x00,          // 206: I = 300
+                (byte) 0xF5, 0x55,          // 208: store V0 to V5 at I
+                (byte) 0xF5, 0x65,          // 20A: read V0 to V5 back from I
+                (byte) 0xB2, 0x10,          // 20C: jump to 210 + V0, or 210 + V2, both 0
+                0x00, 0x00,                 // 20E: not reached
+                0x12, 0x00                  // 210: jump to 200
+        };
+        for (QuirkProfile quirks : QuirkProfile.values()) {
+            Machine interpreted = machine(loop, false, quirks);
+            Machine compiled = machine(loop, true, quirks);
+
+            interpreted.step(1000);
+            compiled.step(1000);
+
+            assertSameState(interpreted, compiled, "loop with " + quirks);
+
+            for (String name : new String[]{"test_opcode.ch8", "BLINKY", "INVADERS"}) {
+                byte[] romdata = readRom(name);
+                interpreted = machine(romdata, false, quirks);
+                compiled = machine(romdata, true, quirks);
+
+                for (int frame = 0; frame < 300; frame++) {
+                    interpreted.runFrame();
+                    compiled.runFrame();
+                }
+
+                assertSameState(interpreted, compiled, name + " with " + quirks);
+            }
+        }
+    }
+
+    @Test
+    void recompilesBlocksAfterSelfModification() {
+        byte[] romdata = {
+                0x65, 0x00,                 // 200: V5 = 0
+                0x66, 0x00,                 // 202: V6 = 0
+                0x76, 0x01,                 // 204: V6 += 1, rewritten to V6 += 2
+                0x75, 0x01,                 // 206: V5 += 1
+                0x35, 0x40,                 // 208: skip if V5 == 64
+                0x12, 0x04,                 // 20A: jump to 204
+                0x34, 0x01,                 // 20C: skip if V4 == 1
+                0x12, 0x12,                 // 20E: jump to 212
+                0x12, 0x10,                 // 210: jump to self
+                0x64, 0x01,                 // 212: V4 = 1
+                0x60, 0x76,                 // 214: V0 = 0x76
+                0x61, 0x02,                 // 216: V1 = 0x02
+                (byte) 0xA2, 0x04,          // 218: I = 204
+                (byte) 0xF1, 0x55,          // 21A: store V0 and V1 at 204
+                0x65, 0x00,                 // 21C: V5 = 0
+                0x12, 0x04                  // 21E: jump to 204
+        };
+        Machine interpreted = machine(romdata, false);
+        Machine compiled = machine(romdata, true);
+
+        interpreted.step(1000);
+        compiled.step(1000);
+
+        assertSameState(interpreted, compiled, "self modifying");
+        assertEquals(64 + 128, compiled.getCpu().registers[6]);
+    }
+}
@@ -0,0 +1,55 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyEventQueueTest {
+
+    @Test
+    void handsOverEventsInOrderUntilFull() {
+        KeyEventQueue queue = new KeyEventQueue(4);
+        assertTrue(queue.isEmpty());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(100 + i, 1 << i));
+        }
+        assertFalse(queue.offer(104, 1 << 4));
+
+        assertEquals(100, queue.peekTimestamp());
+        assertEquals(1, queue.poll());
+        assertTrue(queue.offer(105, 1 << 5));
+        for (int i = 1; i < 4; i++) {
+            assertEquals(100 + i, queue.peekTimestamp());
+            assertEquals(1 << i, queue.poll());
+        }
+        assertEquals(105, queue.peekTimestamp());
+        assertEquals(1 << 5, queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void handsOverEventsBetweenThreads() throws InterruptedException {
+        KeyEventQueue queue = new KeyEventQueue(8);
+        // Wraps around the ring many times, yielding so it does not take long on a single core
+        int count = 1_000;
+        Thread producer = new Thread(() -> {
+            for (int i = 1; i <= count; i++) {
+                while (!queue.offer(i, i & 0xFFFF)) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+
+        for (int i = 1; i <= count; i++) {
+            while (queue.isEmpty()) {
+                Thread.yield();
+            }
+            assertEquals(i, queue.peekTimestamp());
+            assertEquals(i & 0xFFFF, queue.poll());
+        }
+        producer.join();
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,75 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MachineMetricsTest {
+
+    private static Machine machineRunningLoop(boolean jitEnabled) {
+        Machine machine = new Machine();
+        machine.setJitEnabled(jitEnabled);
+        machine.loadRom(new byte[]{
+                0x60, 0x01,               // 200: V0 = 1
+                (byte) 0x80, 0x04,        // 202: V0 += V0
+                (byte) 0xA3, 0x00,        // 204: I = 300
+                0x12, 0x02                // 206: jump to 202
+        });
+        return machine;
+    }
+
+    @Test
+    void countsOperationsPerFamily() {
+        for (boolean jitEnabled : new boolean[]{false, true}) {
+            Machine machine = machineRunningLoop(jitEnabled);
+            MachineMetrics metrics = machine.enableMetrics();
+
+            machine.runFrames(100);
+
+            Map<String, Long> counts = metrics.getOpcodeFamilyCounts();
+            assertEquals(1000, metrics.getInstructions());
+            assertEquals(100, metrics.getFrames());
+            assertEquals(1000, counts.values().stream().mapToLong(Long::longValue).sum());
+            assertEquals(1, (long) counts.get("6XNN"));
+            assertEquals(333, (long) counts.get("8XYN"));
+            assertEquals(333, (long) counts.get("ANNN"));
+            assertEquals(333, (long) counts.get("1NNN"));
+            assertEquals(99, metrics.getDroppedFrames());
+        }
+    }
+
+    @Test
+    void publishesOverJmx() throws JMException {
+        Machine machine = machineRunningLoop(false);
+        MachineMetrics metrics = machine.enableMetrics();
+        assertSame(metrics, machine.enableMetrics());
+        metrics.framePainted(0);
+        metrics.framePainted(3_000);
+        metrics.framePainted(5_000_000_000L);
+        metrics.timerTicked(2_000);
+        metrics.timerTicked(500);
+        machine.runFrames(6);
+
+        ObjectName name = metrics.register("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(60L, server.getAttribute(name, "Instructions"));
+            assertEquals(500L, server.getAttribute(name, "TimerDriftNanos"));
+            assertEquals(2_000L, server.getAttribute(name, "MaxTimerDriftNanos"));
+            long[] histogram = (long[]) server.getAttribute(name, "FramePaintTimeHistogram");
+            assertEquals(1, histogram[0]);
+            assertEquals(1, histogram[2]);
+            assertEquals(1, histogram[MachineMetrics.PAINT_TIME_BUCKETS - 1]);
+            assertNotNull(server.getAttribute(name, "OpcodeFamilyCounts"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,96 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MachineTest {
+
+    @Test
+    void drawsFontSpriteHeadless() {
+        Machine machine = new Machine();
+        machine.loadRom(new byte[]{
+                0x60, 0x00,               // V0 = 0
+                (byte) 0xA0, 0x00,        // I = font sprite for 0
+                (byte) 0xD0, 0x05,        // draw 5 rows at (V0, V0)
+                0x12, 0x06                // jump to self
+        });
+
+        machine.runFrame();
+
+        Bitplanes display = machine.getDisplay();
+        assertEquals(1, display.getPixel(0, 0));
+        assertEquals(1, display.getPixel(3, 0));
+        assertEquals(0, display.getPixel(4, 0));
+        assertEquals(1, display.getPixel(0, 1));
+        assertEquals(0, display.getPixel(1, 1));
+        assertEquals(1, display.getPixel(3, 4));
+        assertEquals(Machine.DEFAULT_CYCLES_PER_FRAME, machine.getCycles());
+    }
+
+    @Test
+    void ticksTimersOncePerFrame() {
+        Machine machine = new Machine();
+        machine.loadRom(new byte[]{
+                0x60, 0x3C,               // V0 = 60
+                (byte) 0xF0, 0x15,        // delay timer = V0
+                (byte) 0xF0, 0x18,        // sound timer = V0
+                0x12, 0x06                // jump to self
+        });
+
+        machine.runFrames(10);
+
+        assertEquals(50, machine.getDelayTimer());
+        assertEquals(50, machine.getSoundTimer());
+    }
+
+    @Test
+    void notifiesSinksAndPollsInput() {
+        Machine machine = new Machine();
+        machine.loadRom(new byte[]{
+                (byte) 0xF1, 0x0A,        // wait for key, store in V1
+                (byte) 0xF1, 0x18,        // sound timer = V1
+                0x12, 0x04                // jump to self
+        });
+        int[] frames = new int[1];
+        boolean[] beeping = new boolean[1];
+        machine.setDisplaySink((graphics, dirtyRows) -> frames[0]++);
+        machine.setAudioSink(beep -> beeping[0] = beep);
+        machine.setInputSource(() -> 1 << 0x5);
+
+        machine.runFrames(3);
+
+        assertEquals(3, frames[0]);
+        assertTrue(beeping[0]);
+        assertEquals(3, machine.getFrames());
+    }
+
+    @Test
+    void appliesKeyEventsWhereTheyHappenedInTheFrame() throws InterruptedException {
+        Machine machine = new Machine();
+        machine.loadRom(new byte[]{
+                0x60, 0x05,               // V0 = 5
+                (byte) 0xE0, (byte) 0xA1, // skip if key V0 is not pressed
+                0x71, 0x01,               // V1 += 1
+                0x12, 0x02                // jump back to the key check
+        });
+
+        long windowStart = System.nanoTime();
+        machine.pressKey(0x5);
+        machine.pressKey(0x6);
+        Thread.sleep(20);
+        machine.releaseKey(0x5);
+        Thread.sleep(20);
+        machine.runFrame(3000, windowStart, System.nanoTime());
+
+        // The tap of key 5 lasted about half the frame, rather than being lost
+        int V1 = machine.getCpu().registers[1];
+        assertTrue(V1 > 100 && V1 < 900, "V1 " + V1);
+        assertEquals(1 << 0x6, machine.getCpu().keys);
+
+        machine.pressKey(0x5);
+        machine.releaseKey(0x5);
+        machine.runFrame();
+        assertEquals(V1, machine.getCpu().registers[1]);
+    }
+}
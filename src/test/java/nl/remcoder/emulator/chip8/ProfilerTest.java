@@ -0,0 +1,89 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProfilerTest {
+
+    private static Machine machineWithProgram(Profiler profiler) {
+        Machine machine = new Machine();
+        machine.setJitEnabled(true);
+        machine.setProfiler(profiler);
+        machine.loadRom(new byte[]{
+                0x22, 0x06,               // 200: call 206
+                0x12, 0x00,               // 202: jump to 200
+                0x00, 0x00,               // 204: padding
+                (byte) 0xA3, 0x00,        // 206: I = 300
+                0x22, 0x0E,               // 208: call 20E
+                (byte) 0xF1, 0x55,        // 20A: store V0, V1 at 300
+                0x00, (byte) 0xEE,        // 20C: return
+                (byte) 0xD0, 0x13,        // 20E: draw 3 rows from 300
+                0x00, (byte) 0xEE         // 210: return
+        });
+        return machine;
+    }
+
+    @Test
+    void countsExecutionsCallsAndMemoryAccess() throws IOException {
+        Profiler profiler = new Profiler();
+        Machine machine = machineWithProgram(profiler);
+
+        // 8 instructions per iteration of the loop
+        machine.step(800);
+
+        long[] executions = profiler.getExecutions();
+        assertEquals(100, executions[0x200]);
+        assertEquals(100, executions[0x210]);
+        assertEquals(0, executions[0x204]);
+        assertEquals(100, profiler.getReads()[0x300]);
+        assertEquals(100, profiler.getReads()[0x302]);
+        assertEquals(0, profiler.getReads()[0x303]);
+        assertEquals(100, profiler.getWrites()[0x300]);
+        assertEquals(List.of(new Profiler.CallEdge(-1, 0x206, 100), new Profiler.CallEdge(0x206, 0x20E, 100)),
+                     profiler.getCallGraph());
+
+        StringWriter collapsed = new StringWriter();
+        profiler.writeCollapsedStacks(collapsed);
+        assertEquals("main 200\nmain;sub_206 400\nmain;sub_206;sub_20E 200\n", collapsed.toString());
+
+        StringWriter heatmap = new StringWriter();
+        profiler.writeHeatmap(heatmap);
+        assertTrue(heatmap.toString().startsWith("address,executions,reads,writes\n0x200,100,0,0\n"));
+        assertTrue(heatmap.toString().contains("0x300,0,100,100\n"));
+    }
+
+    @Test
+    void countsMemoryAccessOfTheXoChip() {
+        Profiler profiler = new Profiler();
+        Machine machine = new Machine();
+        machine.setMode(Mode.XOCHIP);
+        machine.setProfiler(profiler);
+        machine.loadRom(new byte[]{
+                (byte) 0xF0, 0x00, 0x40, 0x00,  // 200: I = 4000
+                (byte) 0xF3, 0x01,              // 204: select both planes
+                (byte) 0xD0, 0x00,              // 206: draw a 16x16 sprite on both planes
+                0x50, 0x32,                     // 208: store V0 to V3
+                0x52, 0x03,                     // 20A: read V2 down to V0 back
+                (byte) 0xF0, 0x02,              // 20C: load the audio pattern
+                0x12, 0x0E                      // 20E: loop forever
+        });
+
+        machine.step(6);
+
+        long[] reads = profiler.getReads();
+        long[] writes = profiler.getWrites();
+        // 64 bytes of sprite data, 3 registers and 16 bytes of audio pattern
+        assertEquals(3, reads[0x4000]);
+        assertEquals(2, reads[0x400F]);
+        assertEquals(1, reads[0x403F]);
+        assertEquals(0, reads[0x4040]);
+        assertEquals(1, writes[0x4003]);
+        assertEquals(0, writes[0x4004]);
+        assertEquals(1, profiler.getExecutions()[0x20C]);
+    }
+}
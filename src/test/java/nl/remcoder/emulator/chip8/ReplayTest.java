@@ -0,0 +1,113 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplayTest {
+
+    private static byte[] rom(String name) throws IOException {
+        try (InputStream inputStream = ClassLoader.getSystemResourceAsStream("roms/" + name)) {
+            assertNotNull(inputStream, name);
+            return inputStream.readAllBytes();
+        }
+    }
+
+    private static List<String> recordFramebuffers(Machine machine) {
+        List<String> framebuffers = new ArrayList<>();
+        machine.setDisplaySink((display, dirtyRows) -> framebuffers.add(RomFarm.framebufferHash(display)));
+        return framebuffers;
+    }
+
+    @Test
+    void replayProducesSameFramebuffers() throws IOException {
+        byte[] romdata = rom("BRIX");
+        Machine machine = new Machine();
+        machine.loadRom(romdata);
+        List<String> recorded = recordFramebuffers(machine);
+        ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        machine.startRecording(recording);
+
+        Random input = new Random(11);
+        long windowStart = System.nanoTime();
+        for (int frame = 0; frame < 2000; frame++) {
+            if (input.nextInt(10) == 0) {
+                int key = input.nextInt(16);
+                if (input.nextBoolean()) {
+                    machine.pressKey(key);
+                } else {
+                    machine.releaseKey(key);
+                }
+            }
+            // Key events land somewhere within the frame, depending on when they happened
+            long windowEnd = System.nanoTime();
+            machine.runFrame(8 + input.nextInt(5), windowStart, windowEnd);
+            windowStart = windowEnd;
+        }
+        machine.stopRecording();
+
+        Replay replay = Replay.read(new ByteArrayInputStream(recording.toByteArray()));
+        Machine replayed = new Machine();
+        replayed.setJitEnabled(true);
+        List<String> played = recordFramebuffers(replayed);
+        replay.play(replayed, romdata);
+
+        assertEquals(2000, replay.getFrameCount());
+        assertEquals(recorded, played);
+        assertEquals(machine.getCycles(), replayed.getCycles());
+        assertTrue(recording.size() < 2000, "recording takes " + recording.size() + " bytes");
+    }
+
+    @Test
+    void rejectsOtherRom() throws IOException {
+        Machine machine = new Machine();
+        machine.loadRom(rom("BLINKY"));
+        ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        machine.startRecording(recording);
+        machine.runFrames(10);
+        machine.stopRecording();
+
+        Replay replay = Replay.read(new ByteArrayInputStream(recording.toByteArray()));
+
+        assertThrows(IllegalArgumentException.class, () -> replay.play(new Machine(), rom("INVADERS")));
+        assertThrows(IllegalStateException.class, () -> machine.startRecording(new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void restartingTheRomClearsTheTimersBeforeRecording() throws IOException {
+        byte[] romdata = {
+                (byte) 0xF1, 0x07,          // 200: V1 = DT
+                0x31, 0x00,                 // 202: skip if V1 == 0
+                0x12, 0x00,                 // 204: jump to 200
+                0x60, 0x30,                 // 206: V0 = 30
+                (byte) 0xF0, 0x15,          // 208: DT = V0
+                (byte) 0xD0, 0x15,          // 20A: draw the 0 at V0, V1
+                0x12, 0x0C                  // 20C: loop forever
+        };
+        Machine machine = new Machine();
+        machine.loadRom(romdata);
+        machine.runFrames(5);
+        // Restart and record straight away, like restarting a ROM to record it does
+        machine.loadRom(romdata);
+        List<String> recorded = recordFramebuffers(machine);
+        ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        machine.startRecording(recording);
+        machine.runFrames(60);
+        machine.stopRecording();
+
+        Machine replayed = new Machine();
+        List<String> played = recordFramebuffers(replayed);
+        Replay.read(new ByteArrayInputStream(recording.toByteArray())).play(replayed, romdata);
+
+        assertEquals(recorded, played);
+        assertEquals(machine.getDelayTimer(), replayed.getDelayTimer());
+    }
+}
@@ -0,0 +1,81 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RewindBufferTest {
+
+    private static Machine machineWithRom(String name) throws IOException {
+        Machine machine = new Machine(new CPU(new Random(5)));
+        try (InputStream inputStream = ClassLoader.getSystemResourceAsStream("roms/" + name)) {
+            assertNotNull(inputStream, name);
+            machine.loadRom(inputStream.readAllBytes());
+        }
+        return machine;
+    }
+
+    private static List<byte[]> runRecording(Machine machine, int frames) {
+        List<byte[]> states = new ArrayList<>();
+        for (int i = 0; i < frames; i++) {
+            machine.runFrame();
+            states.add(SaveState.save(machine.getCpu()));
+        }
+        return states;
+    }
+
+    @Test
+    void restoresEveryRecordedFrame() throws IOException {
+        Machine machine = machineWithRom("BLINKY");
+        machine.setRewindBuffer(new RewindBuffer(1 << 20, RewindBuffer.DEFAULT_KEYFRAME_INTERVAL));
+        List<byte[]> states = runRecording(machine, 300);
+
+        for (int framesBack = 0; framesBack < 300; framesBack += 7) {
+            Machine restored = machineWithRom("BLINKY");
+            RewindBuffer rewindBuffer = new RewindBuffer(1 << 20, RewindBuffer.DEFAULT_KEYFRAME_INTERVAL);
+            restored.setRewindBuffer(rewindBuffer);
+            runRecording(restored, 300);
+
+            restored.rewind(framesBack);
+
+            assertArrayEquals(states.get(299 - framesBack), SaveState.save(restored.getCpu()));
+            assertEquals(300 - framesBack, rewindBuffer.size());
+        }
+    }
+
+    @Test
+    void staysWithinBudgetByDroppingOldestFrames() throws IOException {
+        Machine machine = machineWithRom("INVADERS");
+        RewindBuffer rewindBuffer = new RewindBuffer(6 * SaveState.SIZE, 16);
+        machine.setRewindBuffer(rewindBuffer);
+        List<byte[]> states = runRecording(machine, 1000);
+
+        int size = rewindBuffer.size();
+        assertTrue(size > 16 && size < 1000, "size " + size);
+        machine.rewind(size - 1);
+        assertArrayEquals(states.get(1000 - size), SaveState.save(machine.getCpu()));
+        assertThrows(IndexOutOfBoundsException.class, () -> machine.rewind(1));
+    }
+
+    @Test
+    void continuesRecordingAfterRewinding() throws IOException {
+        Machine machine = machineWithRom("test_opcode.ch8");
+        machine.setRewindBuffer(new RewindBuffer(1 << 16, 10));
+        List<byte[]> states = runRecording(machine, 100);
+
+        machine.rewind(55);
+        List<byte[]> replayed = runRecording(machine, 55);
+        machine.rewind(30);
+
+        for (int i = 0; i < 55; i++) {
+            assertArrayEquals(states.get(45 + i), replayed.get(i));
+        }
+        assertArrayEquals(states.get(69), SaveState.save(machine.getCpu()));
+    }
+}
@@ -0,0 +1,115 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RomCatalogTest {
+
+    private static final Path ROMS = Path.of("src/main/resources/roms");
+
+    @Test
+    void reopensFromTheIndexAndOnlyIndexesChangedRoms() throws IOException {
+        Path directory = Files.createTempDirectory("chip8-catalog");
+        try {
+            for (String rom : List.of("BRIX", "PONG", "MAZE")) {
+                Files.copy(ROMS.resolve(rom), directory.resolve(rom));
+            }
+            Path indexFile = directory.resolve(RomCatalog.DEFAULT_INDEX_NAME);
+
+            List<RomCatalog.Entry> scanned = new RomCatalog(indexFile, 60).scan(directory, 2);
+
+            assertEquals(3, scanned.size());
+            assertEquals(directory.toAbsolutePath().resolve("BRIX"), scanned.get(0).path());
+            for (RomCatalog.Entry entry : scanned) {
+                assertEquals(Mode.CHIP8, entry.platform());
+                assertEquals(64, entry.hash().length());
+            }
+            assertNotEquals(RomFarm.framebufferHash(new Bitplanes()),
+                            RomFarm.framebufferHash(scanned.get(0).thumbnail()));
+
+            RomCatalog reopened = new RomCatalog(indexFile, 60);
+            List<RomCatalog.Entry> indexed = reopened.getEntries();
+            assertEquals(3, indexed.size());
+            for (int i = 0; i < indexed.size(); i++) {
+                assertEntryEquals(scanned.get(i), indexed.get(i));
+            }
+
+            Path maze = directory.resolve("MAZE");
+            Files.write(maze, Files.readAllBytes(ROMS.resolve("IBM")));
+            Files.setLastModifiedTime(maze, FileTime.fromMillis(scanned.get(1).lastModified() + 1000));
+            Files.delete(directory.resolve("PONG"));
+            List<RomCatalog.Entry> rescanned = reopened.scan(directory, 2);
+
+            assertEquals(2, rescanned.size());
+            assertSame(indexed.get(0), rescanned.get(0));
+            assertNotEquals(scanned.get(1).hash(), rescanned.get(1).hash());
+            assertEquals(AotCache.hash(Files.readAllBytes(maze)), rescanned.get(1).hash());
+            assertEquals(2, reopened.getEntries().size());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void servesPreloadedRomsFromMemory() throws IOException {
+        Path directory = Files.createTempDirectory("chip8-catalog");
+        try {
+            Files.copy(ROMS.resolve("PONG"), directory.resolve("PONG"));
+            Path indexFile = directory.resolve(RomCatalog.DEFAULT_INDEX_NAME);
+            new RomCatalog(indexFile, 10).scan(directory, 1);
+
+            RomCatalog catalog = new RomCatalog(indexFile, 10);
+            catalog.preload(2);
+            Files.delete(directory.resolve("PONG"));
+            RomCatalog.Entry entry = catalog.getEntries().get(0);
+
+            assertArrayEquals(Files.readAllBytes(ROMS.resolve("PONG")), catalog.romdata(entry));
+            assertSame(catalog.romdata(entry), catalog.romdata(entry));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    void detectsPlatformsFromReachableCode() {
+        // 00FF in reachable code makes it a SUPER-CHIP ROM
+        assertEquals(new PlatformDetector.Detection(Mode.SCHIP, QuirkProfile.SUPER_CHIP),
+                     PlatformDetector.detect(new byte[]{0x00, (byte) 0xFF, 0x12, 0x02}));
+        // Behind an endless loop it is data
+        assertEquals(new PlatformDetector.Detection(Mode.CHIP8, QuirkProfile.MODERN),
+                     PlatformDetector.detect(new byte[]{0x12, 0x00, 0x00, (byte) 0xFF}));
+        // Shifting V1 with Y left at 0 is what CHIP-48 ROMs do
+        assertEquals(new PlatformDetector.Detection(Mode.CHIP8, QuirkProfile.CHIP_48),
+                     PlatformDetector.detect(new byte[]{(byte) 0x81, 0x06, 0x12, 0x02}));
+        // F000 NNNN only exists on the XO-CHIP
+        assertEquals(new PlatformDetector.Detection(Mode.XOCHIP, QuirkProfile.MODERN),
+                     PlatformDetector.detect(new byte[]{(byte) 0xF0, 0x00, 0x03, 0x00, 0x12, 0x04}));
+    }
+
+    private static void assertEntryEquals(RomCatalog.Entry expected, RomCatalog.Entry actual) {
+        assertEquals(expected.path(), actual.path());
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.lastModified(), actual.lastModified());
+        assertEquals(expected.hash(), actual.hash());
+        assertEquals(expected.platform(), actual.platform());
+        assertEquals(expected.suggestedQuirks(), actual.suggestedQuirks());
+        assertEquals(RomFarm.framebufferHash(expected.thumbnail()), RomFarm.framebufferHash(actual.thumbnail()));
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RomFarmTest {
+
+    private static final Path ROMS = Path.of("src/main/resources/roms");
+
+    @Test
+    void producesSameResultsRegardlessOfParallelism() throws IOException {
+        RomFarm romFarm = new RomFarm(120, 0, 42, false);
+
+        List<RomFarm.Result> sequential = romFarm.runAll(ROMS, 1);
+        List<RomFarm.Result> parallel = romFarm.runAll(ROMS, 4);
+
+        assertEquals(sequential.size(), parallel.size());
+        assertFalse(sequential.isEmpty());
+        for (int i = 0; i < sequential.size(); i++) {
+            assertEquals(sequential.get(i).rom(), parallel.get(i).rom());
+            assertEquals(sequential.get(i).framebufferHash(), parallel.get(i).framebufferHash());
+            assertEquals(sequential.get(i).instructions(), parallel.get(i).instructions());
+        }
+    }
+
+    @Test
+    void runsExactCycleBudget() {
+        RomFarm romFarm = new RomFarm(0, 12345, 0, false);
+
+        RomFarm.Result result = romFarm.run(ROMS.resolve("BLINKY"));
+
+        assertEquals(12345, result.instructions());
+        assertNull(result.error());
+        assertTrue(result.toJson().startsWith("{\"rom\":\"BLINKY\",\"framebufferHash\":\""));
+    }
+}
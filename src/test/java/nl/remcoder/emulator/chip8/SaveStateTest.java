@@ -0,0 +1,106 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SaveStateTest {
+
+    private static Machine machineRunning(String name, int frames) throws IOException {
+        Machine machine = new Machine(new CPU(new Random(3)));
+        try (InputStream inputStream = ClassLoader.getSystemResourceAsStream("roms/" + name)) {
+            assertNotNull(inputStream, name);
+            machine.loadRom(inputStream.readAllBytes());
+        }
+        machine.runFrames(frames);
+        return machine;
+    }
+
+    private static void assertSameState(CPU expected, CPU actual) {
+        assertEquals(expected.pc, actual.pc);
+        assertEquals(expected.I, actual.I);
+        assertEquals(expected.sp, actual.sp);
+        assertEquals(expected.delay_timer, actual.delay_timer);
+        assertEquals(expected.sound_timer, actual.sound_timer);
+        assertArrayEquals(expected.registers, actual.registers);
+        assertArrayEquals(expected.stack, actual.stack);
+        assertArrayEquals(expected.memory, actual.memory);
+        assertEquals(RomFarm.framebufferHash(expected.getDisplay()), RomFarm.framebufferHash(actual.getDisplay()));
+    }
+
+    @Test
+    void restoresCompleteState() throws IOException {
+        Machine original = machineRunning("BLINKY", 200);
+
+        byte[] savestate = SaveState.save(original.getCpu());
+        Machine restored = new Machine();
+        SaveState.load(savestate, restored.getCpu());
+
+        assertTrue(savestate.length < 5 * 1024);
+        assertSameState(original.getCpu(), restored.getCpu());
+        assertEquals(0xFFFFFFFFL, restored.getCpu().takeDirtyRows());
+    }
+
+    @Test
+    void continuesExactlyAfterRestoring() throws IOException {
+        Machine original = machineRunning("test_opcode.ch8", 10);
+        byte[] savestate = SaveState.save(original.getCpu());
+        Machine restored = new Machine();
+        restored.setJitEnabled(true);
+        SaveState.load(savestate, restored.getCpu());
+
+        original.runFrames(100);
+        restored.runFrames(100);
+
+        assertSameState(original.getCpu(), restored.getCpu());
+    }
+
+    @Test
+    void rejectsSavestatesPointingOutsideMemoryOrTheStack() throws IOException {
+        byte[] savestate = SaveState.save(machineRunning("BLINKY", 200).getCpu());
+        // I, pc, sp and the last stack entry, each set far beyond memory or the stack
+        int pointers = 4 + 2 + 4096 + 16;
+        int[][] fields = {{pointers, 4}, {pointers + 4, 2}, {pointers + 6, 1}, {pointers + 7 + 15 * 2, 2}};
+        for (int[] field : fields) {
+            byte[] corrupt = savestate.clone();
+            for (int i = 0; i < field[1]; i++) {
+                corrupt[field[0] + i] = (byte) 0x7F;
+            }
+            CPU cpu = new CPU();
+            cpu.reset();
+            cpu.loadRom(new byte[]{0x12, 0x00});
+
+            assertThrows(IllegalArgumentException.class, () -> SaveState.load(corrupt, cpu));
+            assertEquals(0x200, cpu.pc);
+            assertEquals(0x12, cpu.memory[0x200]);
+        }
+    }
+
+    @Test
+    void savesAndLoadsThroughMappedSlotFile() throws IOException {
+        Path file = Files.createTempFile("slots", ".sav");
+        Machine original = machineRunning("INVADERS", 150);
+
+        try (SaveSlots saveSlots = new SaveSlots(file, 16)) {
+            assertFalse(saveSlots.isOccupied(3));
+            saveSlots.save(3, original.getCpu());
+            saveSlots.force();
+        }
+        Machine restored = new Machine();
+        try (SaveSlots saveSlots = new SaveSlots(file, 16)) {
+            assertTrue(saveSlots.isOccupied(3));
+            assertFalse(saveSlots.isOccupied(4));
+            saveSlots.load(3, restored.getCpu());
+            assertThrows(IllegalArgumentException.class, () -> saveSlots.load(4, new CPU()));
+        }
+
+        assertSameState(original.getCpu(), restored.getCpu());
+        assertEquals(16L * SaveState.SIZE, Files.size(file));
+    }
+}
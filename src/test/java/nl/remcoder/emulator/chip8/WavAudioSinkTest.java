@@ -0,0 +1,54 @@
+package nl.remcoder.emulator.chip8;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WavAudioSinkTest {
+
+    @Test
+    void beepsForExactlyTheFramesOfTheSoundTimer() throws IOException, UnsupportedAudioFileException {
+        Path file = Files.createTempFile("beep", ".wav");
+        Machine machine = new Machine();
+        machine.loadRom(new byte[]{
+                0x60, 0x0A,               // V0 = 10
+                (byte) 0xF0, 0x18,        // sound timer = V0
+                0x12, 0x04                // jump to self
+        });
+        try (WavAudioSink audioSink = new WavAudioSink(file)) {
+            machine.setAudioSink(audioSink);
+            machine.runFrames(20);
+        }
+
+        byte[] samples;
+        try (AudioInputStream input = AudioSystem.getAudioInputStream(file.toFile())) {
+            assertEquals(SquareWave.FORMAT.toString(), input.getFormat().toString());
+            assertEquals(20L * SquareWave.SAMPLES_PER_FRAME, input.getFrameLength());
+            samples = input.readAllBytes();
+        }
+
+        // The sound timer runs out at the end of the 9th frame, the 10th fades out within its first millisecond
+        for (int frame = 0; frame < 20; frame++) {
+            int loud = 0;
+            for (int i = frame * SquareWave.BYTES_PER_FRAME; i < (frame + 1) * SquareWave.BYTES_PER_FRAME; i += 2) {
+                int sample = (short) (samples[i] & 0xFF | samples[i + 1] << 8);
+                if (Math.abs(sample) > 1000) {
+                    loud++;
+                }
+            }
+            if (frame < 9) {
+                assertTrue(loud > SquareWave.SAMPLES_PER_FRAME * 9 / 10, "frame " + frame + " loud " + loud);
+            } else {
+                assertTrue(loud < SquareWave.SAMPLES_PER_FRAME / 10, "frame " + frame + " loud " + loud);
+            }
+        }
+        Files.delete(file);
+    }
+}